@@ -0,0 +1,95 @@
+/**
+ *  AllocationBenchmark measures how many bytes the JVM allocates to
+ *  evaluate each query of a query file.  Each query is evaluated once
+ *  to warm up, then benchmark:iterations times; the bytes allocated
+ *  and the time of one evaluation, including ranking the top
+ *  documents, are reported per query and in total.
+ *
+ *  Allocation is measured for the calling thread, so scoring work
+ *  handed to QryEval's pool is not counted; set
+ *  scoreParallelThreshold high to keep it on the calling thread.
+ *
+ *  Parameters are those of QryEval, plus:
+ *    benchmark:iterations:  Evaluations of each query that are measured (5).
+ *
+ *  Usage:  java AllocationBenchmark paramFile
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+public class AllocationBenchmark {
+
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java AllocationBenchmark paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if ((!params.containsKey("indexPath") && !params.containsKey("indexPaths")) ||
+	!params.containsKey("queryFilePath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    if (! threads.isThreadAllocatedMemorySupported())
+      QryEval.fatalError("Error: This JVM can't measure allocation per thread.");
+    threads.setThreadAllocatedMemoryEnabled(true);
+
+    int iterations = params.containsKey("benchmark:iterations") ?
+      Integer.parseInt(params.get("benchmark:iterations")) : 5;
+
+    QryEval.open(params);
+
+    Map<Integer, String> queries = QryEval.readQueries(params.get("queryFilePath"));
+    List<Integer> qids = new ArrayList<Integer>(queries.keySet());
+    Collections.sort(qids);
+
+    long thread = Thread.currentThread().getId();
+    long totalBytes = 0, totalNanos = 0;
+
+    System.out.println("qid\tbytes/query\tms/query");
+
+    for (int qid : qids) {
+      String query = queries.get(qid);
+
+      evaluate(query);				// Warm up.
+
+      long bytes = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+
+      for (int i = 0; i < iterations; i++)
+	evaluate(query);
+
+      long nanos = System.nanoTime() - start;
+      bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+      totalBytes += bytes;
+      totalNanos += nanos;
+      System.out.println(qid + "\t" + (bytes / iterations) + "\t" +
+			 String.format(Locale.US, "%.3f", nanos / 1e6 / iterations));
+    }
+
+    int n = Math.max(1, qids.size() * iterations);
+    System.out.println("mean\t" + (totalBytes / n) + "\t" +
+		       String.format(Locale.US, "%.3f", totalNanos / 1e6 / n));
+  }
+
+  /**
+   *  Evaluate a query and rank its top documents, as QryEval does
+   *  before writing them.
+   */
+  static void evaluate(String query) throws IOException {
+
+    QryResult res = QryEval.evaluateQuery(query);
+
+    if (res.invertedList.df > 0)
+      QryEval.convertToScorelist(res);
+    Federation.topDocs(res.docScores, QryEval.MAX_RESULTS);
+  }
+}
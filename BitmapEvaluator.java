@@ -0,0 +1,222 @@
+/**
+ *  BitmapEvaluator evaluates queries for the Unranked Boolean
+ *  retrieval model with DocBitmaps.  Every matching document has a
+ *  score of 1.0, so a score list carries no more information than the
+ *  set of its docids: #AND is the intersection of its arguments'
+ *  bitmaps, #OR and #SYN of terms are their union, and #SCORE passes
+ *  its argument's bitmap through.  Other operators (e.g., #NEAR) are
+ *  evaluated as usual and their results converted to bitmaps.
+ *
+ *  The bitmap of a term is read from Lucene's postings without
+ *  positions or frequencies and cached, so frequent filter terms are
+ *  read once.
+ *
+ *  matches() counts the documents that match a query without building
+ *  a score list.
+ *
+ *  Parameters:
+ *    booleanBitmaps:   Evaluate Unranked Boolean queries with bitmaps (true).
+ *    bitmapCacheSize:  Number of cached term bitmaps (1000).  The cache
+ *                      is cleared when it is full; 0 turns it off.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+public class BitmapEvaluator {
+
+  static boolean enabled = true;
+  static int bitmapCacheSize = 1000;
+  private static final ConcurrentHashMap<String, DocBitmap> CACHE =
+    new ConcurrentHashMap<String, DocBitmap>();
+
+  /**
+   *  Whether a query can be evaluated with bitmaps.  Its root must
+   *  produce a score list, because an inverted list at the root is
+   *  ranked by tf.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if evaluate() can be used.
+   */
+  static boolean applies(Qryop q, RetrievalModel r) {
+    return enabled && r instanceof RetrievalModelUnrankedBoolean && q instanceof QryopSl;
+  }
+
+  /**
+   *  Evaluate a query with bitmaps.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The result, in which every matching document has a score
+   *  of 1.0, or null if the query can't be evaluated with bitmaps.
+   *  @throws IOException
+   */
+  static QryResult evaluate(Qryop q, RetrievalModel r) throws IOException {
+
+    DocBitmap bitmap = bitmap(q, r);
+
+    if (bitmap == null)
+      return null;
+
+    QryResult result = new QryResult();
+    bitmap.addTo(result.docScores, 1.0);
+    return result;
+  }
+
+  /**
+   *  Count the documents that match a query.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return The number of matching documents, or -1 if the query
+   *  can't be evaluated with bitmaps.
+   *  @throws IOException
+   */
+  static int matches(Qryop q, RetrievalModel r) throws IOException {
+    DocBitmap bitmap = bitmap(q, r);
+    return (bitmap == null) ? -1 : bitmap.cardinality();
+  }
+
+  /**
+   *  Forget the cached term bitmaps, e.g., when the index changes.
+   */
+  static void clearCache() {
+    CACHE.clear();
+  }
+
+  /**
+   *  Compute the bitmap of the documents that match a query operator.
+   *  @return The bitmap, or null if the operator can't be evaluated.
+   */
+  private static DocBitmap bitmap(Qryop q, RetrievalModel r) throws IOException {
+
+    if (q instanceof QryopIlTerm) {
+      QryopIlTerm t = (QryopIlTerm) q;
+      return termBitmap(t.getTerm(), t.getField());
+    }
+
+    if (q instanceof QryopSlScore && q.args.size() == 1)
+      return bitmap(q.args.get(0), r);
+
+    if (q instanceof QryopSlAnd && q.args.size() > 0) {
+      DocBitmap[] bitmaps = argBitmaps(q, r);
+
+      if (bitmaps == null)
+	return null;
+
+      //  Intersect the smallest bitmaps first, as the DAAT #AND does.
+
+      Arrays.sort(bitmaps, new Comparator<DocBitmap>() {
+	public int compare(DocBitmap x, DocBitmap y) {
+	  return Integer.compare(x.cardinality(), y.cardinality());
+	}
+      });
+
+      DocBitmap result = bitmaps[0];
+      for (int i = 1; i < bitmaps.length && ! result.isEmpty(); i++)
+	result = DocBitmap.and(result, bitmaps[i]);
+      return result;
+    }
+
+    if ((q instanceof QryopSlOr && q.args.size() > 0) || isTermSyn(q)) {
+      DocBitmap[] bitmaps = argBitmaps(q, r);
+
+      if (bitmaps == null)
+	return null;
+
+      DocBitmap result = bitmaps[0];
+      for (int i = 1; i < bitmaps.length; i++)
+	result = DocBitmap.or(result, bitmaps[i]);
+      return result;
+    }
+
+    //  Any other operator is evaluated as usual.
+
+    QryResult result = q.evaluate(r);
+
+    if (result == null)
+      return null;
+    if (result.invertedList.df > 0)
+      return DocBitmap.of(result.invertedList);
+    return DocBitmap.of(result.docScores);
+  }
+
+  /**
+   *  @return The bitmaps of an operator's arguments, or null if one
+   *  of them can't be evaluated.
+   */
+  private static DocBitmap[] argBitmaps(Qryop q, RetrievalModel r) throws IOException {
+
+    DocBitmap[] bitmaps = new DocBitmap[q.args.size()];
+
+    for (int i = 0; i < bitmaps.length; i++)
+      if ((bitmaps[i] = bitmap(q.args.get(i), r)) == null)
+	return null;
+
+    return bitmaps;
+  }
+
+  /**
+   *  @return True if q is a #SYN of terms in one field.  A #SYN of
+   *  other arguments is evaluated as usual, which checks its syntax.
+   */
+  private static boolean isTermSyn(Qryop q) {
+
+    if (! (q instanceof QryopIlSyn) || q.args.size() == 0)
+      return false;
+
+    for (Qryop arg : q.args)
+      if (! (arg instanceof QryopIlTerm) ||
+	  ! ((QryopIlTerm) arg).getField().equals(((QryopIlTerm) q.args.get(0)).getField()))
+	return false;
+
+    return true;
+  }
+
+  /**
+   *  Get the bitmap of a term, from the cache if it is there.
+   *  @param term The processed term.
+   *  @param field The field.
+   *  @return The bitmap of the documents that contain the term.
+   *  @throws IOException
+   */
+  static DocBitmap termBitmap(String term, String field) throws IOException {
+
+    String key = field + "\n" + term;
+    DocBitmap bitmap = CACHE.get(key);
+
+    if (bitmap != null)
+      return bitmap;
+
+    bitmap = new DocBitmap();
+
+    DocsEnum docs = MultiFields.getTermDocsEnum(QryEval.READER,
+						MultiFields.getLiveDocs(QryEval.READER),
+						field, new BytesRef(term), DocsEnum.FLAG_NONE);
+
+    //  A bitmap that the deadline cut short is not cached.
+
+    Deadline deadline = Deadline.current();
+    boolean stopped = false;
+
+    if (docs != null)
+      for (int doc; (doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS; ) {
+	if (Deadline.expired(deadline)) {
+	  stopped = true;
+	  break;
+	}
+	bitmap.add(doc);
+      }
+
+    if (bitmapCacheSize > 0 && ! stopped) {
+      if (CACHE.size() >= bitmapCacheSize)
+	CACHE.clear();
+      CACHE.put(key, bitmap);
+    }
+
+    return bitmap;
+  }
+}
@@ -0,0 +1,815 @@
+/**
+ *  CompressedPostings is a read-only, memory-mapped postings format
+ *  that is exported from a Lucene index.  QryopIlTerm reads inverted
+ *  lists from it instead of going through MultiFields and Lucene's
+ *  DocsAndPositionsEnum, so the hot path does not touch Lucene.
+ *
+ *  The export is run offline (java CompressedPostings paramFile) and
+ *  writes indexPath + ".postings".  Each term's postings are stored
+ *  as blocks of up to BLOCK_SIZE documents.  A block starts with the
+ *  number of documents, the last docid and the length of the block,
+ *  so that blocks can be skipped without decoding them.  Docid gaps,
+ *  tfs and position gaps are encoded with group varint: a selector
+ *  byte that gives the byte length of the next four integers,
+ *  followed by those integers in 1-4 bytes each.
+ *
+ *  The same format holds pruned index tiers (see PrunedIndex), which
+ *  keep only some of each term's postings.  Their term records also
+ *  hold the term's collection statistics and a bound on the score of
+ *  the postings that were dropped.
+ *
+ *  Files may be larger than 2GB.  The postings data is mapped in
+ *  CHUNK_SIZE pieces and the writer never lets a term's postings
+ *  cross a chunk boundary.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class CompressedPostings {
+
+  static final int MAGIC = 0x51455053;		// "QEPS"
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+  static final int BLOCK_SIZE = 128;
+  static final long CHUNK_SIZE = 1L << 30;
+  static final int TERM_RECORD_SIZE = 8 + 4 + 8 + 8 + 4 + 4;
+
+  //  Per-field term dictionary.
+
+  class FieldInfo {
+    String name;
+    int numTerms;
+    ByteBuffer termRecords;	// termBytesOffset, df, ctf, postingsOffset, postingsLength, bound
+    ByteBuffer termBytes;
+  }
+
+  /**
+   *  A Pruner chooses which postings of a term are exported.  It is
+   *  used to build pruned index tiers.
+   */
+  static abstract class Pruner {
+
+    /**
+     *  @return The retrieval model that scores were computed with.
+     */
+    abstract String getModelName();
+
+    /**
+     *  @return The model parameters that scores were computed with.
+     */
+    abstract double[] getParameters();
+
+    //  A bound on the score of the dropped postings of the last term
+    //  that was pruned, and its df and ctf over all live postings.
+
+    float bound = 0;
+    int df = 0;
+    long ctf = 0;
+
+    /**
+     *  Choose the postings of the current term that should be kept,
+     *  and set bound, df and ctf.
+     *  @param field The field of the term.
+     *  @param te A TermsEnum positioned on the term.
+     *  @param liveDocs The live documents.
+     *  @return The docids to keep, in ascending order.
+     *  @throws IOException
+     */
+    abstract int[] prune(String field, TermsEnum te, Bits liveDocs) throws IOException;
+  }
+
+  long generation;
+  int maxDoc;
+  String pruneModel = "";	// Empty unless this is a pruned tier
+  double[] pruneParameters = new double[0];
+  Map<String, FieldInfo> fields = new HashMap<String, FieldInfo>();
+  ByteBuffer[] chunks;
+
+  /**
+   *  Returns the default location of the postings for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the postings file.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".postings";
+  }
+
+  /**
+   *  Open and memory-map exported postings.  If the file does not
+   *  exist or was exported from a different generation of the index,
+   *  null is returned, so the caller can fall back to Lucene.
+   *  @param path The postings file.
+   *  @param reader The index reader that the postings must match.
+   *  @return The postings, or null if they can't be used.
+   *  @throws IOException
+   */
+  public static CompressedPostings open(String path, IndexReader reader) throws IOException {
+
+    File f = new File(path);
+
+    if (! f.exists())
+      return null;
+
+    CompressedPostings p = new CompressedPostings(f);
+
+    if (p.generation != IndexSnapshot.indexGeneration(reader) || p.maxDoc != reader.maxDoc()) {
+      System.err.println("Warning:  Postings " + path +
+			 " do not match the index generation.  Ignoring them.");
+      return null;
+    }
+
+    return p;
+  }
+
+  /**
+   *  Constructor.  Memory-map an existing postings file.
+   *  @param f The postings file.
+   *  @throws IOException
+   */
+  public CompressedPostings(File f) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    FileChannel ch = raf.getChannel();
+
+    try {
+      ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC)
+	throw new IOException("Not a postings file:  " + f);
+      if (header.getInt() != VERSION)
+	throw new IOException("Unsupported postings version:  " + f);
+
+      this.generation = header.getLong();
+      this.maxDoc = header.getInt();
+      long tocOffset = header.getLong();
+
+      //  The postings data runs from HEADER_SIZE up to the term
+      //  dictionaries.
+
+      DataInputStream toc = new DataInputStream(new BufferedInputStream(
+	Channels.newInputStream(ch.position(tocOffset))));
+
+      long dataLength = toc.readLong();
+      int numChunks = (int) ((dataLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+      this.chunks = new ByteBuffer[numChunks];
+
+      for (int i = 0; i < numChunks; i++) {
+	long start = i * CHUNK_SIZE;
+	long len = Math.min(CHUNK_SIZE, dataLength - start);
+	this.chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start, len);
+      }
+
+      int numFields = toc.readInt();
+
+      for (int i = 0; i < numFields; i++) {
+	FieldInfo fi = new FieldInfo();
+	fi.name = toc.readUTF();
+	fi.numTerms = toc.readInt();
+	long recordsOffset = toc.readLong();
+	fi.termRecords = ch.map(FileChannel.MapMode.READ_ONLY, recordsOffset,
+				(long) TERM_RECORD_SIZE * fi.numTerms);
+	long termBytesOffset = toc.readLong();
+	fi.termBytes = ch.map(FileChannel.MapMode.READ_ONLY, termBytesOffset, toc.readLong());
+	this.fields.put(fi.name, fi);
+      }
+
+      this.pruneModel = toc.readUTF();
+      this.pruneParameters = new double[toc.readInt()];
+      for (int i = 0; i < this.pruneParameters.length; i++)
+	this.pruneParameters[i] = toc.readDouble();
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Returns true if postings were exported for the field.
+   */
+  public boolean hasField(String fieldname) {
+    return this.fields.containsKey(fieldname);
+  }
+
+  /**
+   *  Returns true if this is a pruned tier rather than a full export.
+   */
+  public boolean isPruned() {
+    return this.pruneModel.length() > 0;
+  }
+
+  /**
+   *  Get the bound on the scores of a term's dropped postings.
+   *  @return The bound, or NaN if the term doesn't occur.
+   */
+  public float getBound(String fieldname, String term) {
+    int i = findTerm(fieldname, term);
+    return (i < 0) ? Float.NaN : this.fields.get(fieldname).termRecords.getFloat(i * TERM_RECORD_SIZE + 32);
+  }
+
+  /**
+   *  @return True if the file has an inverted list for the term.
+   */
+  public boolean hasTerm(String fieldname, String term) {
+    return findTerm(fieldname, term) >= 0;
+  }
+
+  /**
+   *  @return The document frequency of a term, or 0 if it doesn't occur.
+   */
+  public int docFreq(String fieldname, String term) {
+    int i = findTerm(fieldname, term);
+    return (i < 0) ? 0 : this.fields.get(fieldname).termRecords.getInt(i * TERM_RECORD_SIZE + 8);
+  }
+
+  /**
+   *  Fetch an inverted list.  The result is the same as
+   *  new InvList(termString, fieldString).
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws DeadlineExceededException If the query's deadline passed
+   *  and it is cancelled on expiry.
+   */
+  public InvList getInvList(String termString, String fieldString)
+    throws DeadlineExceededException {
+    return getInvList(termString, fieldString, null);
+  }
+
+  /**
+   *  Fetch the postings of a term in some documents.  Blocks that
+   *  hold no candidate are skipped without being decoded.  The
+   *  collection statistics are those of the full inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param candidates The docids to fetch in ascending order, or null
+   *  for all of them.
+   *  @return The inverted list.
+   *  @throws DeadlineExceededException If the query's deadline passed
+   *  and it is cancelled on expiry.
+   */
+  public InvList getInvList(String termString, String fieldString, int[] candidates)
+    throws DeadlineExceededException {
+
+    InvList list = new InvList(fieldString);
+    int t = findTerm(fieldString, termString);
+
+    if (t < 0)
+      return list;
+
+    ByteBuffer rec = this.fields.get(fieldString).termRecords;
+
+    //  A pruned list does not have all of the term's postings, so its
+    //  statistics come from the full index.
+
+    if (isPruned() || candidates != null) {
+      list.collectionDf = rec.getInt(t * TERM_RECORD_SIZE + 8);
+      list.collectionCtf = rec.getLong(t * TERM_RECORD_SIZE + 12);
+    }
+
+    long offset = rec.getLong(t * TERM_RECORD_SIZE + 20);
+    int length = rec.getInt(t * TERM_RECORD_SIZE + 28);
+    ByteBuffer buf = this.chunks[(int) (offset / CHUNK_SIZE)];
+    int pos = (int) (offset % CHUNK_SIZE);
+    int end = pos + length;
+
+    int[] docids = new int[BLOCK_SIZE];
+    int[] tfs = new int[BLOCK_SIZE];
+    int[] positions = new int[BLOCK_SIZE];
+    int lastDocid = 0;
+    int prevBlockLast = -1;
+    int c = 0;
+    Deadline deadline = Deadline.current();
+
+    while (pos < end) {
+      if (Deadline.expired(deadline))
+	break;
+
+      int count = buf.getInt(pos);
+      int blockLast = buf.getInt(pos + 4);
+      int bodyLen = buf.getInt(pos + 8);
+      pos += 12;
+
+      //  Skip blocks that end before the next candidate.
+
+      if (candidates != null) {
+	while (c < candidates.length && candidates[c] <= prevBlockLast)
+	  c++;
+	if (c == candidates.length)
+	  break;
+	if (candidates[c] > blockLast) {
+	  pos += bodyLen;
+	  lastDocid = prevBlockLast = blockLast;
+	  continue;
+	}
+      }
+
+      pos = readGroupVarint(buf, pos, docids, count);
+      pos = readGroupVarint(buf, pos, tfs, count);
+
+      int numPositions = 0;
+      for (int i = 0; i < count; i++)
+	numPositions += tfs[i];
+      if (positions.length < numPositions)
+	positions = new int[numPositions];
+      pos = readGroupVarint(buf, pos, positions, numPositions);
+
+      //  Undo the gap encoding of docids and of each document's positions.
+
+      int p = 0;
+      for (int i = 0; i < count; i++) {
+	lastDocid += docids[i];
+
+	if (candidates != null) {
+	  while (c < candidates.length && candidates[c] < lastDocid)
+	    c++;
+	  if (c == candidates.length || candidates[c] != lastDocid) {
+	    p += tfs[i];
+	    continue;
+	  }
+	}
+
+	int[] locs = new int[tfs[i]];
+	int loc = 0;
+	for (int j = 0; j < locs.length; j++) {
+	  loc += positions[p++];
+	  locs[j] = loc;
+	}
+
+	list.appendPosting(lastDocid, locs);
+      }
+
+      lastDocid = prevBlockLast = blockLast;
+    }
+
+    return list;
+  }
+
+  /**
+   *  Binary search the term dictionary of a field.
+   *  @return The index of the term, or -1 if it doesn't occur.
+   */
+  int findTerm(String fieldname, String term) {
+
+    FieldInfo fi = this.fields.get(fieldname);
+
+    if (fi == null)
+      return -1;
+
+    byte[] key = term.getBytes(IndexSnapshot.UTF8);
+    int lo = 0;
+    int hi = fi.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = (int) fi.termRecords.getLong(mid * TERM_RECORD_SIZE);
+      int end = (mid + 1 < fi.numTerms) ?
+	(int) fi.termRecords.getLong((mid + 1) * TERM_RECORD_SIZE) : fi.termBytes.capacity();
+      int cmp = IndexSnapshot.compareBytes(fi.termBytes, start, end, key);
+
+      if (cmp < 0)
+	lo = mid + 1;
+      else if (cmp > 0)
+	hi = mid - 1;
+      else
+	return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Decode n group varint integers.
+   *  @param buf The buffer to read from.
+   *  @param pos The position of the first selector byte.
+   *  @param dst Where to put the integers.
+   *  @param n The number of integers to decode.
+   *  @return The position after the last group.
+   */
+  static int readGroupVarint(ByteBuffer buf, int pos, int[] dst, int n) {
+
+    for (int i = 0; i < n; i += 4) {
+      int selector = buf.get(pos++) & 0xff;
+
+      for (int k = 0; k < 4; k++) {
+	int len = ((selector >>> (2 * k)) & 3) + 1;
+	int v = 0;
+
+	for (int j = 0; j < len; j++)
+	  v |= (buf.get(pos++) & 0xff) << (8 * j);
+
+	if (i + k < n)
+	  dst[i + k] = v;
+      }
+    }
+
+    return pos;
+  }
+
+  /**
+   *  Encode n integers with group varint.  The last group is padded
+   *  with zeros.
+   */
+  static void writeGroupVarint(ByteArrayOutputStream out, int[] src, int n) {
+
+    for (int i = 0; i < n; i += 4) {
+      int selector = 0;
+
+      for (int k = 0; k < 4; k++) {
+	int v = (i + k < n) ? src[i + k] : 0;
+	selector |= (byteLength(v) - 1) << (2 * k);
+      }
+
+      out.write(selector);
+
+      for (int k = 0; k < 4; k++) {
+	int v = (i + k < n) ? src[i + k] : 0;
+	for (int j = byteLength(v); j > 0; j--) {
+	  out.write(v & 0xff);
+	  v >>>= 8;
+	}
+      }
+    }
+  }
+
+  private static int byteLength(int v) {
+    if ((v >>> 8) == 0)
+      return 1;
+    if ((v >>> 16) == 0)
+      return 2;
+    if ((v >>> 24) == 0)
+      return 3;
+    return 4;
+  }
+
+  /**
+   *  PostingsEncoder encodes the postings of one term.  Documents are
+   *  added in docid order, each followed by its positions.
+   */
+  static class PostingsEncoder {
+
+    private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(bytes);
+    private int[] docGaps = new int[BLOCK_SIZE];
+    private int[] tfs = new int[BLOCK_SIZE];
+    private int[] posGaps = new int[BLOCK_SIZE];
+    private int count = 0;
+    private int numPositions = 0;
+    private int lastDocid = 0;
+    private int lastPos = 0;
+
+    /**
+     *  Start a document.
+     *  @param docid The docid, larger than that of the last document.
+     *  @param tf The number of positions that will follow.
+     */
+    void addDoc(int docid, int tf) throws IOException {
+
+      if (count == BLOCK_SIZE)
+	writeBlock();
+
+      docGaps[count] = docid - lastDocid;
+      tfs[count] = tf;
+      lastDocid = docid;
+      lastPos = 0;
+      count++;
+
+      if (posGaps.length < numPositions + tf)
+	posGaps = Arrays.copyOf(posGaps, Math.max(2 * posGaps.length, numPositions + tf));
+    }
+
+    /**
+     *  Add the next position of the current document.
+     */
+    void addPosition(int p) {
+      posGaps[numPositions++] = p - lastPos;
+      lastPos = p;
+    }
+
+    /**
+     *  @return The encoded postings.
+     */
+    byte[] finish() throws IOException {
+      if (count > 0)
+	writeBlock();
+      out.flush();
+      return bytes.toByteArray();
+    }
+
+    /**
+     *  Encode one block of postings.
+     */
+    private void writeBlock() throws IOException {
+
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      writeGroupVarint(body, docGaps, count);
+      writeGroupVarint(body, tfs, count);
+      writeGroupVarint(body, posGaps, numPositions);
+
+      out.writeInt(count);
+      out.writeInt(lastDocid);
+      out.writeInt(body.size());
+      body.writeTo(out);
+
+      count = 0;
+      numPositions = 0;
+    }
+  }
+
+  /**
+   *  Encode the postings of one term.  Deleted documents are skipped.
+   *  @param dp The term's postings.
+   *  @param keep The docids to encode in ascending order, or null to
+   *  encode all of them.
+   *  @return The encoded postings.
+   */
+  static byte[] encodePostings(DocsAndPositionsEnum dp, int[] keep) throws IOException {
+
+    PostingsEncoder encoder = new PostingsEncoder();
+    int nextKeep = 0;
+
+    while (dp.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      int docid = dp.docID();
+
+      if (keep != null) {
+	if (nextKeep >= keep.length)
+	  break;
+	if (keep[nextKeep] != docid)
+	  continue;
+	nextKeep++;
+      }
+
+      int tf = dp.freq();
+
+      encoder.addDoc(docid, tf);
+      for (int j = 0; j < tf; j++)
+	encoder.addPosition(dp.nextPosition());
+    }
+
+    return encoder.finish();
+  }
+
+  /**
+   *  Encode an inverted list.
+   *  @param list The inverted list.
+   *  @return The encoded postings.
+   */
+  static byte[] encodePostings(InvList list) throws IOException {
+
+    PostingsEncoder encoder = new PostingsEncoder();
+
+    for (int i = 0; i < list.df; i++) {
+      InvList.DocPosting p = list.postings.get(i);
+
+      encoder.addDoc(p.docid, p.positions.length);
+      for (int j = 0; j < p.positions.length; j++)
+	encoder.addPosition(p.positions[j]);
+    }
+
+    return encoder.finish();
+  }
+
+  /**
+   *  Writer writes a postings file.  Terms are added field by field,
+   *  in sorted order within each field.  The postings data is written
+   *  as terms are added; the term dictionaries are kept in memory
+   *  until close, because they follow the data.
+   */
+  static class Writer {
+
+    private String path;
+    private File tmp;
+    private IndexSnapshot.CountingOutputStream counter;
+    private DataOutputStream out;
+
+    private List<String> fieldNames = new ArrayList<String>();
+    private List<ByteArrayOutputStream> records = new ArrayList<ByteArrayOutputStream>();
+    private List<ByteArrayOutputStream> termStrings = new ArrayList<ByteArrayOutputStream>();
+    private List<Integer> termCounts = new ArrayList<Integer>();
+
+    //  The field that terms are being added to.
+
+    private DataOutputStream recOut;
+    private ByteArrayOutputStream termBytes;
+    private int numTerms;
+
+    /**
+     *  Start writing a postings file for an index.
+     *  @param reader The index that the postings come from.
+     *  @param path The postings file.
+     *  @throws IOException
+     */
+    Writer(IndexReader reader, String path) throws IOException {
+
+      this.path = path;
+      this.tmp = new File(path + ".tmp");
+      this.counter = new IndexSnapshot.CountingOutputStream(
+	new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+      this.out = new DataOutputStream(counter);
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(IndexSnapshot.indexGeneration(reader));
+      out.writeInt(reader.maxDoc());
+      out.writeLong(0);		// TOC offset, patched by close.
+    }
+
+    /**
+     *  Start adding the terms of a field.
+     */
+    void startField(String field) {
+      ByteArrayOutputStream recBytes = new ByteArrayOutputStream();
+
+      this.recOut = new DataOutputStream(recBytes);
+      this.termBytes = new ByteArrayOutputStream();
+      this.numTerms = 0;
+
+      fieldNames.add(field);
+      records.add(recBytes);
+      termStrings.add(termBytes);
+      termCounts.add(0);
+    }
+
+    /**
+     *  Add a term of the current field.
+     *  @param t The term, greater than the last term of the field.
+     *  @param df The term's document frequency.
+     *  @param ctf The term's collection term frequency.
+     *  @param postings The encoded postings.
+     *  @param bound A bound on the scores of dropped postings.
+     *  @throws IOException
+     */
+    void addTerm(BytesRef t, int df, long ctf, byte[] postings, float bound) throws IOException {
+
+      if (postings.length > CHUNK_SIZE)
+	throw new IOException("Postings for " + fieldNames.get(fieldNames.size() - 1) + ":" +
+			      t.utf8ToString() + " are too large to export");
+
+      //  Don't let the postings cross a chunk boundary.
+
+      long dataPos = counter.count - HEADER_SIZE;
+      if (dataPos / CHUNK_SIZE != (dataPos + postings.length - 1) / CHUNK_SIZE) {
+	long pad = CHUNK_SIZE - (dataPos % CHUNK_SIZE);
+	for (long i = 0; i < pad; i++)
+	  out.write(0);
+	dataPos += pad;
+      }
+
+      recOut.writeLong(termBytes.size());
+      recOut.writeInt(df);
+      recOut.writeLong(ctf);
+      recOut.writeLong(dataPos);
+      recOut.writeInt(postings.length);
+      recOut.writeFloat(bound);
+      termBytes.write(t.bytes, t.offset, t.length);
+      out.write(postings);
+      termCounts.set(termCounts.size() - 1, ++numTerms);
+    }
+
+    /**
+     *  Write the term dictionaries and the TOC, and move the file into
+     *  place.
+     *  @param pruneModel The model of a pruned tier, or "".
+     *  @param parameters The model parameters of a pruned tier.
+     *  @return The number of bytes of postings data.
+     *  @throws IOException
+     */
+    long close(String pruneModel, double[] parameters) throws IOException {
+
+      long dataLength = counter.count - HEADER_SIZE;
+
+      //  Term dictionaries, then the TOC.
+
+      long[] recordOffsets = new long[fieldNames.size()];
+      long[] termBytesOffsets = new long[fieldNames.size()];
+
+      for (int i = 0; i < fieldNames.size(); i++) {
+	recordOffsets[i] = counter.count;
+	records.get(i).writeTo(out);
+	termBytesOffsets[i] = counter.count;
+	termStrings.get(i).writeTo(out);
+      }
+
+      long tocOffset = counter.count;
+      out.writeLong(dataLength);
+      out.writeInt(fieldNames.size());
+
+      for (int i = 0; i < fieldNames.size(); i++) {
+	out.writeUTF(fieldNames.get(i));
+	out.writeInt(termCounts.get(i));
+	out.writeLong(recordOffsets[i]);
+	out.writeLong(termBytesOffsets[i]);
+	out.writeLong(termStrings.get(i).size());
+      }
+
+      out.writeUTF(pruneModel);
+      out.writeInt(parameters.length);
+      for (double p : parameters)
+	out.writeDouble(p);
+      out.close();
+
+      RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+      raf.seek(HEADER_SIZE - 8);
+      raf.writeLong(tocOffset);
+      raf.close();
+
+      File dest = new File(path);
+      if ((dest.exists() && ! dest.delete()) || ! tmp.renameTo(dest))
+	throw new IOException("Unable to replace " + path);
+
+      return dataLength;
+    }
+  }
+
+  /**
+   *  Export the postings of every positional field in an index.
+   *  @param reader The index to export.
+   *  @param path The postings file to write.
+   *  @param pruner Chooses the postings to keep, or null to keep all of them.
+   *  @return The number of bytes of postings data.
+   *  @throws IOException
+   */
+  public static long write(IndexReader reader, String path, Pruner pruner) throws IOException {
+
+    Writer writer = new Writer(reader, path);
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    List<String> fieldNames = new ArrayList<String>(MultiFields.getIndexedFields(reader));
+
+    Collections.sort(fieldNames);
+
+    for (String field : fieldNames) {
+      Terms terms = MultiFields.getTerms(reader, field);
+
+      if (terms == null || ! terms.hasPositions())
+	continue;
+
+      writer.startField(field);
+
+      TermsEnum te = terms.iterator(null);
+      DocsAndPositionsEnum dp = null;
+      BytesRef t;
+
+      while ((t = te.next()) != null) {
+	int[] keep = null;
+	float bound = 0;
+	long[] stats;
+
+	//  The term's statistics count only live documents.
+
+	if (pruner != null) {
+	  keep = pruner.prune(field, te, liveDocs);
+	  bound = pruner.bound;
+	  stats = new long[] { pruner.df, pruner.ctf };
+	} else {
+	  stats = TermVector.liveStats(te, liveDocs);
+	}
+
+	dp = te.docsAndPositions(liveDocs, dp);
+	writer.addTerm(t, (int) stats[0], stats[1], encodePostings(dp, keep), bound);
+      }
+    }
+
+    return writer.close((pruner == null) ? "" : pruner.getModelName(),
+			(pruner == null) ? new double[0] : pruner.getParameters());
+  }
+
+  /**
+   *  Export the postings of the index named in a parameter file.  The
+   *  postings are written to postingsPath if that parameter is given,
+   *  otherwise next to indexPath.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java CompressedPostings paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("postingsPath") ?
+      params.get("postingsPath") : defaultPath(indexPath);
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    long start = System.currentTimeMillis();
+    long bytes = write(reader, path, null);
+    reader.close();
+
+    System.out.println("Wrote " + path + " (" + bytes + " bytes of postings) in " +
+		       (System.currentTimeMillis() - start) + " ms");
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ *  Deadline is the time budget of the query that a thread is
+ *  evaluating.  Query operators check it cooperatively in their
+ *  evaluation loops, so a query with a huge fan-out can't hold up a
+ *  batch.  When the budget runs out, the query is either cancelled,
+ *  which throws a DeadlineExceededException out of evaluation, or
+ *  stopped: each operator that checks the deadline ends its loop and
+ *  returns what it has computed so far, and the query's QryResult is
+ *  marked partial.  Operators work in docid order (or, with the impact
+ *  index, in impact order), so a partial result holds the documents
+ *  that were reached before the deadline; their scores may be missing
+ *  the contributions of lists that were cut short.
+ *
+ *  Checks are cheap: the clock is read once every CHECK_INTERVAL
+ *  checks.  Tasks that QryEval.invokeAll runs for a query share the
+ *  query's deadline through a scope: a deadline without a budget of
+ *  its own that defers to its parent and can be aborted.  When one of
+ *  the tasks fails, the scope is aborted, and the loops of the other
+ *  tasks stop at their next check.
+ *
+ *  Parameters:
+ *    queryTimeout:      Time budget of each query in milliseconds (0,
+ *                       no budget).
+ *    queryTimeoutMode:  partial (return what was found) or cancel
+ *                       (skip the query) (partial).
+ */
+
+public class Deadline {
+
+  static long timeout = 0;
+  static boolean cancel = false;
+
+  static final int CHECK_INTERVAL = 1024;
+
+  //  The deadline of the query that the current thread is evaluating.
+
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+
+  private final long end;			// System.nanoTime()
+  private final long millis;
+  private final boolean cancels;
+  private final boolean isScope;
+  private final Deadline parent;		// Of a scope
+  private volatile boolean expired = false;
+  private volatile boolean aborted = false;
+  private int checks = 0;			// Racy across threads; a count is enough.
+
+  /**
+   *  Constructor.
+   *  @param millis The time budget in milliseconds.
+   *  @param cancels Whether expiry cancels the query.
+   */
+  Deadline(long millis, boolean cancels) {
+    this.end = System.nanoTime() + millis * 1000000L;
+    this.millis = millis;
+    this.cancels = cancels;
+    this.isScope = false;
+    this.parent = null;
+  }
+
+  /**
+   *  Constructor of a scope.
+   *  @param parent The deadline that the scope defers to, or null.
+   */
+  private Deadline(Deadline parent) {
+    this.end = 0;
+    this.millis = (parent == null) ? 0 : parent.millis;
+    this.cancels = false;
+    this.isScope = true;
+    this.parent = parent;
+  }
+
+  /**
+   *  Start a scope for tasks that evaluate parts of a query.
+   *  @param parent The query's deadline, or null for none.
+   *  @return The scope.
+   */
+  static Deadline scope(Deadline parent) {
+    return new Deadline(parent);
+  }
+
+  /**
+   *  Abort a scope, so the loops that check it stop.
+   */
+  void abort() {
+    aborted = true;
+  }
+
+  /**
+   *  Start a deadline for the current thread's query.
+   *  @param millis The time budget in milliseconds, or 0 for none.
+   *  @param cancels Whether expiry cancels the query.
+   *  @return The deadline, or null if there is no budget.
+   */
+  static Deadline begin(long millis, boolean cancels) {
+    Deadline d = (millis > 0) ? new Deadline(millis, cancels) : null;
+    set(d);
+    return d;
+  }
+
+  /**
+   *  End the current thread's deadline.
+   */
+  static void end() {
+    CURRENT.remove();
+  }
+
+  /**
+   *  @return The deadline of the current thread's query, or null.
+   */
+  static Deadline current() {
+    return CURRENT.get();
+  }
+
+  /**
+   *  Make a deadline the current thread's, e.g., in a task that
+   *  evaluates part of a query.
+   *  @param d The deadline, or null for none.
+   */
+  static void set(Deadline d) {
+    if (d == null)
+      CURRENT.remove();
+    else
+      CURRENT.set(d);
+  }
+
+  /**
+   *  Check a deadline.  Operators call this once per document (or
+   *  posting) of their evaluation loop and end the loop if it returns
+   *  true.
+   *  @param d The deadline, or null for none.
+   *  @return True if evaluation should stop and return what it has.
+   *  @throws DeadlineExceededException If the deadline has passed and
+   *  expiry cancels the query, or if a scope of the deadline was
+   *  aborted.
+   */
+  static boolean expired(Deadline d) throws DeadlineExceededException {
+    return d != null && d.check();
+  }
+
+  private boolean check() throws DeadlineExceededException {
+
+    if (aborted)
+      throw new DeadlineExceededException(millis, true);
+
+    if (isScope)
+      return parent != null && parent.check();
+
+    if (! expired) {
+      if ((++checks & (CHECK_INTERVAL - 1)) != 0 || System.nanoTime() < end)
+	return false;
+      expired = true;
+    }
+
+    if (cancels)
+      throw new DeadlineExceededException(millis);
+    return true;
+  }
+
+  /**
+   *  @return True if the deadline has passed, so results that were
+   *  computed under it may be partial.
+   */
+  boolean isExpired() {
+    return isScope ? parent != null && parent.isExpired() : expired;
+  }
+}
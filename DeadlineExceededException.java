@@ -0,0 +1,49 @@
+/**
+ *  DeadlineExceededException is thrown when a query that is cancelled
+ *  on expiry runs past its time budget, and by the tasks of a query
+ *  whose scope was aborted because another of its tasks failed.
+ */
+
+import java.io.*;
+
+public class DeadlineExceededException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long timeout;
+  private final boolean aborted;
+
+  /**
+   *  Constructor.
+   *  @param timeout The time budget in milliseconds.
+   */
+  public DeadlineExceededException(long timeout) {
+    this(timeout, false);
+  }
+
+  /**
+   *  Constructor.
+   *  @param timeout The time budget in milliseconds.
+   *  @param aborted True if the scope of the task was aborted.
+   */
+  public DeadlineExceededException(long timeout, boolean aborted) {
+    super(aborted ? "Error: Query evaluation was aborted because a parallel task failed" :
+	  "Error: Query exceeded its time budget of " + timeout + " ms");
+    this.timeout = timeout;
+    this.aborted = aborted;
+  }
+
+  /**
+   *  @return The time budget in milliseconds.
+   */
+  public long getTimeout() {
+    return this.timeout;
+  }
+
+  /**
+   *  @return True if the scope of the task was aborted.
+   */
+  public boolean isAborted() {
+    return this.aborted;
+  }
+}
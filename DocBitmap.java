@@ -0,0 +1,428 @@
+/**
+ *  DocBitmap is a compressed set of internal docids, organized like a
+ *  Roaring bitmap.  Docids are partitioned by their high 16 bits into
+ *  chunks of 65536 documents.  Each non-empty chunk has a container
+ *  for the low 16 bits of its docids: a sorted array when the chunk
+ *  has at most 4096 docids, otherwise a 65536-bit bitmap.  Either way
+ *  a container takes at most 8 KB.
+ *
+ *  Intersection and union work container by container: two bitmaps
+ *  are combined a 64-bit word at a time, and arrays are merged or
+ *  probed against bitmaps.  A result container is converted to the
+ *  other kind when its cardinality crosses 4096.
+ *
+ *  A DocBitmap is immutable once built, so it can be cached and
+ *  shared by threads; and() and or() always return a new DocBitmap.
+ */
+
+import java.util.*;
+
+public class DocBitmap {
+
+  //  Chunks with more docids than this use a bitmap container.
+
+  static final int ARRAY_MAX = 4096;
+
+  private static final int WORDS = 1 << 10;		// 65536 bits
+
+  /**
+   *  The low 16 bits of the docids of one chunk.
+   */
+  static abstract class Container {
+    int cardinality;
+  }
+
+  /**
+   *  A sorted array of at most ARRAY_MAX values.
+   */
+  static final class ArrayContainer extends Container {
+    char[] values;
+
+    ArrayContainer(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+  }
+
+  /**
+   *  A bitmap of 65536 bits.
+   */
+  static final class BitmapContainer extends Container {
+    final long[] words;
+
+    BitmapContainer(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+  }
+
+  //  The high 16 bits of each chunk, in ascending order, and its
+  //  container.  Only the first size entries are used.
+
+  private char[] keys;
+  private Container[] containers;
+  private int size = 0;
+
+  /**
+   *  An empty bitmap.  Docids can be added in ascending order.
+   */
+  public DocBitmap() {
+    this(4);
+  }
+
+  private DocBitmap(int capacity) {
+    this.keys = new char[Math.max(1, capacity)];
+    this.containers = new Container[Math.max(1, capacity)];
+  }
+
+  /**
+   *  Add a docid.  Docids must be added in ascending order, and only
+   *  while the bitmap is being built.
+   *  @param docid The internal docid.
+   */
+  public void add(int docid) {
+
+    char high = (char) (docid >>> 16);
+    char low = (char) docid;
+
+    if (this.size == 0 || this.keys[this.size - 1] != high)
+      append(high, new ArrayContainer(new char[4], 0));
+
+    Container c = this.containers[this.size - 1];
+
+    if (c instanceof ArrayContainer) {
+      ArrayContainer a = (ArrayContainer) c;
+
+      if (a.cardinality > 0 && a.values[a.cardinality - 1] >= low) {
+	if (a.values[a.cardinality - 1] == low)
+	  return;
+	throw new IllegalArgumentException("Docids must be added in ascending order: " + docid);
+      }
+
+      if (a.cardinality < ARRAY_MAX) {
+	if (a.cardinality == a.values.length)
+	  a.values = Arrays.copyOf(a.values, Math.min(ARRAY_MAX, 2 * a.cardinality));
+	a.values[a.cardinality++] = low;
+	return;
+      }
+
+      c = toBitmap(a);
+      this.containers[this.size - 1] = c;
+    }
+
+    BitmapContainer b = (BitmapContainer) c;
+    long bit = 1L << low;
+
+    if ((b.words[low >>> 6] & bit) == 0) {
+      b.words[low >>> 6] |= bit;
+      b.cardinality++;
+    }
+  }
+
+  /**
+   *  Append a container for a chunk after the last one.
+   */
+  private void append(char high, Container c) {
+    if (this.size == this.keys.length) {
+      this.keys = Arrays.copyOf(this.keys, 2 * this.size);
+      this.containers = Arrays.copyOf(this.containers, 2 * this.size);
+    }
+    this.keys[this.size] = high;
+    this.containers[this.size] = c;
+    this.size++;
+  }
+
+  /**
+   *  @return The number of docids in the bitmap.
+   */
+  public int cardinality() {
+    int n = 0;
+    for (int i = 0; i < this.size; i++)
+      n += this.containers[i].cardinality;
+    return n;
+  }
+
+  /**
+   *  @return True if the bitmap has no docids.
+   */
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   *  @return The docids in ascending order.
+   */
+  public int[] toArray() {
+
+    int[] docids = new int[cardinality()];
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      int high = this.keys[i] << 16;
+      Container c = this.containers[i];
+
+      if (c instanceof ArrayContainer) {
+	ArrayContainer a = (ArrayContainer) c;
+	for (int j = 0; j < a.cardinality; j++)
+	  docids[n++] = high | a.values[j];
+      } else {
+	long[] words = ((BitmapContainer) c).words;
+	for (int w = 0; w < WORDS; w++)
+	  for (long word = words[w]; word != 0; word &= word - 1)
+	    docids[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+      }
+    }
+
+    return docids;
+  }
+
+  /**
+   *  Append every docid to a score list in ascending order, each with
+   *  the same score.
+   *  @param list The score list.
+   *  @param score The score of every document.
+   */
+  public void addTo(ScoreList list, double score) {
+    int[] docids = toArray();
+    list.ensureCapacity(list.size() + docids.length);
+    for (int docid : docids)
+      list.add(docid, score);
+  }
+
+  /**
+   *  @return The docids of an inverted list.
+   */
+  public static DocBitmap of(InvList list) {
+    DocBitmap bitmap = new DocBitmap();
+    for (int i = 0; i < list.df; i++)
+      bitmap.add(list.postings.get(i).docid);
+    return bitmap;
+  }
+
+  /**
+   *  @return The docids of a score list, which need not be in docid
+   *  order.
+   */
+  public static DocBitmap of(ScoreList list) {
+
+    int[] docids = new int[list.size()];
+    boolean sorted = true;
+
+    for (int i = 0; i < docids.length; i++) {
+      docids[i] = list.getDocid(i);
+      if (i > 0 && docids[i] < docids[i - 1])
+	sorted = false;
+    }
+
+    if (! sorted)
+      Arrays.sort(docids);
+
+    DocBitmap bitmap = new DocBitmap();
+    for (int docid : docids)
+      bitmap.add(docid);
+    return bitmap;
+  }
+
+  /**
+   *  @return The docids that are in both bitmaps.
+   */
+  public static DocBitmap and(DocBitmap x, DocBitmap y) {
+
+    DocBitmap result = new DocBitmap(Math.min(x.size, y.size));
+    int i = 0, j = 0;
+
+    while (i < x.size && j < y.size) {
+      if (x.keys[i] < y.keys[j])
+	i++;
+      else if (x.keys[i] > y.keys[j])
+	j++;
+      else {
+	Container c = and(x.containers[i], y.containers[j]);
+	if (c != null)
+	  result.append(x.keys[i], c);
+	i++;
+	j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  @return The docids that are in either bitmap.
+   */
+  public static DocBitmap or(DocBitmap x, DocBitmap y) {
+
+    DocBitmap result = new DocBitmap(x.size + y.size);
+    int i = 0, j = 0;
+
+    while (i < x.size || j < y.size) {
+      if (j == y.size || (i < x.size && x.keys[i] < y.keys[j])) {
+	result.append(x.keys[i], x.containers[i]);
+	i++;
+      } else if (i == x.size || x.keys[i] > y.keys[j]) {
+	result.append(y.keys[j], y.containers[j]);
+	j++;
+      } else {
+	result.append(x.keys[i], or(x.containers[i], y.containers[j]));
+	i++;
+	j++;
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   *  Intersect two containers.
+   *  @return The intersection, or null if it is empty.
+   */
+  private static Container and(Container x, Container y) {
+
+    if (x instanceof BitmapContainer && y instanceof BitmapContainer) {
+      long[] xw = ((BitmapContainer) x).words;
+      long[] yw = ((BitmapContainer) y).words;
+      long[] words = new long[WORDS];
+      int n = 0;
+
+      for (int w = 0; w < WORDS; w++) {
+	words[w] = xw[w] & yw[w];
+	n += Long.bitCount(words[w]);
+      }
+
+      if (n == 0)
+	return null;
+      return (n > ARRAY_MAX) ? new BitmapContainer(words, n) : toArray(words, n);
+    }
+
+    if (x instanceof BitmapContainer) {
+      Container t = x;
+      x = y;
+      y = t;
+    }
+
+    ArrayContainer a = (ArrayContainer) x;
+    char[] values = new char[Math.min(a.cardinality, y.cardinality)];
+    int n = 0;
+
+    if (y instanceof BitmapContainer) {
+      long[] words = ((BitmapContainer) y).words;
+      for (int i = 0; i < a.cardinality; i++) {
+	char v = a.values[i];
+	if ((words[v >>> 6] & (1L << v)) != 0)
+	  values[n++] = v;
+      }
+    } else {
+      ArrayContainer b = (ArrayContainer) y;
+      int i = 0, j = 0;
+      while (i < a.cardinality && j < b.cardinality) {
+	if (a.values[i] < b.values[j])
+	  i++;
+	else if (a.values[i] > b.values[j])
+	  j++;
+	else {
+	  values[n++] = a.values[i];
+	  i++;
+	  j++;
+	}
+      }
+    }
+
+    return (n == 0) ? null : new ArrayContainer(values, n);
+  }
+
+  /**
+   *  Unite two containers.
+   *  @return The union.
+   */
+  private static Container or(Container x, Container y) {
+
+    if (x instanceof ArrayContainer && y instanceof ArrayContainer) {
+      ArrayContainer a = (ArrayContainer) x;
+      ArrayContainer b = (ArrayContainer) y;
+
+      if (a.cardinality + b.cardinality > ARRAY_MAX) {
+	BitmapContainer c = toBitmap(a);
+	setAll(c, b);
+	if (c.cardinality > ARRAY_MAX)
+	  return c;
+	return toArray(c.words, c.cardinality);
+      }
+
+      char[] values = new char[a.cardinality + b.cardinality];
+      int i = 0, j = 0, n = 0;
+
+      while (i < a.cardinality || j < b.cardinality) {
+	if (j == b.cardinality || (i < a.cardinality && a.values[i] < b.values[j]))
+	  values[n++] = a.values[i++];
+	else if (i == a.cardinality || a.values[i] > b.values[j])
+	  values[n++] = b.values[j++];
+	else {
+	  values[n++] = a.values[i++];
+	  j++;
+	}
+      }
+
+      return new ArrayContainer(values, n);
+    }
+
+    if (x instanceof ArrayContainer) {
+      Container t = x;
+      x = y;
+      y = t;
+    }
+
+    BitmapContainer b = (BitmapContainer) x;
+    BitmapContainer c = new BitmapContainer(b.words.clone(), b.cardinality);
+
+    if (y instanceof ArrayContainer) {
+      setAll(c, (ArrayContainer) y);
+    } else {
+      long[] yw = ((BitmapContainer) y).words;
+      int n = 0;
+      for (int w = 0; w < WORDS; w++) {
+	c.words[w] |= yw[w];
+	n += Long.bitCount(c.words[w]);
+      }
+      c.cardinality = n;
+    }
+
+    return c;
+  }
+
+  /**
+   *  Set the bits of an array container's values in a bitmap container.
+   */
+  private static void setAll(BitmapContainer c, ArrayContainer a) {
+    for (int i = 0; i < a.cardinality; i++) {
+      char v = a.values[i];
+      long bit = 1L << v;
+      if ((c.words[v >>> 6] & bit) == 0) {
+	c.words[v >>> 6] |= bit;
+	c.cardinality++;
+      }
+    }
+  }
+
+  /**
+   *  @return A bitmap container with the values of an array container.
+   */
+  private static BitmapContainer toBitmap(ArrayContainer a) {
+    long[] words = new long[WORDS];
+    for (int i = 0; i < a.cardinality; i++)
+      words[a.values[i] >>> 6] |= 1L << a.values[i];
+    return new BitmapContainer(words, a.cardinality);
+  }
+
+  /**
+   *  @return An array container with the n bits that are set in words.
+   */
+  private static ArrayContainer toArray(long[] words, int n) {
+    char[] values = new char[n];
+    int k = 0;
+    for (int w = 0; w < WORDS; w++)
+      for (long word = words[w]; word != 0; word &= word - 1)
+	values[k++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+    return new ArrayContainer(values, n);
+  }
+}
@@ -3,39 +3,95 @@
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ *
+ * Lengths are read from the norms of each segment.  The norms of a
+ * segment never change, so when the index is refreshed, a new store
+ * reuses the segments that it shares with the previous one and only
+ * opens the norms of new segments.
  */
 public class DocLengthStore  {
 
-  private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private IndexSnapshot snapshot;
+
+  //  The norms of each segment, by field, and the docid of each
+  //  segment's first document.
+
+  private Map<Object, Map<String, NumericDocValues>> segments =
+    new HashMap<Object, Map<String, NumericDocValues>>();
+  private List<Map<String, NumericDocValues>> leafValues;
+  private int[] docBases;
 
   /**
    * @param reader IndexReader object created in {@link QryEval}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
-    this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));  
+    this(reader, null);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link QryEval}.
+   * @param previous The store of an earlier view of the index, whose
+   * segments are reused, or null.
+   */
+  public DocLengthStore(IndexReader reader, DocLengthStore previous) throws IOException {
+
+    List<AtomicReaderContext> leaves = reader.leaves();
+    this.leafValues = new ArrayList<Map<String, NumericDocValues>>(leaves.size());
+    this.docBases = new int[leaves.size()];
+
+    for (int i = 0; i < leaves.size(); i++) {
+      AtomicReader leaf = leaves.get(i).reader();
+      Object core = leaf.getCoreCacheKey();
+      Map<String, NumericDocValues> values =
+	(previous == null) ? null : previous.segments.get(core);
+
+      if (values == null) {
+	values = new HashMap<String, NumericDocValues>();
+	if (leaf.fields() != null)
+	  for (String field : leaf.fields())
+	    values.put(field, leaf.getNormValues(field));
+      }
+
+      this.segments.put(core, values);
+      this.leafValues.add(values);
+      this.docBases[i] = leaves.get(i).docBase;
     }
   }
 
+  /**
+   * @param snapshot A memory-mapped {@link IndexSnapshot}.  Lengths are
+   * read from the snapshot, so norms are not loaded.
+   */
+  public DocLengthStore(IndexSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
    * @param fieldname Name of field to access lengths. "body" is the default
    * field.
    * @param docid The internal docid in the lucene index.
+   * @return The length, or 0 if the document's segment has no norms
+   * for the field.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    if (snapshot != null)
+      return snapshot.getDocLength(fieldname, docid);
+    int i = (docBases.length == 1) ? 0 : ReaderUtil.subIndex(docid, docBases);
+    NumericDocValues values = leafValues.get(i).get(fieldname);
+    return (values == null) ? 0 : values.get(docid - docBases[i]);
   }
 }
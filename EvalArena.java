@@ -0,0 +1,69 @@
+/**
+ *  EvalArena holds the scratch buffers that query evaluation reuses
+ *  from one document, operator and query to the next, so that the
+ *  inner loops of #NEAR and score list sorting do not allocate.
+ *  Each thread has its own arena, so parallel evaluation needs no
+ *  locking.  Buffers only grow.
+ *
+ *  A buffer is valid until the next request for the same slot on the
+ *  same thread, so it must not be kept after the operator that asked
+ *  for it returns.  Results that outlive an operator (postings, score
+ *  lists) are still allocated normally.
+ */
+
+public class EvalArena {
+
+  //  Slots of int buffers.
+
+  static final int NEAR_POSITIONS = 0;
+  static final int NEAR_MATCHES = 1;
+  static final int SORT_ORDER = 2;
+  static final int SORT_TEMP = 3;
+  static final int SORT_DOCIDS = 4;
+
+  //  Slots of double buffers.
+
+  static final int SORT_SCORES = 0;
+
+  private static final ThreadLocal<EvalArena> ARENA = new ThreadLocal<EvalArena>() {
+    protected EvalArena initialValue() {
+      return new EvalArena();
+    }
+  };
+
+  private int[][] ints = new int[5][0];
+  private double[][] doubles = new double[1][0];
+
+  /**
+   *  @return The arena of the current thread.
+   */
+  static EvalArena get() {
+    return ARENA.get();
+  }
+
+  /**
+   *  Get an int buffer with room for at least n values.  Its contents
+   *  are undefined.
+   *  @param slot The buffer's slot.
+   *  @param n The number of values needed.
+   *  @return The buffer.
+   */
+  int[] ints(int slot, int n) {
+    if (ints[slot].length < n)
+      ints[slot] = new int[Math.max(n, 2 * ints[slot].length)];
+    return ints[slot];
+  }
+
+  /**
+   *  Get a double buffer with room for at least n values.  Its
+   *  contents are undefined.
+   *  @param slot The buffer's slot.
+   *  @param n The number of values needed.
+   *  @return The buffer.
+   */
+  double[] doubles(int slot, int n) {
+    if (doubles[slot].length < n)
+      doubles[slot] = new double[Math.max(n, 2 * doubles[slot].length)];
+    return doubles[slot];
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ *  EvalContext is the per-thread state of the query that a thread is
+ *  evaluating: its deadline, the federated shard and global
+ *  statistics, the pruned tier and the two-stage candidates.  Tasks
+ *  that evaluate parts of a query on other threads capture the
+ *  caller's context and install it while they run, so they see the
+ *  query as the caller does.
+ */
+
+import java.util.*;
+
+public class EvalContext {
+
+  private final Deadline deadline;
+  private final Federation.Shard shard;
+  private final Map<String, long[]> stats;
+  private final CompressedPostings tier;
+  private final int[] candidates;
+
+  private EvalContext(Deadline deadline, Federation.Shard shard, Map<String, long[]> stats,
+		      CompressedPostings tier, int[] candidates) {
+    this.deadline = deadline;
+    this.shard = shard;
+    this.stats = stats;
+    this.tier = tier;
+    this.candidates = candidates;
+  }
+
+  /**
+   *  @return The context of the current thread.
+   */
+  static EvalContext capture() {
+    return new EvalContext(Deadline.current(), Federation.CURRENT_SHARD.get(),
+			   Federation.CURRENT_STATS.get(), PrunedIndex.ACTIVE_TIER.get(),
+			   TwoStage.CANDIDATES.get());
+  }
+
+  /**
+   *  @param d A deadline.
+   *  @return This context with another deadline, e.g., a scope.
+   */
+  EvalContext withDeadline(Deadline d) {
+    return new EvalContext(d, shard, stats, tier, candidates);
+  }
+
+  /**
+   *  Make this the context of the current thread.  A thread of a pool
+   *  may run a task while it waits for another, so the context it
+   *  replaces is returned, to be restored when the task ends.
+   *  @return The context that was replaced.
+   */
+  EvalContext install() {
+    EvalContext previous = capture();
+    apply();
+    return previous;
+  }
+
+  private void apply() {
+    Deadline.set(deadline);
+    set(Federation.CURRENT_SHARD, shard);
+    set(Federation.CURRENT_STATS, stats);
+    set(PrunedIndex.ACTIVE_TIER, tier);
+    set(TwoStage.CANDIDATES, candidates);
+  }
+
+  /**
+   *  Restore a context that install() returned.
+   */
+  void restore() {
+    apply();
+  }
+
+  private static <T> void set(ThreadLocal<T> local, T value) {
+    if (value == null)
+      local.remove();
+    else
+      local.set(value);
+  }
+}
@@ -0,0 +1,357 @@
+/**
+ *  FeatureExtractor computes learning-to-rank features for candidate
+ *  documents and writes them in SVMlight or RankLib format.
+ *
+ *  For each query and field, each query term's inverted list is read
+ *  once and merged with the candidate docids.  Every configured
+ *  feature of that field is then computed from the matched tfs,
+ *  positions and document lengths, so one pass gives all features
+ *  instead of one QryEval run per retrieval model.  Queries are
+ *  processed in batches, each batch in parallel on QryEval's pool, and
+ *  written in query file order.
+ *
+ *  Features, computed for each field in letor:fields:
+ *    bm25:       BM25 with BM25:k_1 and BM25:b.
+ *    indri:      Indri with Indri:mu and Indri:lambda.
+ *    overlap:    Fraction of the query terms that occur in the field.
+ *    proximity:  Number of times consecutive query terms are adjacent.
+ *    length:     Field length.
+ *  Feature i of field j has number j * (number of features) + i + 1.
+ *
+ *  Parameters:
+ *    letor:featureOutputFile:  Where features are written.  Setting it
+ *                              turns on feature extraction.
+ *    letor:format:             svmlight (sparse, the default) or ranklib (dense).
+ *    letor:fields:             Fields (body,title,url,inlink).
+ *    letor:features:           Features (bm25,indri,overlap,proximity,length).
+ *    letor:candidateFile:      A TREC run file with the candidates; if it
+ *                              isn't given, the top letor:candidates
+ *                              documents of retrievalAlgorithm are used.
+ *    letor:candidates:         Number of candidates per query (100).
+ *    letor:qrelsFile:          Relevance judgments for labels (default 0).
+ *    letor:batchSize:          Queries processed in parallel (32).
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+public class FeatureExtractor {
+
+  static final List<String> ALL_FEATURES =
+    Arrays.asList("bm25", "indri", "overlap", "proximity", "length");
+
+  String[] fields = { "body", "title", "url", "inlink" };
+  List<String> features = ALL_FEATURES;
+  boolean dense = false;
+  int numCandidates = 100;
+  int batchSize = 32;
+  double k1 = 1.2, b = 0.75, mu = 2500, lambda = 0.4;
+
+  //  Candidates read from a run file, and relevance labels, by query id.
+
+  Map<Integer, List<String>> candidateFile = null;
+  Map<String, Integer> labels = new HashMap<String, Integer>();
+
+  /**
+   *  Constructor.  Read the feature extraction parameters.
+   *  @param params The parameters.
+   *  @throws IOException
+   */
+  public FeatureExtractor(Map<String, String> params) throws IOException {
+
+    if (params.containsKey("letor:fields"))
+      fields = params.get("letor:fields").split(",");
+    if (params.containsKey("letor:features")) {
+      features = Arrays.asList(params.get("letor:features").split(","));
+      for (String f : features)
+	if (! ALL_FEATURES.contains(f))
+	  QryEval.fatalError("Error: Unknown feature " + f);
+    }
+    dense = "ranklib".equalsIgnoreCase(params.get("letor:format"));
+    if (params.containsKey("letor:candidates"))
+      numCandidates = Integer.parseInt(params.get("letor:candidates"));
+    if (params.containsKey("letor:batchSize"))
+      batchSize = Integer.parseInt(params.get("letor:batchSize"));
+    if (params.containsKey("BM25:k_1"))
+      k1 = Double.parseDouble(params.get("BM25:k_1"));
+    if (params.containsKey("BM25:b"))
+      b = Double.parseDouble(params.get("BM25:b"));
+    if (params.containsKey("Indri:mu"))
+      mu = Double.parseDouble(params.get("Indri:mu"));
+    if (params.containsKey("Indri:lambda"))
+      lambda = Double.parseDouble(params.get("Indri:lambda"));
+
+    //  Run files and qrels have the query id, then an ignored column,
+    //  then the external docid; qrels end with the label.
+
+    if (params.containsKey("letor:candidateFile")) {
+      candidateFile = new HashMap<Integer, List<String>>();
+      BufferedReader br = new BufferedReader(new FileReader(params.get("letor:candidateFile")));
+      for (String line; (line = br.readLine()) != null; ) {
+	String[] cols = line.trim().split("\\s+");
+	if (cols.length < 3)
+	  continue;
+	int qid = Integer.parseInt(cols[0]);
+	if (! candidateFile.containsKey(qid))
+	  candidateFile.put(qid, new ArrayList<String>());
+	if (candidateFile.get(qid).size() < numCandidates)
+	  candidateFile.get(qid).add(cols[2]);
+      }
+      br.close();
+    }
+
+    if (params.containsKey("letor:qrelsFile")) {
+      BufferedReader br = new BufferedReader(new FileReader(params.get("letor:qrelsFile")));
+      for (String line; (line = br.readLine()) != null; ) {
+	String[] cols = line.trim().split("\\s+");
+	if (cols.length >= 4)
+	  labels.put(cols[0] + " " + cols[2], Integer.parseInt(cols[3]));
+      }
+      br.close();
+    }
+  }
+
+  /**
+   *  Extract features for every query and write them in query file order.
+   *  Queries are read from the stream one batch at a time.  A query
+   *  that can't be parsed is reported and skipped.
+   *  @param queries The queries.
+   *  @param filename The feature file.
+   *  @throws IOException
+   */
+  public void run(QueryStream queries, String filename) throws IOException {
+
+    BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
+
+    try {
+      while (true) {
+	List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+
+	for (QueryStream.Query q; tasks.size() < batchSize && (q = queries.next()) != null; ) {
+	  final QueryStream.Query query = q;
+	  tasks.add(new Callable<String>() {
+	    public String call() throws Exception {
+	      try {
+		return extract(query.id, query.text);
+	      } catch (QuerySyntaxException e) {
+		System.err.println("Warning: Skipping query " + query.id + " (line " + query.line + "): " + e.getMessage());
+		return "";
+	      }
+	    }
+	  });
+	}
+
+	if (tasks.isEmpty())
+	  break;
+
+	for (String lines : QryEval.invokeAll(tasks))
+	  writer.write(lines);
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   *  Find the candidates of a query, in ascending docid order.
+   */
+  int[] getCandidates(int qid, String query) throws Exception {
+
+    int[] docids;
+
+    if (candidateFile != null) {
+      List<String> ids = candidateFile.get(qid);
+      if (ids == null)
+	return new int[0];
+      docids = new int[ids.size()];
+      int n = 0;
+      for (String id : ids) {
+	try {
+	  docids[n] = QryEval.getInternalDocid(id);
+	  n++;
+	} catch (Exception e) {
+	  System.err.println("Warning: Skipping candidate " + id + " of query " + qid +
+			     ": it is not in the index.");
+	}
+      }
+      docids = Arrays.copyOf(docids, n);
+    } else {
+      QryResult res = QryEval.evaluateQuery(query);
+      if (res.invertedList.df > 0)
+	QryEval.convertToScorelist(res);
+      ScoreList top = Federation.topDocs(res.docScores, numCandidates);
+      docids = new int[top.size()];
+      for (int i = 0; i < docids.length; i++)
+	docids[i] = top.getDocid(i);
+    }
+
+    Arrays.sort(docids);
+    return docids;
+  }
+
+  /**
+   *  The distinct query terms, after lexical processing, in query
+   *  order.  They are the leaves of the query's plan; query operators,
+   *  weights and field names are ignored.
+   */
+  static List<String> getQueryTerms(String query) throws IOException {
+
+    List<String> terms = new ArrayList<String>();
+
+    for (QryopIlTerm t : QueryParser.terms(query))
+      if (! terms.contains(t.getTerm()))
+	terms.add(t.getTerm());
+
+    return terms;
+  }
+
+  /**
+   *  Extract the features of one query's candidates.
+   *  @param qid The query id.
+   *  @param query The query.
+   *  @return One line per candidate.
+   *  @throws Exception
+   */
+  String extract(int qid, String query) throws Exception {
+
+    int[] docids = getCandidates(qid, query);
+    List<String> terms = getQueryTerms(query);
+    int nf = features.size();
+    double[][] values = new double[docids.length][fields.length * nf];
+
+    for (int f = 0; f < fields.length; f++)
+      extractField(fields[f], terms, docids, values, f * nf);
+
+    StringBuilder lines = new StringBuilder();
+
+    for (int d = 0; d < docids.length; d++) {
+      String externalId = QryEval.getExternalDocid(docids[d]);
+      Integer label = labels.get(qid + " " + externalId);
+
+      lines.append((label == null) ? 0 : label).append(" qid:").append(qid);
+      for (int i = 0; i < values[d].length; i++)
+	if (dense || values[d][i] != 0.0)
+	  lines.append(' ').append(i + 1).append(':').append(values[d][i]);
+      lines.append(" # ").append(externalId).append('\n');
+    }
+
+    return lines.toString();
+  }
+
+  /**
+   *  Compute every feature of one field for all of the candidates.
+   *  @param field The field.
+   *  @param terms The query terms.
+   *  @param docids The candidates, in ascending order.
+   *  @param values The feature values, by candidate.
+   *  @param base The index of the field's first feature.
+   *  @throws IOException
+   */
+  void extractField(String field, List<String> terms, int[] docids,
+		    double[][] values, int base) throws IOException {
+
+    int nt = terms.size();
+    int[][] tf = new int[docids.length][nt];
+    List<List<int[]>> positions = new ArrayList<List<int[]>>();
+    double[] rsj = new double[nt];
+    double[] pc = new double[nt];
+    int N = QryEval.numDocs();
+    long C = QryEval.getSumTotalTermFreq(field);
+    double avgLen = ((double) C) / ((double) QryEval.getDocCount(field));
+
+    for (int d = 0; d < docids.length; d++) {
+      List<int[]> p = new ArrayList<int[]>();
+      for (int t = 0; t < nt; t++)
+	p.add(null);
+      positions.add(p);
+    }
+
+    //  One merge of each term's inverted list with the candidates.
+
+    for (int t = 0; t < nt; t++) {
+      InvList list = new QryopIlTerm(terms.get(t), field).evaluate(QryEval.model).invertedList;
+      int df = list.getCollectionDf();
+
+      rsj[t] = Math.log((N - df + 0.5) / (df + 0.5));
+      pc[t] = (C == 0) ? 0.0 : ((double) list.getCollectionCtf()) / ((double) C);
+
+      for (int i = 0, d = 0; i < list.df && d < docids.length; ) {
+	InvList.DocPosting p = list.postings.get(i);
+
+	if (p.docid < docids[d])
+	  i++;
+	else if (p.docid > docids[d])
+	  d++;
+	else {
+	  tf[d][t] = p.tf;
+	  positions.get(d).set(t, p.positions);
+	  i++;
+	  d++;
+	}
+      }
+    }
+
+    for (int d = 0; d < docids.length; d++) {
+      long docLen = QryEval.DocLenStore.getDocLength(field, docids[d]);
+      double bm25 = 0.0, indri = 1.0;
+      int matched = 0, adjacent = 0;
+
+      for (int t = 0; t < nt; t++) {
+	int termFreq = tf[d][t];
+
+	if (termFreq > 0) {
+	  matched++;
+	  bm25 += rsj[t] * termFreq / (termFreq + k1 * ((1 - b) + b * (docLen / avgLen)));
+	}
+	indri *= Math.pow((lambda * ((termFreq + mu * pc[t]) / (docLen + mu))) + ((1 - lambda) * pc[t]),
+			  1.0 / nt);
+
+	if (t > 0)
+	  adjacent += countAdjacent(positions.get(d).get(t - 1), positions.get(d).get(t));
+      }
+
+      for (int i = 0; i < features.size(); i++) {
+	String feature = features.get(i);
+	double v;
+
+	if (feature.equals("bm25"))
+	  v = bm25;
+	else if (feature.equals("indri"))
+	  v = (nt == 0) ? 0.0 : indri;
+	else if (feature.equals("overlap"))
+	  v = (nt == 0) ? 0.0 : ((double) matched) / nt;
+	else if (feature.equals("proximity"))
+	  v = adjacent;
+	else
+	  v = docLen;
+
+	values[d][base + i] = v;
+      }
+    }
+  }
+
+  /**
+   *  Count the positions p of a where p + 1 is a position of b.
+   */
+  static int countAdjacent(int[] a, int[] b) {
+
+    if (a == null || b == null)
+      return 0;
+
+    int count = 0;
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      int next = a[i] + 1;
+      if (b[j] < next)
+	j++;
+      else if (b[j] > next)
+	i++;
+      else {
+	count++;
+	i++;
+	j++;
+      }
+    }
+    return count;
+  }
+}
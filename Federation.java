@@ -0,0 +1,265 @@
+/**
+ *  Federation searches several Lucene indexes as one collection.
+ *
+ *  The indexes are combined in a MultiReader, which gives every
+ *  document a federation-wide docid (the index's docBase plus its
+ *  docid within the index) and aggregates the collection statistics
+ *  (N, df, ctf, sumTotalTermFreq, docCount) across all indexes.
+ *  QryEval.READER is the MultiReader, so DocLengthStore, external ids
+ *  and the statistics used for scoring are global.
+ *
+ *  A query is parsed and evaluated separately for each index, in
+ *  parallel.  While a query is evaluated for an index, InvList reads
+ *  that index's postings but takes df and ctf from the whole
+ *  federation, so BM25 RSJ weights and Indri PMLEs are the same as
+ *  they would be for one combined index.  The top k documents of each
+ *  index are then merged.
+ *
+ *  Operators such as #SYN and #NEAR create inverted lists whose df
+ *  and ctf are not in the index.  Before a query is evaluated, these
+ *  operators are evaluated on every index and their statistics are
+ *  summed, and QryopSlScore uses the sums.
+ *
+ *  The segments of one index can be searched the same way (see
+ *  segments()): each segment is a shard whose reader is the segment's
+ *  leaf reader and whose docBase is the segment's, so postings are
+ *  read from the segment directly instead of through the composite
+ *  reader's merged views, segments are evaluated in parallel, and
+ *  statistics stay those of the whole index.
+ *
+ *  Parameters:
+ *    segmentParallel:  Evaluate the segments of the index in parallel
+ *                      (false).  Faster paths (bitmaps, impacts, the
+ *                      pruned tier) are still used when they apply.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+
+public class Federation {
+
+  /**
+   *  One index of the federation.
+   */
+  static class Shard {
+    IndexReader reader;
+    int docBase;
+  }
+
+  //  The index that the current thread is evaluating a query for.
+
+  static final ThreadLocal<Shard> CURRENT_SHARD = new ThreadLocal<Shard>();
+
+  //  The federation-wide df and ctf of the query's inverted list
+  //  operators, keyed by the operator's string form.
+
+  static final ThreadLocal<Map<String, long[]>> CURRENT_STATS =
+    new ThreadLocal<Map<String, long[]>>();
+
+  List<Shard> shards = new ArrayList<Shard>();
+  MultiReader reader;
+
+  /**
+   *  Constructor.  Open every index of the federation.
+   *  @param indexPaths The paths of the indexes.
+   *  @throws IOException
+   */
+  public Federation(String[] indexPaths) throws IOException {
+
+    IndexReader[] readers = new IndexReader[indexPaths.length];
+    int docBase = 0;
+
+    for (int i = 0; i < indexPaths.length; i++) {
+      Shard shard = new Shard();
+      shard.reader = DirectoryReader.open(FSDirectory.open(new File(indexPaths[i].trim())));
+      shard.docBase = docBase;
+      docBase += shard.reader.maxDoc();
+      readers[i] = shard.reader;
+      this.shards.add(shard);
+    }
+
+    this.reader = new MultiReader(readers);
+  }
+
+  /**
+   *  @return A reader over all of the federation's indexes.
+   */
+  public IndexReader getReader() {
+    return this.reader;
+  }
+
+  /**
+   *  Evaluate a query on every index in parallel and merge the top k
+   *  documents of each index.
+   *  @param qString A string containing a query.
+   *  @param r A retrieval model that controls how the query is evaluated.
+   *  @param k The number of documents to keep from each index.
+   *  @return The merged result.
+   *  @throws IOException
+   */
+  public QryResult evaluate(String qString, RetrievalModel r, int k) throws IOException {
+    return evaluate(this.shards, qString, r, k);
+  }
+
+  /**
+   *  Get the segments of an index as shards.
+   *  @param reader The index.
+   *  @return A shard for each segment, in docid order.
+   */
+  static List<Shard> segments(IndexReader reader) {
+
+    List<Shard> segments = new ArrayList<Shard>();
+
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      Shard shard = new Shard();
+      shard.reader = leaf.reader();
+      shard.docBase = leaf.docBase;
+      segments.add(shard);
+    }
+
+    return segments;
+  }
+
+  /**
+   *  Evaluate a query on every shard in parallel and merge the top k
+   *  documents of each shard.
+   *  @param shards The shards.
+   *  @param qString A string containing a query.
+   *  @param r A retrieval model that controls how the query is evaluated.
+   *  @param k The number of documents to keep from each shard.
+   *  @return The merged result.
+   *  @throws IOException
+   */
+  static QryResult evaluate(List<Shard> shards, final String qString, final RetrievalModel r,
+			    final int k) throws IOException {
+
+    //  First sum the statistics of the query's inverted list operators,
+    //  if it has any.
+
+    List<Qryop> listOps = new ArrayList<Qryop>();
+    collectListOperators(QryEval.parseQuery(qString), listOps);
+
+    List<Callable<Map<String, long[]>>> statTasks = new ArrayList<Callable<Map<String, long[]>>>();
+
+    for (final Shard shard : (listOps.isEmpty() ? new ArrayList<Shard>() : shards)) {
+      statTasks.add(new Callable<Map<String, long[]>>() {
+	public Map<String, long[]> call() throws Exception {
+	  CURRENT_SHARD.set(shard);
+	  try {
+	    List<Qryop> ops = new ArrayList<Qryop>();
+	    Map<String, long[]> stats = new HashMap<String, long[]>();
+
+	    collectListOperators(QryEval.parseQuery(qString), ops);
+	    for (Qryop op : ops) {
+	      InvList list = op.evaluate(r).invertedList;
+	      stats.put(op.toString(), new long[] { list.df, list.ctf });
+	    }
+
+	    return stats;
+	  } finally {
+	    CURRENT_SHARD.remove();
+	  }
+	}
+      });
+    }
+
+    final Map<String, long[]> globalStats = new HashMap<String, long[]>();
+
+    for (Map<String, long[]> stats : QryEval.invokeAll(statTasks)) {
+      for (Map.Entry<String, long[]> e : stats.entrySet()) {
+	long[] sum = globalStats.get(e.getKey());
+	if (sum == null)
+	  globalStats.put(e.getKey(), e.getValue());
+	else {
+	  sum[0] += e.getValue()[0];
+	  sum[1] += e.getValue()[1];
+	}
+      }
+    }
+
+    //  Then evaluate the query on each index.
+
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+
+    for (final Shard shard : shards) {
+      tasks.add(new Callable<ScoreList>() {
+	public ScoreList call() throws Exception {
+	  CURRENT_SHARD.set(shard);
+	  CURRENT_STATS.set(globalStats);
+	  try {
+	    QryResult res = QryEval.parseQuery(qString).evaluate(r);
+
+	    if (res.invertedList.df > 0)
+	      QryEval.convertToScorelist(res);
+
+	    return topDocs(res.docScores, k);
+	  } finally {
+	    CURRENT_SHARD.remove();
+	    CURRENT_STATS.remove();
+	  }
+	}
+      });
+    }
+
+    QryResult result = new QryResult();
+
+    for (ScoreList shardScores : QryEval.invokeAll(tasks))
+      for (int i = 0; i < shardScores.size(); i++)
+	result.docScores.add(shardScores.getDocid(i), shardScores.getDocidScore(i));
+
+    return result;
+  }
+
+  /**
+   *  Collect the outermost inverted list operators of a query other
+   *  than terms, e.g., #SYN and #NEAR.
+   */
+  static void collectListOperators(Qryop q, List<Qryop> ops) {
+    if (q instanceof QryopIl) {
+      if (! (q instanceof QryopIlTerm))
+	ops.add(q);
+    } else {
+      for (Qryop arg : q.args)
+	collectListOperators(arg, ops);
+    }
+  }
+
+  /**
+   *  During federated search, give the inverted list that an operator
+   *  produced the federation-wide df and ctf of that operator.  Term
+   *  lists get theirs from InvList, so only other operators are looked up.
+   *  @param op The operator.
+   *  @param list The inverted list that the operator produced.
+   */
+  static void applyGlobalStats(Qryop op, InvList list) {
+
+    Map<String, long[]> stats = CURRENT_STATS.get();
+
+    if (stats == null || op instanceof QryopIlTerm)
+      return;
+
+    long[] s = stats.get(op.toString());
+    if (s != null) {
+      list.collectionDf = (int) s[0];
+      list.collectionCtf = s[1];
+    }
+  }
+
+  /**
+   *  Return the k highest-scoring documents of a score list.
+   */
+  static ScoreList topDocs(ScoreList scores, int k) {
+
+    scores.sort_array();
+
+    ScoreList top = new ScoreList();
+    for (int i = 0; i < scores.size() && i < k; i++)
+      top.add(scores.getDocid(i), scores.getDocidScore(i));
+
+    return top;
+  }
+}
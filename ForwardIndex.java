@@ -0,0 +1,464 @@
+/**
+ *  ForwardIndex is a read-only, memory-mapped forward index that is
+ *  built offline from the term vectors of a Lucene index.  TermVector
+ *  reads documents from it instead of rebuilding Lucene's term
+ *  vectors, which allocates a String and a Term for every stem.
+ *
+ *  The build is run offline (java ForwardIndex paramFile) and writes
+ *  indexPath + ".forward".  Each field has a stem dictionary, sorted
+ *  by stem, with the df and ctf of every stem.  Stem ids are 1-based
+ *  positions in the dictionary; 0 means a stopword.  Each document is
+ *  stored, for each field, as
+ *
+ *    n, the n stem ids of the document in ascending order, their n
+ *    tfs, the field length, and the stem (1..n) at each position
+ *
+ *  so that a TermVector is filled with a few bulk reads.  Files may be
+ *  larger than 2GB.  Document data is mapped in CHUNK_SIZE pieces and a
+ *  document never crosses a chunk boundary.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class ForwardIndex {
+
+  static final int MAGIC = 0x51454649;		// "QEFI"
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+  static final long CHUNK_SIZE = 1L << 30;
+  static final int STEM_RECORD_SIZE = 8 + 4 + 8;
+
+  //  Per-field stem dictionary and document offsets.
+
+  class FieldInfo {
+    String name;
+    int numStems;
+    ByteBuffer stemRecords;	// stemBytesOffset, df, ctf
+    ByteBuffer stemBytes;
+    ByteBuffer docOffsets;	// maxDoc longs
+  }
+
+  long generation;
+  int maxDoc;
+  Map<String, FieldInfo> fields = new HashMap<String, FieldInfo>();
+  ByteBuffer[] chunks;
+
+  /**
+   *  Returns the default location of the forward index for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the forward index.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".forward";
+  }
+
+  /**
+   *  Open and memory-map a forward index.  If the file does not exist
+   *  or was built from a different generation of the index, null is
+   *  returned, so the caller can fall back to Lucene's term vectors.
+   *  @param path The forward index file.
+   *  @param reader The index reader that the forward index must match.
+   *  @return The forward index, or null if it can't be used.
+   *  @throws IOException
+   */
+  public static ForwardIndex open(String path, IndexReader reader) throws IOException {
+
+    File f = new File(path);
+
+    if (! f.exists())
+      return null;
+
+    ForwardIndex fi = new ForwardIndex(f);
+
+    if (fi.generation != IndexSnapshot.indexGeneration(reader) || fi.maxDoc != reader.maxDoc()) {
+      System.err.println("Warning:  Forward index " + path +
+			 " does not match the index generation.  Ignoring it.");
+      return null;
+    }
+
+    return fi;
+  }
+
+  /**
+   *  Constructor.  Memory-map an existing forward index.
+   *  @param f The forward index file.
+   *  @throws IOException
+   */
+  public ForwardIndex(File f) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    FileChannel ch = raf.getChannel();
+
+    try {
+      ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC)
+	throw new IOException("Not a forward index:  " + f);
+      if (header.getInt() != VERSION)
+	throw new IOException("Unsupported forward index version:  " + f);
+
+      this.generation = header.getLong();
+      this.maxDoc = header.getInt();
+      long tocOffset = header.getLong();
+
+      DataInputStream toc = new DataInputStream(new BufferedInputStream(
+	Channels.newInputStream(ch.position(tocOffset))));
+
+      long dataLength = toc.readLong();
+      int numChunks = (int) ((dataLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+      this.chunks = new ByteBuffer[numChunks];
+
+      for (int i = 0; i < numChunks; i++) {
+	long start = i * CHUNK_SIZE;
+	long len = Math.min(CHUNK_SIZE, dataLength - start);
+	this.chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start, len);
+      }
+
+      int numFields = toc.readInt();
+
+      for (int i = 0; i < numFields; i++) {
+	FieldInfo fi = new FieldInfo();
+	fi.name = toc.readUTF();
+	fi.numStems = toc.readInt();
+	long recordsOffset = toc.readLong();
+	fi.stemRecords = ch.map(FileChannel.MapMode.READ_ONLY, recordsOffset,
+				(long) STEM_RECORD_SIZE * fi.numStems);
+	long stemBytesOffset = toc.readLong();
+	fi.stemBytes = ch.map(FileChannel.MapMode.READ_ONLY, stemBytesOffset, toc.readLong());
+	long docOffsetsOffset = toc.readLong();
+	fi.docOffsets = ch.map(FileChannel.MapMode.READ_ONLY, docOffsetsOffset, 8L * this.maxDoc);
+	this.fields.put(fi.name, fi);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Returns true if the forward index has the field.
+   */
+  public boolean hasField(String fieldname) {
+    return this.fields.containsKey(fieldname);
+  }
+
+  /**
+   *  Get the string of a stem.
+   *  @param fieldname The field.
+   *  @param id The stem id (1-based).
+   *  @return The stem string.
+   */
+  public String getStem(String fieldname, int id) {
+    FieldInfo fi = this.fields.get(fieldname);
+    int start = (int) fi.stemRecords.getLong((id - 1) * STEM_RECORD_SIZE);
+    int end = (id < fi.numStems) ?
+      (int) fi.stemRecords.getLong(id * STEM_RECORD_SIZE) : fi.stemBytes.capacity();
+    byte[] b = new byte[end - start];
+    for (int i = 0; i < b.length; i++)
+      b[i] = fi.stemBytes.get(start + i);
+    return new String(b, IndexSnapshot.UTF8);
+  }
+
+  /**
+   *  @return The document frequency of a stem.
+   */
+  public int docFreq(String fieldname, int id) {
+    return this.fields.get(fieldname).stemRecords.getInt((id - 1) * STEM_RECORD_SIZE + 8);
+  }
+
+  /**
+   *  @return The collection term frequency of a stem.
+   */
+  public long totalTermFreq(String fieldname, int id) {
+    return this.fields.get(fieldname).stemRecords.getLong((id - 1) * STEM_RECORD_SIZE + 12);
+  }
+
+  /**
+   *  Binary search the stem dictionary of a field.
+   *  @return The stem id, or 0 if the stem doesn't occur.
+   */
+  public int getStemId(String fieldname, String stem) {
+
+    FieldInfo fi = this.fields.get(fieldname);
+
+    if (fi == null)
+      return 0;
+
+    byte[] key = stem.getBytes(IndexSnapshot.UTF8);
+    int lo = 0;
+    int hi = fi.numStems - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = (int) fi.stemRecords.getLong(mid * STEM_RECORD_SIZE);
+      int end = (mid + 1 < fi.numStems) ?
+	(int) fi.stemRecords.getLong((mid + 1) * STEM_RECORD_SIZE) : fi.stemBytes.capacity();
+      int cmp = IndexSnapshot.compareBytes(fi.stemBytes, start, end, key);
+
+      if (cmp < 0)
+	lo = mid + 1;
+      else if (cmp > 0)
+	hi = mid - 1;
+      else
+	return mid + 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   *  Read a document's field.  Each array has a 0'th entry for
+   *  stopwords, like TermVector's.
+   *  @param fieldname The field.
+   *  @param docid The internal document id.
+   *  @return { stem ids, stem tfs, the stem index at each position }.
+   */
+  public int[][] getVector(String fieldname, int docid) {
+
+    FieldInfo fi = this.fields.get(fieldname);
+    long offset = fi.docOffsets.getLong(docid * 8);
+    ByteBuffer buf = this.chunks[(int) (offset / CHUNK_SIZE)];
+    int pos = (int) (offset % CHUNK_SIZE);
+
+    int n = buf.getInt(pos);
+    int[] ids = new int[n + 1];
+    int[] tfs = new int[n + 1];
+    pos += 4;
+
+    for (int i = 1; i <= n; i++, pos += 4)
+      ids[i] = buf.getInt(pos);
+    for (int i = 1; i <= n; i++, pos += 4)
+      tfs[i] = buf.getInt(pos);
+
+    int len = buf.getInt(pos);
+    int[] positions = new int[len];
+    pos += 4;
+
+    for (int i = 0; i < len; i++, pos += 4)
+      positions[i] = buf.getInt(pos);
+
+    return new int[][] { ids, tfs, positions };
+  }
+
+  /**
+   *  Build a forward index from the term vectors of every field that
+   *  has them.
+   *  @param reader The index.
+   *  @param path The forward index file to write.
+   *  @return The number of bytes of document data.
+   *  @throws IOException
+   */
+  public static long write(IndexReader reader, String path) throws IOException {
+
+    File tmp = new File(path + ".tmp");
+    IndexSnapshot.CountingOutputStream counter = new IndexSnapshot.CountingOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    DataOutputStream out = new DataOutputStream(counter);
+    int maxDoc = reader.maxDoc();
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(IndexSnapshot.indexGeneration(reader));
+    out.writeInt(maxDoc);
+    out.writeLong(0);		// TOC offset, patched below.
+
+    //  A field is included if any document has a term vector for it.
+
+    List<String> fieldNames = new ArrayList<String>();
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      for (int d = 0; d < maxDoc; d++) {
+	if (reader.getTermVector(d, field) != null) {
+	  fieldNames.add(field);
+	  break;
+	}
+      }
+    }
+    Collections.sort(fieldNames);
+
+    List<Map<String, Integer>> stemIds = new ArrayList<Map<String, Integer>>();
+    List<ByteArrayOutputStream> records = new ArrayList<ByteArrayOutputStream>();
+    List<ByteArrayOutputStream> stemStrings = new ArrayList<ByteArrayOutputStream>();
+    List<long[]> docOffsets = new ArrayList<long[]>();
+
+    //  Stem dictionaries come from the index's terms, so that ids are
+    //  collection-wide.  df and ctf count only live documents, as the
+    //  statistics of TermVector.getStats do.
+
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    for (String field : fieldNames) {
+      Map<String, Integer> ids = new HashMap<String, Integer>();
+      ByteArrayOutputStream recBytes = new ByteArrayOutputStream();
+      DataOutputStream recOut = new DataOutputStream(recBytes);
+      ByteArrayOutputStream stemBytes = new ByteArrayOutputStream();
+      TermsEnum te = MultiFields.getTerms(reader, field).iterator(null);
+      BytesRef t;
+
+      while ((t = te.next()) != null) {
+	ids.put(t.utf8ToString(), ids.size() + 1);
+	recOut.writeLong(stemBytes.size());
+	long[] stats = TermVector.liveStats(te, liveDocs);
+	recOut.writeInt((int) stats[0]);
+	recOut.writeLong(stats[1]);
+	stemBytes.write(t.bytes, t.offset, t.length);
+      }
+
+      stemIds.add(ids);
+      records.add(recBytes);
+      stemStrings.add(stemBytes);
+      docOffsets.add(new long[maxDoc]);
+    }
+
+    //  Document data, field by field.
+
+    for (int f = 0; f < fieldNames.size(); f++) {
+      String field = fieldNames.get(f);
+      Map<String, Integer> ids = stemIds.get(f);
+      long[] offsets = docOffsets.get(f);
+      int[] docIds = new int[16];
+      int[] docTfs = new int[16];
+      int[] positions = new int[16];
+      DocsAndPositionsEnum dp = null;
+
+      for (int d = 0; d < maxDoc; d++) {
+	Terms vector = reader.getTermVector(d, field);
+	int n = 0;
+	int len = 0;
+
+	if (vector != null) {
+	  TermsEnum te = vector.iterator(null);
+	  BytesRef t;
+
+	  while ((t = te.next()) != null) {
+	    if (n == docIds.length) {
+	      docIds = Arrays.copyOf(docIds, 2 * n);
+	      docTfs = Arrays.copyOf(docTfs, 2 * n);
+	    }
+
+	    Integer id = ids.get(t.utf8ToString());
+	    docIds[n] = (id == null) ? 0 : id;
+	    docTfs[n] = (int) te.totalTermFreq();
+	    n++;
+
+	    dp = te.docsAndPositions(null, dp);
+	    dp.nextDoc();
+	    for (int j = 0; j < dp.freq(); j++) {
+	      int p = dp.nextPosition();
+	      if (p >= positions.length)
+		positions = Arrays.copyOf(positions, Math.max(2 * positions.length, p + 1));
+	      if (p >= len) {
+		Arrays.fill(positions, len, p + 1, 0);
+		len = p + 1;
+	      }
+	      positions[p] = n;
+	    }
+	  }
+	}
+
+	//  Don't let the document cross a chunk boundary.
+
+	long size = 4L * (2 + 2 * n + len);
+	long dataPos = counter.count - HEADER_SIZE;
+	if (dataPos / CHUNK_SIZE != (dataPos + size - 1) / CHUNK_SIZE) {
+	  long pad = CHUNK_SIZE - (dataPos % CHUNK_SIZE);
+	  for (long i = 0; i < pad; i++)
+	    out.write(0);
+	  dataPos += pad;
+	}
+	offsets[d] = dataPos;
+
+	out.writeInt(n);
+	for (int i = 0; i < n; i++)
+	  out.writeInt(docIds[i]);
+	for (int i = 0; i < n; i++)
+	  out.writeInt(docTfs[i]);
+	out.writeInt(len);
+	for (int i = 0; i < len; i++)
+	  out.writeInt(positions[i]);
+      }
+    }
+
+    long dataLength = counter.count - HEADER_SIZE;
+
+    //  Stem dictionaries and document offsets, then the TOC.
+
+    long[] recordOffsets = new long[fieldNames.size()];
+    long[] stemBytesOffsets = new long[fieldNames.size()];
+    long[] docOffsetsOffsets = new long[fieldNames.size()];
+
+    for (int f = 0; f < fieldNames.size(); f++) {
+      recordOffsets[f] = counter.count;
+      records.get(f).writeTo(out);
+      stemBytesOffsets[f] = counter.count;
+      stemStrings.get(f).writeTo(out);
+      docOffsetsOffsets[f] = counter.count;
+      for (long offset : docOffsets.get(f))
+	out.writeLong(offset);
+    }
+
+    long tocOffset = counter.count;
+    out.writeLong(dataLength);
+    out.writeInt(fieldNames.size());
+
+    for (int f = 0; f < fieldNames.size(); f++) {
+      out.writeUTF(fieldNames.get(f));
+      out.writeInt(stemIds.get(f).size());
+      out.writeLong(recordOffsets[f]);
+      out.writeLong(stemBytesOffsets[f]);
+      out.writeLong(stemStrings.get(f).size());
+      out.writeLong(docOffsetsOffsets[f]);
+    }
+    out.close();
+
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    raf.seek(HEADER_SIZE - 8);
+    raf.writeLong(tocOffset);
+    raf.close();
+
+    File dest = new File(path);
+    if ((dest.exists() && ! dest.delete()) || ! tmp.renameTo(dest))
+      throw new IOException("Unable to replace " + path);
+
+    return dataLength;
+  }
+
+  /**
+   *  Build the forward index of the index named in a parameter file.
+   *  It is written to forwardPath if that parameter is given, otherwise
+   *  next to indexPath.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java ForwardIndex paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("forwardPath") ?
+      params.get("forwardPath") : defaultPath(indexPath);
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    long start = System.currentTimeMillis();
+    long bytes = write(reader, path);
+    reader.close();
+
+    System.out.println("Wrote " + path + " (" + bytes + " bytes of documents) in " +
+		       (System.currentTimeMillis() - start) + " ms");
+  }
+}
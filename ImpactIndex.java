@@ -0,0 +1,648 @@
+/**
+ *  ImpactIndex is a precomputed BM25 index for fixed k_1 and b.  For
+ *  every posting it stores the term's BM25 score (RSJ weight times tf
+ *  weight) quantized to 8 bits, and it groups each term's postings
+ *  into segments of equal impact that are ordered from the highest
+ *  score to the lowest.
+ *
+ *  A #SUM of plain terms can then be evaluated score-at-a-time: the
+ *  segments of all query terms are processed in decreasing order of
+ *  score, adding impacts into accumulators, and evaluation stops as
+ *  soon as the remaining segments can no longer change which
+ *  documents are in the top k or their order.  Long postings lists
+ *  mostly sit in low-impact segments, so head queries rarely read
+ *  them.  Scores are the quantized scores accumulated so far, so
+ *  they are close to, but not exactly, those of QryopSlScore.
+ *
+ *  The index is built offline (java ImpactIndex paramFile) with the
+ *  BM25:k_1 and BM25:b of the parameter file and written to
+ *  indexPath + ".impacts".  QryEval uses it only with impactOrdered=true
+ *  (and impactPath, if it was written elsewhere).
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class ImpactIndex {
+
+  static final int MAGIC = 0x51454953;		// "QEIS"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8 + 8 + 8;
+  static final int TERM_RECORD_SIZE = 8 + 4 + 4 + 4 + 8 + 4;
+  static final int LEVELS = 255;
+
+  //  The stop check ranks every touched document, so it runs only
+  //  after at least numTouched / STOP_CHECK_RATIO postings were added
+  //  since the last check.  Its cost is then a constant per posting,
+  //  and evaluation reads at most that many postings past the point
+  //  where it could have stopped.
+
+  static final int STOP_CHECK_RATIO = 4;
+
+  //  Per-field term dictionary.
+
+  class FieldInfo {
+    String name;
+    int numTerms;
+    ByteBuffer termRecords;	// termBytesOffset, df, scale, numSegments, offset, length
+    ByteBuffer termBytes;
+  }
+
+  long generation;
+  int maxDoc;
+  double k_1;
+  double b;
+  Map<String, FieldInfo> fields = new HashMap<String, FieldInfo>();
+  ByteBuffer[] chunks;
+
+  //  Accumulators are reused by each thread.
+
+  private final ThreadLocal<double[]> accumulators = new ThreadLocal<double[]>();
+
+  /**
+   *  Returns the default location of the impact index for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the impact index file.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".impacts";
+  }
+
+  /**
+   *  Open and memory-map an impact index.  If the file does not exist
+   *  or was built from a different generation of the index, null is
+   *  returned.
+   *  @param path The impact index file.
+   *  @param reader The index reader that the impact index must match.
+   *  @return The impact index, or null if it can't be used.
+   *  @throws IOException
+   */
+  public static ImpactIndex open(String path, IndexReader reader) throws IOException {
+
+    File f = new File(path);
+
+    if (! f.exists())
+      return null;
+
+    ImpactIndex idx = new ImpactIndex(f);
+
+    if (idx.generation != IndexSnapshot.indexGeneration(reader) || idx.maxDoc != reader.maxDoc()) {
+      System.err.println("Warning:  Impact index " + path +
+			 " does not match the index generation.  Ignoring it.");
+      return null;
+    }
+
+    return idx;
+  }
+
+  /**
+   *  Constructor.  Memory-map an existing impact index.
+   *  @param f The impact index file.
+   *  @throws IOException
+   */
+  public ImpactIndex(File f) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    FileChannel ch = raf.getChannel();
+
+    try {
+      ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC)
+	throw new IOException("Not an impact index:  " + f);
+      if (header.getInt() != VERSION)
+	throw new IOException("Unsupported impact index version:  " + f);
+
+      this.generation = header.getLong();
+      this.maxDoc = header.getInt();
+      this.k_1 = header.getDouble();
+      this.b = header.getDouble();
+      long tocOffset = header.getLong();
+
+      DataInputStream toc = new DataInputStream(new BufferedInputStream(
+	Channels.newInputStream(ch.position(tocOffset))));
+
+      long dataLength = toc.readLong();
+      long chunkSize = CompressedPostings.CHUNK_SIZE;
+      int numChunks = (int) ((dataLength + chunkSize - 1) / chunkSize);
+      this.chunks = new ByteBuffer[numChunks];
+
+      for (int i = 0; i < numChunks; i++) {
+	long start = i * chunkSize;
+	this.chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start,
+				Math.min(chunkSize, dataLength - start));
+      }
+
+      int numFields = toc.readInt();
+
+      for (int i = 0; i < numFields; i++) {
+	FieldInfo fi = new FieldInfo();
+	fi.name = toc.readUTF();
+	fi.numTerms = toc.readInt();
+	long recordsOffset = toc.readLong();
+	fi.termRecords = ch.map(FileChannel.MapMode.READ_ONLY, recordsOffset,
+				(long) TERM_RECORD_SIZE * fi.numTerms);
+	long termBytesOffset = toc.readLong();
+	fi.termBytes = ch.map(FileChannel.MapMode.READ_ONLY, termBytesOffset, toc.readLong());
+	this.fields.put(fi.name, fi);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   *  Returns true if the impact index was built with the retrieval
+   *  model's BM25 parameters.
+   *  @param r A retrieval model.
+   *  @return True if the model's scores can be served from this index.
+   */
+  public boolean matches(RetrievalModel r) {
+    return (r instanceof RetrievalModelBM25) &&
+      Math.abs(r.k_1 - this.k_1) < 1e-9 && Math.abs(r.b - this.b) < 1e-9;
+  }
+
+  /**
+   *  Binary search the term dictionary of a field.
+   *  @return The index of the term, or -1 if it doesn't occur.
+   */
+  int findTerm(String fieldname, String term) {
+
+    FieldInfo fi = this.fields.get(fieldname);
+
+    if (fi == null)
+      return -1;
+
+    byte[] key = term.getBytes(IndexSnapshot.UTF8);
+    int lo = 0;
+    int hi = fi.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = (int) fi.termRecords.getLong(mid * TERM_RECORD_SIZE);
+      int end = (mid + 1 < fi.numTerms) ?
+	(int) fi.termRecords.getLong((mid + 1) * TERM_RECORD_SIZE) : fi.termBytes.capacity();
+      int cmp = IndexSnapshot.compareBytes(fi.termBytes, start, end, key);
+
+      if (cmp < 0)
+	lo = mid + 1;
+      else if (cmp > 0)
+	hi = mid - 1;
+      else
+	return mid;
+    }
+
+    return -1;
+  }
+
+  //  The state of one query term during score-at-a-time evaluation.
+
+  private class TermCursor {
+    ByteBuffer buf;
+    int pos;
+    int segmentsLeft;
+    float scale;
+    int nextImpact;		// Quantized impact of the next segment
+    int lastImpact;		// Quantized impact of the last segment
+
+    double nextScore() {
+      return nextImpact * scale;
+    }
+
+    double lastScore() {
+      return lastImpact * scale;
+    }
+  }
+
+  /**
+   *  Evaluate a #SUM of terms score-at-a-time and return its top k
+   *  documents.
+   *  @param terms The query terms.
+   *  @param fields The field of each query term.
+   *  @param weight The user weight that multiplies each term's score.
+   *  @param k The number of documents to return.
+   *  @return The result, which holds at most k documents.
+   *  @throws DeadlineExceededException If the query's deadline passed
+   *  and it is cancelled on expiry.
+   */
+  public QryResult evaluateSum(String[] terms, String[] fields, double weight, int k)
+    throws DeadlineExceededException {
+
+    List<TermCursor> cursors = new ArrayList<TermCursor>();
+
+    for (int i = 0; i < terms.length; i++) {
+      int t = findTerm(fields[i], terms[i]);
+
+      if (t < 0)
+	continue;
+
+      ByteBuffer rec = this.fields.get(fields[i]).termRecords;
+      long offset = rec.getLong(t * TERM_RECORD_SIZE + 20);
+      TermCursor c = new TermCursor();
+      c.buf = this.chunks[(int) (offset / CompressedPostings.CHUNK_SIZE)];
+      c.pos = (int) (offset % CompressedPostings.CHUNK_SIZE);
+      c.scale = (float) (rec.getFloat(t * TERM_RECORD_SIZE + 12) * weight);
+      c.segmentsLeft = rec.getInt(t * TERM_RECORD_SIZE + 16);
+      c.nextImpact = c.buf.get(c.pos) & 0xff;
+      c.lastImpact = c.buf.get(c.pos + 1) & 0xff;
+      cursors.add(c);
+    }
+
+    double[] acc = this.accumulators.get();
+    if (acc == null || acc.length < this.maxDoc) {
+      acc = new double[this.maxDoc];
+      this.accumulators.set(acc);
+    }
+
+    int[] touched = new int[64];
+    int numTouched = 0;
+    long sinceCheck = 0;
+    int[] docids = new int[CompressedPostings.BLOCK_SIZE];
+
+    //  Each pass of the loop processes the remaining segment with the
+    //  highest score.  If the query runs out of time, the documents
+    //  scored so far are ranked.
+
+    Deadline deadline = Deadline.current();
+
+    while (true) {
+      if (Deadline.expired(deadline))
+	break;
+
+      TermCursor best = null;
+      for (TermCursor c : cursors)
+	if (c.segmentsLeft > 0 && (best == null || c.nextScore() > best.nextScore()))
+	  best = c;
+
+      if (best == null)
+	break;
+
+      //  Segment layout: impact, last impact of term (first segment
+      //  only, otherwise unused), document count, byte length, docid
+      //  gaps in group varint.
+
+      double score = best.nextScore();
+      int count = best.buf.getInt(best.pos + 2);
+      int pos = best.pos + 10;
+      int docid = 0;
+
+      if (docids.length < count)
+	docids = new int[count];
+      best.pos = CompressedPostings.readGroupVarint(best.buf, pos, docids, count);
+
+      for (int i = 0; i < count; i++) {
+	docid += docids[i];
+	if (acc[docid] == 0.0) {
+	  if (numTouched == touched.length)
+	    touched = Arrays.copyOf(touched, 2 * touched.length);
+	  touched[numTouched++] = docid;
+	}
+	acc[docid] += score;
+	if (acc[docid] == 0.0)
+	  acc[docid] = Double.MIN_VALUE;	// Keep it marked as touched.
+      }
+
+      if (--best.segmentsLeft > 0)
+	best.nextImpact = best.buf.get(best.pos) & 0xff;
+
+      //  A finished term lowers the bounds the most, so check then too.
+
+      sinceCheck += count;
+      if (best.segmentsLeft == 0 || sinceCheck * STOP_CHECK_RATIO >= numTouched) {
+	sinceCheck = 0;
+	if (canStop(cursors, acc, touched, numTouched, k))
+	  break;
+      }
+    }
+
+    //  Collect the top k and clear the accumulators for the next query.
+
+    double[] top = topScores(acc, touched, numTouched, k);
+    double threshold = (top.length < k) ? Double.NEGATIVE_INFINITY : top[k - 1];
+    QryResult result = new QryResult();
+    int ties = k;
+
+    for (int i = 0; i < numTouched; i++)
+      if (acc[touched[i]] > threshold)
+	ties--;
+
+    for (int i = 0; i < numTouched; i++) {
+      int d = touched[i];
+      if (acc[d] > threshold || (acc[d] == threshold && ties-- > 0))
+	result.docScores.add(d, acc[d]);
+      acc[d] = 0.0;
+    }
+
+    return result;
+  }
+
+  /**
+   *  Check whether the remaining segments can change the top k or its
+   *  order.  Remaining segments can add at most the sum of their
+   *  positive scores to a document, and take away at most the sum of
+   *  their negative scores (terms with a negative RSJ weight).
+   */
+  private boolean canStop(List<TermCursor> cursors, double[] acc, int[] touched,
+			  int numTouched, int k) {
+
+    double maxGain = 0.0;
+    double maxLoss = 0.0;
+
+    for (TermCursor c : cursors) {
+      if (c.segmentsLeft > 0) {
+	maxGain += Math.max(0.0, c.nextScore());
+	maxLoss += Math.min(0.0, c.lastScore());
+      }
+    }
+
+    if (maxGain == 0.0 && maxLoss == 0.0)
+      return true;
+
+    if (numTouched < k)
+      return false;
+
+    //  The k'th document must stay ahead of the k+1'th document and of
+    //  any document that hasn't been seen yet, and the top k must stay
+    //  in order.
+
+    double[] top = topScores(acc, touched, numTouched, k + 1);
+    double outside = Math.max(0.0, (top.length > k) ? top[k] : 0.0);
+
+    if (top[k - 1] + maxLoss <= outside + maxGain)
+      return false;
+
+    for (int i = 0; i < k - 1; i++)
+      if (top[i] + maxLoss <= top[i + 1] + maxGain)
+	return false;
+
+    return true;
+  }
+
+  /**
+   *  Return the n highest accumulator values in descending order.
+   */
+  private static double[] topScores(double[] acc, int[] touched, int numTouched, int n) {
+
+    PriorityQueue<Double> heap = new PriorityQueue<Double>(n + 1);
+
+    for (int i = 0; i < numTouched; i++) {
+      double s = acc[touched[i]];
+      if (heap.size() < n)
+	heap.add(s);
+      else if (s > heap.peek()) {
+	heap.poll();
+	heap.add(s);
+      }
+    }
+
+    double[] top = new double[heap.size()];
+    for (int i = top.length - 1; i >= 0; i--)
+      top[i] = heap.poll();
+
+    return top;
+  }
+
+  /**
+   *  Build an impact index.
+   *  @param reader The index.
+   *  @param path The impact index file to write.
+   *  @param k1 The BM25 k_1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The number of bytes of impact data.
+   *  @throws IOException
+   */
+  public static long write(IndexReader reader, String path, double k1, double b)
+    throws IOException {
+
+    File tmp = new File(path + ".tmp");
+    IndexSnapshot.CountingOutputStream counter = new IndexSnapshot.CountingOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    DataOutputStream out = new DataOutputStream(counter);
+    int N = reader.numDocs();
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(IndexSnapshot.indexGeneration(reader));
+    out.writeInt(reader.maxDoc());
+    out.writeDouble(k1);
+    out.writeDouble(b);
+    out.writeLong(0);		// TOC offset, patched below.
+
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    List<String> fieldNames = new ArrayList<String>(MultiFields.getIndexedFields(reader));
+    List<String> builtFields = new ArrayList<String>();
+    List<ByteArrayOutputStream> records = new ArrayList<ByteArrayOutputStream>();
+    List<ByteArrayOutputStream> termStrings = new ArrayList<ByteArrayOutputStream>();
+    List<Integer> termCounts = new ArrayList<Integer>();
+
+    Collections.sort(fieldNames);
+
+    for (String field : fieldNames) {
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+      Terms terms = MultiFields.getTerms(reader, field);
+
+      if (norms == null || terms == null)
+	continue;
+
+      double avgDocLen = ((double) reader.getSumTotalTermFreq(field)) /
+	((double) reader.getDocCount(field));
+      ByteArrayOutputStream recBytes = new ByteArrayOutputStream();
+      DataOutputStream recOut = new DataOutputStream(recBytes);
+      ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+      int numTerms = 0;
+      TermsEnum te = terms.iterator(null);
+      DocsEnum de = null;
+      BytesRef t;
+
+      while ((t = te.next()) != null) {
+
+	//  Compute the scores, then quantize them so that the largest
+	//  magnitude maps to LEVELS.  The RSJ weight uses the number of
+	//  live postings; docFreq() includes deleted documents.
+
+	int[] docs = new int[te.docFreq()];
+	double[] scores = new double[docs.length];
+	int n = 0;
+	double maxAbs = 0.0;
+
+	de = te.docs(liveDocs, de, DocsEnum.FLAG_FREQS);
+	while (de.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	  int tf = de.freq();
+	  docs[n] = de.docID();
+	  scores[n] = tf /
+	    (tf + k1 * ((1 - b) + b * (norms.get(de.docID()) / avgDocLen)));
+	  n++;
+	}
+
+	if (n == 0)
+	  continue;
+
+	double RSJweight = Math.log((N - n + 0.5) / (n + 0.5));
+
+	for (int i = 0; i < n; i++) {
+	  scores[i] = RSJweight * scores[i];
+	  maxAbs = Math.max(maxAbs, Math.abs(scores[i]));
+	}
+
+	float scale = (float) ((maxAbs > 0.0) ? maxAbs / LEVELS : 1.0);
+	if (RSJweight < 0)
+	  scale = -scale;
+
+	int[] counts = new int[LEVELS + 1];
+	int[] impacts = new int[n];
+	for (int i = 0; i < n; i++) {
+	  impacts[i] = Math.max(1, Math.min(LEVELS, (int) Math.round(scores[i] / scale)));
+	  counts[impacts[i]]++;
+	}
+
+	//  Group docids by impact.  Docids stay in ascending order
+	//  within each group.
+
+	int[][] groups = new int[LEVELS + 1][];
+	for (int q = 1; q <= LEVELS; q++)
+	  groups[q] = new int[counts[q]];
+	int[] fill = new int[LEVELS + 1];
+	for (int i = 0; i < n; i++)
+	  groups[impacts[i]][fill[impacts[i]]++] = docs[i];
+
+	//  Segments go from the highest score to the lowest.  With a
+	//  negative scale the highest score has the lowest impact.
+
+	List<Integer> order = new ArrayList<Integer>();
+	for (int q = LEVELS; q >= 1; q--)
+	  if (counts[q] > 0)
+	    order.add(q);
+	if (scale < 0)
+	  Collections.reverse(order);
+
+	ByteArrayOutputStream data = new ByteArrayOutputStream();
+	DataOutputStream dataOut = new DataOutputStream(data);
+	int lastImpact = order.get(order.size() - 1);
+
+	for (int q : order) {
+	  int[] g = groups[q];
+	  int[] gaps = new int[g.length];
+	  for (int i = 0; i < g.length; i++)
+	    gaps[i] = g[i] - ((i == 0) ? 0 : g[i - 1]);
+
+	  ByteArrayOutputStream body = new ByteArrayOutputStream();
+	  CompressedPostings.writeGroupVarint(body, gaps, gaps.length);
+
+	  dataOut.writeByte(q);
+	  dataOut.writeByte(lastImpact);
+	  dataOut.writeInt(g.length);
+	  dataOut.writeInt(body.size());
+	  body.writeTo(dataOut);
+	}
+	dataOut.flush();
+
+	//  Don't let a term's segments cross a chunk boundary.
+
+	long chunkSize = CompressedPostings.CHUNK_SIZE;
+	long dataPos = counter.count - HEADER_SIZE;
+	if (data.size() > chunkSize)
+	  throw new IOException("Impacts for " + field + ":" + t.utf8ToString() +
+				" are too large");
+	if (dataPos / chunkSize != (dataPos + data.size() - 1) / chunkSize) {
+	  long pad = chunkSize - (dataPos % chunkSize);
+	  for (long i = 0; i < pad; i++)
+	    out.write(0);
+	  dataPos += pad;
+	}
+
+	recOut.writeLong(termBytes.size());
+	recOut.writeInt(n);
+	recOut.writeFloat(scale);
+	recOut.writeInt(order.size());
+	recOut.writeLong(dataPos);
+	recOut.writeInt(data.size());
+	termBytes.write(t.bytes, t.offset, t.length);
+	data.writeTo(out);
+	numTerms++;
+      }
+
+      builtFields.add(field);
+      records.add(recBytes);
+      termStrings.add(termBytes);
+      termCounts.add(numTerms);
+    }
+
+    long dataLength = counter.count - HEADER_SIZE;
+    long[] recordOffsets = new long[builtFields.size()];
+    long[] termBytesOffsets = new long[builtFields.size()];
+
+    for (int i = 0; i < builtFields.size(); i++) {
+      recordOffsets[i] = counter.count;
+      records.get(i).writeTo(out);
+      termBytesOffsets[i] = counter.count;
+      termStrings.get(i).writeTo(out);
+    }
+
+    long tocOffset = counter.count;
+    out.writeLong(dataLength);
+    out.writeInt(builtFields.size());
+
+    for (int i = 0; i < builtFields.size(); i++) {
+      out.writeUTF(builtFields.get(i));
+      out.writeInt(termCounts.get(i));
+      out.writeLong(recordOffsets[i]);
+      out.writeLong(termBytesOffsets[i]);
+      out.writeLong(termStrings.get(i).size());
+    }
+    out.close();
+
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    raf.seek(HEADER_SIZE - 8);
+    raf.writeLong(tocOffset);
+    raf.close();
+
+    File dest = new File(path);
+    if ((dest.exists() && ! dest.delete()) || ! tmp.renameTo(dest))
+      throw new IOException("Unable to replace " + path);
+
+    return dataLength;
+  }
+
+  /**
+   *  Build the impact index for the index named in a parameter file,
+   *  using its BM25:k_1 and BM25:b.  The index is written to
+   *  impactPath if that parameter is given, otherwise next to indexPath.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java ImpactIndex paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath") ||
+	!params.containsKey("BM25:k_1") || !params.containsKey("BM25:b"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("impactPath") ?
+      params.get("impactPath") : defaultPath(indexPath);
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    long start = System.currentTimeMillis();
+    long bytes = write(reader, path, Double.parseDouble(params.get("BM25:k_1")),
+		       Double.parseDouble(params.get("BM25:b")));
+    reader.close();
+
+    System.out.println("Wrote " + path + " (" + bytes + " bytes of impacts) in " +
+		       (System.currentTimeMillis() - start) + " ms");
+  }
+}
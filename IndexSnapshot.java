@@ -0,0 +1,508 @@
+/**
+ *  IndexSnapshot is a read-only sidecar file that holds the data
+ *  QryEval needs before it can serve queries: document lengths for
+ *  every field, external document ids, collection statistics, and
+ *  per-term statistics with the maximum BM25 score of each term.
+ *
+ *  The snapshot is written offline by running this class as a
+ *  program (java IndexSnapshot paramFile).  It is stored next to the
+ *  index (indexPath + ".snapshot") and memory-mapped at startup, so
+ *  QryEval does not need to load norms or stored fields, and several
+ *  processes share the same pages through the OS page cache.
+ *
+ *  The file layout is:
+ *    header:   magic, version, index generation, maxDoc, numDocs,
+ *              BM25 k_1 and b used for max scores, offset of the TOC.
+ *    sections: doc lengths (int per doc, one section per field),
+ *              term records (df, ctf, max score, per field),
+ *              term strings (per field), external id offsets and
+ *              external id strings.
+ *    TOC:      the fields, their statistics and the section offsets.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class IndexSnapshot {
+
+  static final int MAGIC = 0x51455353;		// "QESS"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 8 + 8 + 8;
+  static final int TERM_RECORD_SIZE = 8 + 4 + 8 + 4;
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  //  Per-field data.
+
+  class FieldInfo {
+    String name;
+    long sumTotalTermFreq;
+    int docCount;
+    IntBuffer lengths;
+    int numTerms;
+    ByteBuffer termRecords;	// termBytesOffset, df, ctf, maxScore
+    ByteBuffer termBytes;
+  }
+
+  long generation;
+  int maxDoc;
+  int numDocs;
+  double k_1;
+  double b;
+  Map<String, FieldInfo> fields = new HashMap<String, FieldInfo>();
+  LongBuffer externalIdOffsets;
+  ByteBuffer externalIdBytes;
+
+  /**
+   *  Returns the default location of the snapshot for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the snapshot file.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".snapshot";
+  }
+
+  /**
+   *  Get the generation of the commit that the reader has open, or
+   *  -1 if the reader is not a DirectoryReader.
+   *  @param reader An open index reader.
+   *  @return The index generation.
+   */
+  public static long indexGeneration(IndexReader reader) throws IOException {
+    if (reader instanceof DirectoryReader)
+      return ((DirectoryReader) reader).getIndexCommit().getGeneration();
+    return -1;
+  }
+
+  /**
+   *  Open and memory-map a snapshot.  If the snapshot does not exist
+   *  or was built from a different generation of the index, a
+   *  message is printed and null is returned, so the caller can fall
+   *  back to reading the index directly.
+   *  @param path The snapshot file.
+   *  @param reader The index reader that the snapshot must match.
+   *  @return The snapshot, or null if it can't be used.
+   *  @throws IOException
+   */
+  public static IndexSnapshot open(String path, IndexReader reader) throws IOException {
+
+    File f = new File(path);
+
+    if (! f.exists())
+      return null;
+
+    IndexSnapshot s = new IndexSnapshot(f);
+
+    if (s.generation != indexGeneration(reader) || s.maxDoc != reader.maxDoc()) {
+      System.err.println("Warning:  Snapshot " + path +
+			 " does not match the index generation.  Ignoring it.");
+      return null;
+    }
+
+    return s;
+  }
+
+  /**
+   *  Constructor.  Memory-map an existing snapshot file.
+   *  @param f The snapshot file.
+   *  @throws IOException
+   */
+  public IndexSnapshot(File f) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    FileChannel ch = raf.getChannel();
+
+    try {
+      ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+      if (header.getInt() != MAGIC)
+	throw new IOException("Not a snapshot file:  " + f);
+      if (header.getInt() != VERSION)
+	throw new IOException("Unsupported snapshot version:  " + f);
+
+      this.generation = header.getLong();
+      this.maxDoc = header.getInt();
+      this.numDocs = header.getInt();
+      this.k_1 = header.getDouble();
+      this.b = header.getDouble();
+      long tocOffset = header.getLong();
+
+      DataInputStream toc = new DataInputStream(new BufferedInputStream(
+	Channels.newInputStream(ch.position(tocOffset))));
+
+      int numFields = toc.readInt();
+
+      for (int i = 0; i < numFields; i++) {
+	FieldInfo fi = new FieldInfo();
+	fi.name = toc.readUTF();
+	fi.sumTotalTermFreq = toc.readLong();
+	fi.docCount = toc.readInt();
+	fi.lengths = map(ch, toc.readLong(), 4L * this.maxDoc).asIntBuffer();
+	fi.numTerms = toc.readInt();
+	fi.termRecords = map(ch, toc.readLong(), (long) TERM_RECORD_SIZE * fi.numTerms);
+	long termBytesOffset = toc.readLong();
+	fi.termBytes = map(ch, termBytesOffset, toc.readLong());
+	this.fields.put(fi.name, fi);
+      }
+
+      this.externalIdOffsets = map(ch, toc.readLong(), 8L * (this.maxDoc + 1)).asLongBuffer();
+      long extBytesOffset = toc.readLong();
+      this.externalIdBytes = map(ch, extBytesOffset, toc.readLong());
+    } finally {
+      raf.close();		// Mappings remain valid after the file is closed.
+    }
+  }
+
+  /**
+   *  Map one section of the snapshot file.
+   */
+  private static ByteBuffer map(FileChannel ch, long offset, long length) throws IOException {
+    if (length > Integer.MAX_VALUE)
+      throw new IOException("Snapshot section is too large to map:  " + length);
+    return ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+  }
+
+  /**
+   *  Returns the length of the specified field in the specified document.
+   *  @param fieldname The field name.
+   *  @param docid The internal docid in the lucene index.
+   *  @return The field length, or 0 if the field is not indexed.
+   */
+  public long getDocLength(String fieldname, int docid) {
+    FieldInfo fi = this.fields.get(fieldname);
+    return (fi == null) ? 0 : fi.lengths.get(docid);
+  }
+
+  /**
+   *  Get the external document id for an internal document id.
+   *  @param docid The internal document id.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int docid) {
+    int start = (int) this.externalIdOffsets.get(docid);
+    int end = (int) this.externalIdOffsets.get(docid + 1);
+    byte[] b = new byte[end - start];
+
+    for (int i = 0; i < b.length; i++)
+      b[i] = this.externalIdBytes.get(start + i);
+
+    return new String(b, UTF8);
+  }
+
+  /**
+   *  @return The number of live documents in the index.
+   */
+  public int numDocs() {
+    return this.numDocs;
+  }
+
+  /**
+   *  @return The total number of term occurrences in the field.
+   */
+  public long getSumTotalTermFreq(String fieldname) {
+    FieldInfo fi = this.fields.get(fieldname);
+    return (fi == null) ? 0 : fi.sumTotalTermFreq;
+  }
+
+  /**
+   *  @return The number of documents that have the field.
+   */
+  public int getDocCount(String fieldname) {
+    FieldInfo fi = this.fields.get(fieldname);
+    return (fi == null) ? 0 : fi.docCount;
+  }
+
+  /**
+   *  @return The document frequency of a term, or 0 if it doesn't occur.
+   */
+  public int docFreq(String fieldname, String term) {
+    int i = findTerm(fieldname, term);
+    return (i < 0) ? 0 : this.fields.get(fieldname).termRecords.getInt(i * TERM_RECORD_SIZE + 8);
+  }
+
+  /**
+   *  @return The collection term frequency of a term, or 0 if it doesn't occur.
+   */
+  public long totalTermFreq(String fieldname, String term) {
+    int i = findTerm(fieldname, term);
+    return (i < 0) ? 0 : this.fields.get(fieldname).termRecords.getLong(i * TERM_RECORD_SIZE + 12);
+  }
+
+  /**
+   *  Get the largest BM25 score that any document can get for a term,
+   *  computed with the k_1 and b that were used to build the snapshot.
+   *  @return The maximum score, or 0 if the term doesn't occur.
+   */
+  public float getMaxScore(String fieldname, String term) {
+    int i = findTerm(fieldname, term);
+    return (i < 0) ? 0 : this.fields.get(fieldname).termRecords.getFloat(i * TERM_RECORD_SIZE + 20);
+  }
+
+  /**
+   *  Binary search the term dictionary of a field.  Terms are stored
+   *  in Lucene's order, i.e., by their unsigned UTF-8 bytes.
+   *  @return The index of the term, or -1 if it doesn't occur.
+   */
+  int findTerm(String fieldname, String term) {
+
+    FieldInfo fi = this.fields.get(fieldname);
+
+    if (fi == null)
+      return -1;
+
+    byte[] key = term.getBytes(UTF8);
+    int lo = 0;
+    int hi = fi.numTerms - 1;
+
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int start = (int) fi.termRecords.getLong(mid * TERM_RECORD_SIZE);
+      int end = (mid + 1 < fi.numTerms) ?
+	(int) fi.termRecords.getLong((mid + 1) * TERM_RECORD_SIZE) : fi.termBytes.capacity();
+      int cmp = compareBytes(fi.termBytes, start, end, key);
+
+      if (cmp < 0)
+	lo = mid + 1;
+      else if (cmp > 0)
+	hi = mid - 1;
+      else
+	return mid;
+    }
+
+    return -1;
+  }
+
+  static int compareBytes(ByteBuffer buf, int start, int end, byte[] key) {
+    int len = end - start;
+    int n = Math.min(len, key.length);
+
+    for (int i = 0; i < n; i++) {
+      int diff = (buf.get(start + i) & 0xff) - (key[i] & 0xff);
+      if (diff != 0)
+	return diff;
+    }
+
+    return len - key.length;
+  }
+
+  /**
+   *  Write a snapshot of an index.
+   *  @param reader The index to snapshot.
+   *  @param path The snapshot file to write.
+   *  @param k1 The BM25 k_1 parameter used for per-term max scores.
+   *  @param b The BM25 b parameter used for per-term max scores.
+   *  @throws IOException
+   */
+  public static void write(IndexReader reader, String path, double k1, double b)
+    throws IOException {
+
+    File tmp = new File(path + ".tmp");
+    CountingOutputStream counter =
+      new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    DataOutputStream out = new DataOutputStream(counter);
+    int maxDoc = reader.maxDoc();
+    int N = reader.numDocs();
+
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeLong(indexGeneration(reader));
+    out.writeInt(maxDoc);
+    out.writeInt(N);
+    out.writeDouble(k1);
+    out.writeDouble(b);
+    out.writeLong(0);		// TOC offset, patched below.
+
+    //  Each field contributes a doc length section, a term record
+    //  section and a term string section.
+
+    ByteArrayOutputStream toc = new ByteArrayOutputStream();
+    DataOutputStream tocOut = new DataOutputStream(toc);
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    List<String> fieldNames = new ArrayList<String>(MultiFields.getIndexedFields(reader));
+
+    Collections.sort(fieldNames);
+
+    int numFields = 0;
+    for (String field : fieldNames) {
+      NumericDocValues norms = MultiDocValues.getNormValues(reader, field);
+
+      if (norms == null)
+	continue;		// Fields such as externalId have no lengths.
+
+      numFields++;
+
+      long sumTotalTermFreq = reader.getSumTotalTermFreq(field);
+      int docCount = reader.getDocCount(field);
+      double avgDocLen = (double) sumTotalTermFreq / (double) docCount;
+
+      tocOut.writeUTF(field);
+      tocOut.writeLong(sumTotalTermFreq);
+      tocOut.writeInt(docCount);
+
+      tocOut.writeLong(counter.count);
+      for (int d = 0; d < maxDoc; d++)
+	out.writeInt((int) norms.get(d));
+
+      //  Term records are written as they are read; the term strings
+      //  are buffered so that they can follow the records.
+
+      long recordsOffset = counter.count;
+      ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+      int numTerms = 0;
+      Terms terms = MultiFields.getTerms(reader, field);
+
+      if (terms != null) {
+	TermsEnum te = terms.iterator(null);
+	DocsEnum de = null;
+	BytesRef t;
+
+	while ((t = te.next()) != null) {
+	  double maxDocWeight = 0.0;
+	  double minDocWeight = 1.0;
+
+	  //  df and ctf are counted over the live postings.  Lucene's
+	  //  counts include deleted documents until their segments are
+	  //  merged, and N does not.
+
+	  int df = 0;
+	  long ctf = 0;
+
+	  de = te.docs(liveDocs, de, DocsEnum.FLAG_FREQS);
+	  while (de.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	    int tf = de.freq();
+	    double DOCweight = tf /
+	      (tf + k1 * ((1 - b) + b * (norms.get(de.docID()) / avgDocLen)));
+	    maxDocWeight = Math.max(maxDocWeight, DOCweight);
+	    minDocWeight = Math.min(minDocWeight, DOCweight);
+	    df++;
+	    ctf += tf;
+	  }
+
+	  double RSJweight = Math.log((N - df + 0.5) / (df + 0.5));
+
+	  //  Frequent terms have a negative RSJ weight, so their largest
+	  //  score comes from the smallest document weight.
+
+	  double maxScore = (RSJweight >= 0) ? RSJweight * maxDocWeight : RSJweight * minDocWeight;
+
+	  out.writeLong(termBytes.size());
+	  out.writeInt(df);
+	  out.writeLong(ctf);
+	  out.writeFloat((float) maxScore);
+	  termBytes.write(t.bytes, t.offset, t.length);
+	  numTerms++;
+	}
+      }
+
+      tocOut.writeInt(numTerms);
+      tocOut.writeLong(recordsOffset);
+      tocOut.writeLong(counter.count);
+      tocOut.writeLong(termBytes.size());
+      termBytes.writeTo(out);
+    }
+
+    //  External ids.  Deleted documents get an empty id.
+
+    long[] extOffsets = new long[maxDoc + 1];
+    long extBytesOffset = counter.count;
+    Set<String> fieldsToLoad = Collections.singleton("externalId");
+
+    for (int d = 0; d < maxDoc; d++) {
+      extOffsets[d] = counter.count - extBytesOffset;
+      if (liveDocs == null || liveDocs.get(d)) {
+	String eid = reader.document(d, fieldsToLoad).get("externalId");
+	if (eid != null)
+	  out.write(eid.getBytes(UTF8));
+      }
+    }
+    extOffsets[maxDoc] = counter.count - extBytesOffset;
+
+    long extOffsetsOffset = counter.count;
+    for (int d = 0; d <= maxDoc; d++)
+      out.writeLong(extOffsets[d]);
+
+    long tocOffset = counter.count;
+    out.writeInt(numFields);
+    toc.writeTo(out);
+    out.writeLong(extOffsetsOffset);
+    out.writeLong(extBytesOffset);
+    out.writeLong(extOffsets[maxDoc]);
+    out.close();
+
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    raf.seek(HEADER_SIZE - 8);
+    raf.writeLong(tocOffset);
+    raf.close();
+
+    File dest = new File(path);
+    if ((dest.exists() && ! dest.delete()) || ! tmp.renameTo(dest))
+      throw new IOException("Unable to replace " + path);
+  }
+
+  /**
+   *  An output stream that counts bytes written, so that section
+   *  offsets can be recorded.
+   */
+  static class CountingOutputStream extends FilterOutputStream {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  /**
+   *  Build a snapshot for the index named in a parameter file.  The
+   *  snapshot is written to snapshotPath if that parameter is given,
+   *  otherwise next to indexPath.  BM25:k_1 and BM25:b control the
+   *  per-term max scores.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java IndexSnapshot paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("snapshotPath") ?
+      params.get("snapshotPath") : defaultPath(indexPath);
+    double k1 = params.containsKey("BM25:k_1") ? Double.parseDouble(params.get("BM25:k_1")) : 1.2;
+    double b = params.containsKey("BM25:b") ? Double.parseDouble(params.get("BM25:b")) : 0.75;
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    long start = System.currentTimeMillis();
+
+    write(reader, path, k1, b);
+    reader.close();
+
+    System.out.println("Wrote " + path + " in " +
+		       (System.currentTimeMillis() - start) + " ms");
+  }
+}
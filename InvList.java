@@ -22,20 +22,20 @@ public class InvList {
 
     public int docid = 0;
     public int tf = 0;
-    public Vector<Integer> positions = new Vector<Integer>();
+    public int[] positions = NO_POSITIONS;
 
     public DocPosting(int d, int... locations) {
       this.docid = d;
       this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
+      this.positions = locations;
     }
 
     public DocPosting(int d, List<Integer> locations) {
       this.docid = d;
       this.tf = locations.size();
+      this.positions = new int[this.tf];
       for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
+        this.positions[i] = locations.get(i);
     }
     
     // added this constructor adding new DocPosting
@@ -46,6 +46,10 @@ public class InvList {
     
   }
 
+  //  Postings without positions share one empty array.
+
+  static final int[] NO_POSITIONS = new int[0];
+
   //  Class variables.
 
   public int ctf = 0;
@@ -53,6 +57,13 @@ public class InvList {
   public String field;
   public Vector<DocPosting> postings = new Vector<DocPosting>();
 
+  //  Collection statistics of the term when the list does not hold
+  //  all of its postings (e.g., a pruned index tier).  -1 means that
+  //  df and ctf are the collection statistics.
+
+  public int collectionDf = -1;
+  public long collectionCtf = -1;
+
   /**
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
@@ -73,24 +84,51 @@ public class InvList {
    *  @throws IOException
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this(termString, fieldString, null);
+  }
+
+  /**
+   *  Fetch the postings of a term in some documents.  Lucene's skip
+   *  lists are used to jump to each candidate.  The collection
+   *  statistics are those of the full inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param candidates The docids to fetch in ascending order, or null
+   *  for all of them.
+   *  @throws IOException
+   */
+  public InvList(String termString, String fieldString, int[] candidates) throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
 
-    //  Prepare to access the index.
+    //  Prepare to access the index.  During federated search the list
+    //  comes from the current shard, its docids are shifted into the
+    //  federation's docid space, and the collection statistics come
+    //  from the whole federation.  Like the list itself, they count
+    //  only live documents.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
+    Federation.Shard shard = Federation.CURRENT_SHARD.get();
+    IndexReader reader = (shard == null) ? QryEval.READER : shard.reader;
+    int docBase = (shard == null) ? 0 : shard.docBase;
+
+    if (shard != null || candidates != null) {
+      long[] stats = TermVector.getStats(term);
+      this.collectionDf = (int) stats[0];
+      this.collectionCtf = stats[1];
+    }
 
-    if (QryEval.READER.docFreq(term) < 1)
+    if (reader.docFreq(term) < 1)
       return;
 
     //  Lookup the inverted list.
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(QryEval.READER,
-				       MultiFields.getLiveDocs(QryEval.READER),
+      MultiFields.getTermPositionsEnum(reader,
+				       MultiFields.getLiveDocs(reader),
 				       fieldString, termBytes);
 
     //  Copy from Lucene inverted list format to our inverted list
@@ -98,7 +136,32 @@ public class InvList {
     //  operators such as #SYN and #NEAR/n to be insulated from the
     //  details of Lucene inverted list implementations.
 
-    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+    int c = 0;
+    Deadline deadline = Deadline.current();
+
+    while (true) {
+      int doc;
+
+      if (Deadline.expired(deadline))
+	break;
+
+      if (candidates == null)
+	doc = iList.nextDoc();
+      else {
+	while (c < candidates.length && candidates[c] - docBase <= iList.docID())
+	  c++;
+	if (c == candidates.length)
+	  break;
+	doc = iList.advance(candidates[c] - docBase);
+	while (c < candidates.length && candidates[c] - docBase < doc)
+	  c++;
+	if (doc != DocIdSetIterator.NO_MORE_DOCS &&
+	    (c == candidates.length || candidates[c] - docBase != doc))
+	  continue;			// Not a candidate.
+      }
+
+      if (doc == DocIdSetIterator.NO_MORE_DOCS)
+	break;
 
       int tf = iList.freq();
       int[] positions = new int[tf];
@@ -106,7 +169,7 @@ public class InvList {
       for (int j = 0; j < tf; j++)
         positions[j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
+      this.postings.add(new DocPosting(docBase + iList.docID(), positions));
       this.df++;
       this.ctf += tf;
     }
@@ -136,6 +199,39 @@ public class InvList {
     return true;
   }
 
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The posting internal document id.
+   *  @param positions The positions where the term occurs.
+   *  @result true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] positions) {
+
+    if ((this.df > 0) &&
+	(this.postings.get(this.df-1).docid >= docid))
+      return false;
+
+    this.postings.add (new DocPosting (docid, positions));
+    this.df ++;
+    this.ctf += positions.length;
+    return true;
+  }
+
+  /**
+   *  @return The number of documents in the collection that contain the term.
+   */
+  public int getCollectionDf() {
+    return (this.collectionDf >= 0) ? this.collectionDf : this.df;
+  }
+
+  /**
+   *  @return The number of times the term occurs in the collection.
+   */
+  public long getCollectionCtf() {
+    return (this.collectionCtf >= 0) ? this.collectionCtf : this.ctf;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
    *  @param n The index of the requested document.
@@ -166,7 +262,7 @@ public class InvList {
           + this.postings.elementAt(i).tf + ", locs: ");
 
       for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+        System.out.print(this.postings.elementAt(i).positions[j] + " ");
       }
 
       System.out.println();
@@ -0,0 +1,385 @@
+/**
+ *  LiveIndex lets QryEval add and delete documents while it serves
+ *  queries.  Documents are written with an IndexWriter that encodes
+ *  lengths with DocLenStoreSimilarity, as the index was built, and
+ *  queries read a near-real-time reader of the writer that is
+ *  refreshed with DirectoryReader.openIfChanged, periodically or when
+ *  refresh() is called.
+ *
+ *  Each query sees one point-in-time view of the index: queries hold
+ *  a read lock while they are evaluated and their results are written
+ *  (see acquire), and a refresh swaps the reader under the write lock,
+ *  between queries.  Docids in a result are only meaningful in the
+ *  view that produced it.
+ *
+ *  Structures derived from the index are brought up to date per
+ *  segment instead of being rebuilt:
+ *    DocLengthStore:    Reuses the norms of the segments it shares with
+ *                       the previous view.
+ *    Collection stats:  Cached df and ctf are adjusted by the live
+ *                       statistics of the segments that were added,
+ *                       removed or had documents deleted.
+ *    External ids:      Read once per segment and kept while the
+ *                       segment is in the index.
+ *    Length tables:     ScoreKernels keeps the lengths of each segment.
+ *  Caches that are keyed by docid (term bitmaps, normalization tables)
+ *  are cleared.  Sidecar files were built for one generation of the
+ *  index, so they are dropped at the first refresh that changes it.
+ *
+ *  Updates are read from a file, one per line, with tab-separated
+ *  fields:
+ *    add     externalId  field  text  [field  text ...]
+ *    delete  externalId
+ *  add replaces a document that has the same external id.
+ *
+ *  Parameters:
+ *    nrt:                   Open the index for updates (false).
+ *    nrt:refreshInterval:   Milliseconds between refreshes (1000); 0
+ *                           refreshes only when refresh() is called.
+ *    nrt:updateFilePath:    A file of updates that is applied in the
+ *                           background while queries are evaluated.
+ *                           Updates are committed when QryEval ends.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+public class LiveIndex {
+
+  static long refreshInterval = 1000;
+
+  //  Fields of new documents: stored, with term vectors and positions,
+  //  as in the index.
+
+  private static final FieldType TEXT = new FieldType(TextField.TYPE_STORED);
+  static {
+    TEXT.setStoreTermVectors(true);
+    TEXT.setStoreTermVectorPositions(true);
+    TEXT.freeze();
+  }
+
+  private final IndexWriter writer;
+  private DirectoryReader reader;
+  private boolean sidecarsDropped = false;
+  private volatile boolean closed = false;
+  private Thread refresher = null;
+  private Thread ingester = null;
+
+  //  Fair, so a refresh is not starved by a stream of queries.
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+
+  //  The external ids of each segment, by segment core.
+
+  private final ConcurrentHashMap<Object, String[]> externalIds =
+    new ConcurrentHashMap<Object, String[]>();
+
+  /**
+   *  Open an index for updates.
+   *  @param indexPath The index.
+   *  @throws IOException
+   */
+  LiveIndex(String indexPath) throws IOException {
+
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer);
+    config.setSimilarity(new DocLenStoreSimilarity());
+    config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+
+    this.writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+    this.reader = DirectoryReader.open(writer, true);
+  }
+
+  /**
+   *  @return The current view of the index.
+   */
+  DirectoryReader getReader() {
+    return this.reader;
+  }
+
+  /**
+   *  Start the periodic refresh.
+   */
+  void start() {
+
+    if (refreshInterval <= 0)
+      return;
+
+    refresher = new Thread(new Runnable() {
+      public void run() {
+	while (! closed) {
+	  try {
+	    Thread.sleep(refreshInterval);
+	    refresh();
+	  } catch (InterruptedException e) {
+	    return;
+	  } catch (IOException e) {
+	    System.err.println("Warning: Refresh failed: " + e.getMessage());
+	  }
+	}
+      }
+    }, "LiveIndex-refresh");
+    refresher.setDaemon(true);
+    refresher.start();
+  }
+
+  /**
+   *  Apply a file of updates in the background.
+   *  @param updateFile The file.
+   */
+  void ingestInBackground(final String updateFile) {
+
+    ingester = new Thread(new Runnable() {
+      public void run() {
+	try {
+	  ingest(updateFile);
+	} catch (IOException e) {
+	  System.err.println("Warning: Ingest of " + updateFile + " failed: " + e.getMessage());
+	}
+      }
+    }, "LiveIndex-ingest");
+    ingester.setDaemon(true);
+    ingester.start();
+  }
+
+  /**
+   *  Apply a file of updates.  See the class comment for the format.
+   *  @param updateFile The file.
+   *  @throws IOException
+   */
+  void ingest(String updateFile) throws IOException {
+
+    BufferedReader in = new BufferedReader(new FileReader(updateFile));
+
+    try {
+      int lineNo = 0;
+      for (String line; (line = in.readLine()) != null; ) {
+	lineNo++;
+	if (line.trim().length() == 0)
+	  continue;
+
+	String[] f = line.split("\t");
+
+	if (f[0].equals("add") && f.length >= 2 && f.length % 2 == 0) {
+	  Map<String, String> fields = new LinkedHashMap<String, String>();
+	  for (int i = 2; i < f.length; i += 2)
+	    fields.put(f[i], f[i + 1]);
+	  addDocument(f[1], fields);
+	} else if (f[0].equals("delete") && f.length == 2) {
+	  deleteDocument(f[1]);
+	} else {
+	  System.err.println("Warning: Skipping update (line " + lineNo + " of " + updateFile + ")");
+	}
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   *  Add a document, replacing any document with the same external id.
+   *  It is visible to queries after the next refresh.
+   *  @param externalId The external id.
+   *  @param fields The text of each field.
+   *  @throws IOException
+   */
+  void addDocument(String externalId, Map<String, String> fields) throws IOException {
+
+    Document d = new Document();
+    d.add(new StringField("externalId", externalId, Field.Store.YES));
+
+    for (Map.Entry<String, String> e : fields.entrySet())
+      d.add(new Field(e.getKey(), e.getValue(), TEXT));
+
+    writer.updateDocument(new Term("externalId", externalId), d);
+  }
+
+  /**
+   *  Delete a document.  It is gone from queries after the next refresh.
+   *  @param externalId The external id.
+   *  @throws IOException
+   */
+  void deleteDocument(String externalId) throws IOException {
+    writer.deleteDocuments(new Term("externalId", externalId));
+  }
+
+  /**
+   *  Make the updates so far visible to new queries.  Queries that are
+   *  being evaluated finish on the view they started with.
+   *  @return True if the index changed.
+   *  @throws IOException
+   */
+  synchronized boolean refresh() throws IOException {
+
+    DirectoryReader newReader = DirectoryReader.openIfChanged(this.reader, writer, true);
+
+    if (newReader == null)
+      return false;
+
+    //  Find the segments that were added and removed.
+
+    Set<Object> oldCores = cores(this.reader);
+    Set<Object> newCores = cores(newReader);
+    List<AtomicReaderContext> added = new ArrayList<AtomicReaderContext>();
+    List<AtomicReaderContext> removed = new ArrayList<AtomicReaderContext>();
+
+    for (AtomicReaderContext leaf : newReader.leaves())
+      if (! oldCores.contains(leaf.reader().getCoreCacheKey()))
+	added.add(leaf);
+    for (AtomicReaderContext leaf : this.reader.leaves())
+      if (! newCores.contains(leaf.reader().getCoreCacheKey()))
+	removed.add(leaf);
+
+    //  Deletions in a segment keep its core but give it a new reader,
+    //  which changes its live statistics.
+
+    Set<AtomicReader> oldLeaves = leafReaders(this.reader);
+    Set<AtomicReader> newLeaves = leafReaders(newReader);
+    List<AtomicReaderContext> statsAdded = new ArrayList<AtomicReaderContext>();
+    List<AtomicReaderContext> statsRemoved = new ArrayList<AtomicReaderContext>();
+
+    for (AtomicReaderContext leaf : newReader.leaves())
+      if (! oldLeaves.contains(leaf.reader()))
+	statsAdded.add(leaf);
+    for (AtomicReaderContext leaf : this.reader.leaves())
+      if (! newLeaves.contains(leaf.reader()))
+	statsRemoved.add(leaf);
+
+    DocLengthStore lengths =
+      new DocLengthStore(newReader, sidecarsDropped ? QryEval.DocLenStore : null);
+
+    lock.writeLock().lock();
+    try {
+      DirectoryReader oldReader = this.reader;
+
+      //  Statistics that came from the snapshot can't be updated.
+
+      if (QryEval.SNAPSHOT != null)
+	TermVector.clearCache();
+      else
+	TermVector.updateStats(statsAdded, statsRemoved);
+
+      if (! sidecarsDropped)
+	dropSidecars();
+
+      this.reader = newReader;
+      QryEval.READER = newReader;
+      QryEval.DocLenStore = lengths;
+
+      for (AtomicReaderContext leaf : removed)
+	externalIds.remove(leaf.reader().getCoreCacheKey());
+
+      ScoreKernels.refresh(newReader);
+      BitmapEvaluator.clearCache();
+
+      oldReader.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    return true;
+  }
+
+  /**
+   *  The sidecar files describe the index as it was opened.
+   */
+  private void dropSidecars() {
+
+    if (QryEval.SNAPSHOT != null || QryEval.POSTINGS != null || QryEval.IMPACTS != null ||
+	QryEval.TIER != null || QryEval.FORWARD != null || QryEval.PHRASES != null)
+      System.err.println("Warning: The index changed; its sidecar files are no longer used.");
+
+    QryEval.SNAPSHOT = null;
+    QryEval.POSTINGS = null;
+    QryEval.IMPACTS = null;
+    QryEval.TIER = null;
+    QryEval.FORWARD = null;
+    QryEval.PHRASES = null;
+    sidecarsDropped = true;
+  }
+
+  /**
+   *  Pin the current view of the index for a query.  Every acquire
+   *  must be followed by a release.
+   */
+  void acquire() {
+    lock.readLock().lock();
+  }
+
+  /**
+   *  Release the view that acquire pinned.
+   */
+  void release() {
+    lock.readLock().unlock();
+  }
+
+  /**
+   *  Get the external id of a document from the dictionary of its
+   *  segment, which is read the first time it is needed.
+   *  @param docid The internal docid in the current view.
+   *  @return The external id.
+   *  @throws IOException
+   */
+  String getExternalDocid(int docid) throws IOException {
+
+    List<AtomicReaderContext> leaves = this.reader.leaves();
+    AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(docid, leaves));
+    Object core = leaf.reader().getCoreCacheKey();
+    String[] ids = externalIds.get(core);
+
+    if (ids == null) {
+      ids = new String[leaf.reader().maxDoc()];
+      for (int d = 0; d < ids.length; d++)
+	ids[d] = leaf.reader().document(d).get("externalId");
+      externalIds.put(core, ids);
+    }
+
+    return ids[docid - leaf.docBase];
+  }
+
+  /**
+   *  Wait for the background ingest, commit the updates and close the
+   *  index.
+   *  @throws IOException
+   */
+  void close() throws IOException {
+
+    try {
+      if (ingester != null)
+	ingester.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    closed = true;
+    if (refresher != null)
+      refresher.interrupt();
+
+    writer.commit();
+    writer.close();
+  }
+
+  private static Set<Object> cores(IndexReader reader) {
+    Set<Object> cores = new HashSet<Object>();
+    for (AtomicReaderContext leaf : reader.leaves())
+      cores.add(leaf.reader().getCoreCacheKey());
+    return cores;
+  }
+
+  /**
+   *  @return The segment readers of an index, by identity.
+   */
+  private static Set<AtomicReader> leafReaders(IndexReader reader) {
+    Set<AtomicReader> leaves =
+      Collections.newSetFromMap(new IdentityHashMap<AtomicReader, Boolean>());
+    for (AtomicReaderContext leaf : reader.leaves())
+      leaves.add(leaf.reader());
+    return leaves;
+  }
+}
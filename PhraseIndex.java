@@ -0,0 +1,245 @@
+/**
+ *  PhraseIndex builds a sidecar index of precomputed #NEAR/1 postings
+ *  for pairs of stems.  QryopIlNear reads #NEAR/1 of two terms from it
+ *  instead of merging their positional lists.
+ *
+ *  The index is stored in the CompressedPostings format (indexPath +
+ *  ".phrases").  A pair is stored as the term "stem1 stem2" of its
+ *  field.  Its postings are built by evaluating #NEAR/1(stem1 stem2)
+ *  with QryopIlNear, so they are exactly the postings that the
+ *  operator would compute.  Pairs that never occur are stored too, so
+ *  looking them up also avoids the merge.
+ *
+ *  Pairs are chosen from a query log, if one is given: every #NEAR/1
+ *  of two terms in the same field.  Otherwise they are chosen from
+ *  corpus statistics: the phraseMaxPairs most frequent pairs of
+ *  adjacent stems that occur at least phraseMinCount times.  Documents
+ *  are read from the forward index if one was built.
+ *
+ *  The index is built offline (java PhraseIndex paramFile).  Parameters:
+ *    phraseQueryFile:  A query file to take pairs from.
+ *    phraseFields:     Fields whose adjacent stems are counted (body).
+ *    phraseMinCount:   Minimum number of occurrences of a pair (10).
+ *    phraseMaxPairs:   Maximum number of pairs per field (100000).
+ *    phrasePath:       The phrase file (default: indexPath + ".phrases").
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+public class PhraseIndex {
+
+  /**
+   *  Returns the default location of the phrase index for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the phrase file.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".phrases";
+  }
+
+  /**
+   *  @return The term that a pair of stems is stored as.
+   */
+  static String key(String stem1, String stem2) {
+    return stem1 + " " + stem2;
+  }
+
+  /**
+   *  Find the #NEAR/1 pairs of a query log.
+   *  @param queryFile The query file.
+   *  @return The pairs, by field.
+   *  @throws IOException
+   */
+  static Map<String, Set<String>> pairsFromQueries(String queryFile) throws IOException {
+
+    Map<String, Set<String>> pairs = new TreeMap<String, Set<String>>();
+    QueryStream queries = new QueryStream(queryFile);
+
+    try {
+      for (QueryStream.Query q; (q = queries.next()) != null; ) {
+	try {
+	  collectPairs(QueryParser.plan(q.text), pairs);
+	} catch (QuerySyntaxException e) {
+	  System.err.println("Warning: Skipping query " + q.id + " (line " + q.line + "): " + e.getMessage());
+	}
+      }
+    } finally {
+      queries.close();
+    }
+
+    return pairs;
+  }
+
+  /**
+   *  Add the #NEAR/1 pairs of a query plan to pairs.
+   */
+  private static void collectPairs(QueryParser.Plan plan, Map<String, Set<String>> pairs) {
+
+    if (plan.args == null)
+      return;
+
+    if (plan.kind == QueryParser.NEAR && plan.distance == 1 && plan.args.length == 2 &&
+	plan.args[0].kind == QueryParser.TERM && plan.args[1].kind == QueryParser.TERM) {
+      String field1 = (plan.args[0].fields == null) ? "body" : plan.args[0].fields[0];
+      String field2 = (plan.args[1].fields == null) ? "body" : plan.args[1].fields[0];
+
+      if (field1.equals(field2)) {
+	if (! pairs.containsKey(field1))
+	  pairs.put(field1, new HashSet<String>());
+	pairs.get(field1).add(key(plan.args[0].term, plan.args[1].term));
+      }
+    }
+
+    for (QueryParser.Plan arg : plan.args)
+      collectPairs(arg, pairs);
+  }
+
+  /**
+   *  Find the most frequent pairs of adjacent stems in a field.  Only
+   *  stems that occur at least minCount times can be in such a pair,
+   *  so other stems are not counted.
+   *  @param field The field.
+   *  @param minCount The minimum number of occurrences of a pair.
+   *  @param maxPairs The maximum number of pairs.
+   *  @return The pairs.
+   *  @throws IOException
+   */
+  static Set<String> pairsFromCorpus(String field, int minCount, int maxPairs) throws IOException {
+
+    final Map<String, Integer> counts = new HashMap<String, Integer>();
+    Bits liveDocs = MultiFields.getLiveDocs(QryEval.READER);
+
+    for (int docid = 0; docid < QryEval.READER.maxDoc(); docid++) {
+      if (liveDocs != null && ! liveDocs.get(docid))
+	continue;
+
+      TermVector tv = new TermVector(docid, field);
+
+      //  Whether each stem of the document is frequent enough.
+
+      boolean[] frequent = new boolean[tv.stemsLength()];
+      for (int i = 1; i < frequent.length; i++)
+	frequent[i] = tv.totalStemFreq(i) >= minCount;
+
+      for (int p = 0; p + 1 < tv.positionsLength(); p++) {
+	int a = tv.stemAt(p);
+	int b = tv.stemAt(p + 1);
+
+	if (a > 0 && b > 0 && frequent[a] && frequent[b]) {
+	  String k = key(tv.stemString(a), tv.stemString(b));
+	  Integer n = counts.get(k);
+	  counts.put(k, (n == null) ? 1 : n + 1);
+	}
+      }
+    }
+
+    List<String> pairs = new ArrayList<String>();
+    for (Map.Entry<String, Integer> e : counts.entrySet())
+      if (e.getValue() >= minCount)
+	pairs.add(e.getKey());
+
+    Collections.sort(pairs, new Comparator<String>() {
+      public int compare(String x, String y) {
+	int cx = counts.get(x), cy = counts.get(y);
+	return (cx != cy) ? ((cx > cy) ? -1 : 1) : x.compareTo(y);
+      }
+    });
+
+    return new HashSet<String>(pairs.subList(0, Math.min(maxPairs, pairs.size())));
+  }
+
+  /**
+   *  Write the phrase index.
+   *  @param reader The index.
+   *  @param path The phrase file.
+   *  @param pairs The pairs, by field.
+   *  @return The number of bytes of postings data.
+   *  @throws IOException
+   */
+  public static long write(IndexReader reader, String path, Map<String, Set<String>> pairs)
+    throws IOException {
+
+    CompressedPostings.Writer writer = new CompressedPostings.Writer(reader, path);
+    RetrievalModel positional = new RetrievalModelRankedBoolean();
+
+    for (String field : new TreeSet<String>(pairs.keySet())) {
+
+      //  Terms are stored in the order of their UTF-8 bytes.
+
+      List<BytesRef> keys = new ArrayList<BytesRef>();
+      for (String k : pairs.get(field))
+	keys.add(new BytesRef(k));
+      Collections.sort(keys);
+
+      writer.startField(field);
+
+      for (BytesRef k : keys) {
+	String[] stems = k.utf8ToString().split(" ");
+	QryopIlNear near = new QryopIlNear(1);
+	near.add(new QryopIlTerm(stems[0], field));
+	near.add(new QryopIlTerm(stems[1], field));
+
+	InvList list = near.evaluate(positional).invertedList;
+	writer.addTerm(k, list.df, list.ctf, CompressedPostings.encodePostings(list), 0);
+      }
+    }
+
+    return writer.close("", new double[0]);
+  }
+
+  /**
+   *  Build the phrase index of the index named in a parameter file.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java PhraseIndex paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("phrasePath") ?
+      params.get("phrasePath") : defaultPath(indexPath);
+    int minCount = params.containsKey("phraseMinCount") ?
+      Integer.parseInt(params.get("phraseMinCount")) : 10;
+    int maxPairs = params.containsKey("phraseMaxPairs") ?
+      Integer.parseInt(params.get("phraseMaxPairs")) : 100000;
+
+    QryEval.READER = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    QryEval.FORWARD = ForwardIndex.open(ForwardIndex.defaultPath(indexPath), QryEval.READER);
+    long start = System.currentTimeMillis();
+    Map<String, Set<String>> pairs;
+
+    if (params.containsKey("phraseQueryFile"))
+      pairs = pairsFromQueries(params.get("phraseQueryFile"));
+    else {
+      pairs = new TreeMap<String, Set<String>>();
+      String fields = params.containsKey("phraseFields") ? params.get("phraseFields") : "body";
+      for (String field : fields.split(","))
+	pairs.put(field, pairsFromCorpus(field, minCount, maxPairs));
+    }
+
+    int numPairs = 0;
+    for (Set<String> p : pairs.values())
+      numPairs += p.size();
+
+    long bytes = write(QryEval.READER, path, pairs);
+    QryEval.READER.close();
+
+    System.out.println("Wrote " + path + " (" + numPairs + " pairs, " + bytes +
+		       " bytes of postings) in " + (System.currentTimeMillis() - start) + " ms");
+  }
+}
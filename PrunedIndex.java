@@ -0,0 +1,386 @@
+/**
+ *  PrunedIndex builds and searches a small first-pass index tier.
+ *  The tier keeps only the highest-scoring postings of each term,
+ *  scored with BM25 or Indri, so that it is small enough to stay in
+ *  RAM.  It is stored in the CompressedPostings format, and each term
+ *  records a bound on the score of the postings that were dropped.
+ *
+ *  A query is evaluated on the tier first.  The documents that the
+ *  tier finds are then scored on the full index, since some of their
+ *  postings may have been dropped.  If at least k of them score above
+ *  the best score that a document could get from dropped postings
+ *  alone, no other document can be in the top k and that result is
+ *  used; otherwise the query is evaluated again on the full index.
+ *
+ *  Only a flat #AND of terms (Indri) or #SUM of terms (BM25) is
+ *  evaluated on the tier; other queries go to the full index.
+ *
+ *  The tier is built offline (java PrunedIndex paramFile), and QryEval
+ *  uses it only with prunedTier=true.  Parameters:
+ *    pruneModel:         BM25 or Indri (default: retrievalAlgorithm).
+ *    pruneFraction:      Fraction of each term's postings to keep (0.1).
+ *    pruneMinPostings:   Always keep at least this many postings (1000).
+ *    tierPath:           The tier file (default: indexPath + ".tier").
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+public class PrunedIndex {
+
+  //  The tier that QryopIlTerm reads from while a query is evaluated
+  //  on the tier.
+
+  static final ThreadLocal<CompressedPostings> ACTIVE_TIER = new ThreadLocal<CompressedPostings>();
+
+  /**
+   *  Returns the default location of the tier for an index.
+   *  @param indexPath The path of the Lucene index.
+   *  @return The path of the tier file.
+   */
+  public static String defaultPath(String indexPath) {
+    return new File(indexPath).getAbsolutePath() + ".tier";
+  }
+
+  /**
+   *  Keeps the postings with the highest scores.  Subclasses define
+   *  the score of a posting.
+   */
+  static abstract class ScorePruner extends CompressedPostings.Pruner {
+
+    IndexReader reader;
+    double fraction;
+    int minPostings;
+    String field = null;
+    NumericDocValues norms;
+    double avgDocLen;
+    long C;
+
+    ScorePruner(IndexReader reader, double fraction, int minPostings) {
+      this.reader = reader;
+      this.fraction = fraction;
+      this.minPostings = minPostings;
+    }
+
+    /**
+     *  The score of one posting of the current term, given the term's
+     *  df and ctf over the live documents.
+     */
+    abstract double score(int df, long ctf, int tf, long docLen);
+
+    /**
+     *  The bound for the current term, given the largest score of a
+     *  dropped posting (or -infinity if nothing was dropped).
+     */
+    abstract double bound(long ctf, double maxDropped);
+
+    int[] prune(String field, TermsEnum te, Bits liveDocs) throws IOException {
+
+      if (! field.equals(this.field)) {
+	this.field = field;
+	this.norms = MultiDocValues.getNormValues(reader, field);
+	this.C = reader.getSumTotalTermFreq(field);
+	this.avgDocLen = ((double) C) / ((double) reader.getDocCount(field));
+      }
+
+      //  Read the live postings first.  Scores use their df and ctf;
+      //  docFreq() and totalTermFreq() include deleted documents.
+
+      int[] docs = new int[te.docFreq()];
+      int[] tfs = new int[docs.length];
+      double[] scores = new double[docs.length];
+      int n = 0;
+      long ctf = 0;
+      DocsEnum de = te.docs(liveDocs, null, DocsEnum.FLAG_FREQS);
+
+      while (de.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+	docs[n] = de.docID();
+	tfs[n] = de.freq();
+	ctf += tfs[n];
+	n++;
+      }
+
+      this.df = n;
+      this.ctf = ctf;
+
+      for (int i = 0; i < n; i++)
+	scores[i] = score(n, ctf, tfs[i], (norms == null) ? 0 : norms.get(docs[i]));
+
+      int keep = Math.min(n, Math.max(minPostings, (int) Math.ceil(fraction * n)));
+
+      if (keep == n) {
+	this.bound = (float) bound(ctf, Double.NEGATIVE_INFINITY);
+	return Arrays.copyOf(docs, n);
+      }
+
+      //  Find the score of the keep'th best posting, then keep the
+      //  postings above it and enough ties to make up the count.
+
+      double[] sorted = Arrays.copyOf(scores, n);
+      Arrays.sort(sorted);
+      double threshold = sorted[n - keep];
+      int ties = keep;
+      for (int i = 0; i < n; i++)
+	if (scores[i] > threshold)
+	  ties--;
+
+      int[] kept = new int[keep];
+      int k = 0;
+      double maxDropped = Double.NEGATIVE_INFINITY;
+
+      for (int i = 0; i < n; i++) {
+	if (scores[i] > threshold || (scores[i] == threshold && ties-- > 0))
+	  kept[k++] = docs[i];
+	else
+	  maxDropped = Math.max(maxDropped, scores[i]);
+      }
+
+      this.bound = (float) bound(ctf, maxDropped);
+      return kept;
+    }
+  }
+
+  /**
+   *  Prunes by BM25 score.  The bound is the largest dropped score.
+   */
+  static class BM25Pruner extends ScorePruner {
+
+    double k1, b;
+
+    BM25Pruner(IndexReader reader, double fraction, int minPostings, double k1, double b) {
+      super(reader, fraction, minPostings);
+      this.k1 = k1;
+      this.b = b;
+    }
+
+    String getModelName() {
+      return "BM25";
+    }
+
+    double[] getParameters() {
+      return new double[] { k1, b };
+    }
+
+    double score(int df, long ctf, int tf, long docLen) {
+      int N = reader.numDocs();
+      double RSJweight = Math.log((N - df + 0.5) / (df + 0.5));
+      return RSJweight * tf / (tf + k1 * ((1 - b) + b * (docLen / avgDocLen)));
+    }
+
+    double bound(long ctf, double maxDropped) {
+      return Math.max(0.0, maxDropped);
+    }
+  }
+
+  /**
+   *  Prunes by Indri term probability.  A document that doesn't
+   *  match the term gets a smoothed probability that is at most the
+   *  collection probability, so the bound is at least that.
+   */
+  static class IndriPruner extends ScorePruner {
+
+    double mu, lambda;
+
+    IndriPruner(IndexReader reader, double fraction, int minPostings, double mu, double lambda) {
+      super(reader, fraction, minPostings);
+      this.mu = mu;
+      this.lambda = lambda;
+    }
+
+    String getModelName() {
+      return "Indri";
+    }
+
+    double[] getParameters() {
+      return new double[] { mu, lambda };
+    }
+
+    double score(int df, long ctf, int tf, long docLen) {
+      double PMLE = ((double) ctf) / ((double) C);
+      return (lambda * ((tf + mu * PMLE) / (docLen + mu))) + ((1 - lambda) * PMLE);
+    }
+
+    double bound(long ctf, double maxDropped) {
+      return Math.max(maxDropped, ((double) ctf) / ((double) C));
+    }
+  }
+
+  /**
+   *  Returns true if the tier was built with the retrieval model and
+   *  its parameters.
+   */
+  static boolean matches(CompressedPostings tier, RetrievalModel r) {
+    double[] p = tier.pruneParameters;
+
+    if (r instanceof RetrievalModelBM25 && tier.pruneModel.equals("BM25"))
+      return Math.abs(p[0] - r.k_1) < 1e-9 && Math.abs(p[1] - r.b) < 1e-9;
+    if (r instanceof RetrievalModelIndri && tier.pruneModel.equals("Indri"))
+      return Math.abs(p[0] - r.mu) < 1e-9 && Math.abs(p[1] - r.lambda) < 1e-9;
+    return false;
+  }
+
+  /**
+   *  Collect the terms of a flat query: an #AND of terms for Indri or
+   *  a #SUM of terms for BM25.  The bound on a document that matches
+   *  none of the kept postings is the geometric mean or the sum of the
+   *  terms' bounds only for such a query; a nested operator would
+   *  combine its arguments' bounds differently.  Nor can the tier
+   *  evaluate inverted list operators such as #SYN and #NEAR, whose
+   *  statistics come from their merged lists, or multi-field terms.
+   *  @return False if the query is not a flat #AND (Indri) or #SUM
+   *  (BM25) of terms.
+   */
+  static boolean collectTerms(Qryop q, RetrievalModel r, List<QryopIlTerm> terms) {
+
+    Class<?> flat = (r instanceof RetrievalModelIndri) ? QryopSlAnd.class : QryopSlSum.class;
+
+    if (q.getClass() != flat)
+      return false;
+
+    for (Qryop arg : q.args) {
+
+      //  Arguments may already be wrapped in #SCORE.
+
+      if (arg instanceof QryopSlScore && arg.args.size() == 1)
+	arg = arg.args.get(0);
+
+      if (! (arg instanceof QryopIlTerm))
+	return false;
+
+      terms.add((QryopIlTerm) arg);
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query on the tier.
+   *  @param qTree The query tree.
+   *  @param r The retrieval model.
+   *  @param tier The pruned tier.
+   *  @param k The number of documents that must be above the bound.
+   *  @return The result, or null if the tier can't guarantee the top k
+   *  and the query must be evaluated on the full index.
+   *  @throws IOException
+   */
+  public static QryResult evaluate(Qryop qTree, RetrievalModel r, CompressedPostings tier, int k)
+    throws IOException {
+
+    if (! matches(tier, r))
+      return null;
+
+    //  A document that matches none of the kept postings can score at
+    //  most the sum (BM25) or geometric mean (Indri) of the bounds.
+
+    List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+    if (! collectTerms(qTree, r, terms) || terms.isEmpty())
+      return null;
+
+    double limit = (r instanceof RetrievalModelIndri) ? 1.0 : 0.0;
+
+    for (QryopIlTerm t : terms) {
+      float bound = tier.getBound(t.getField(), t.getTerm());
+
+      if (Float.isNaN(bound))
+	return null;
+
+      //  The bound was rounded to a float, perhaps down.
+
+      bound = Math.nextUp(bound);
+
+      if (r instanceof RetrievalModelIndri)
+	limit *= Math.pow(bound, 1.0 / terms.size());
+      else
+	limit += bound;
+    }
+
+    QryResult result;
+
+    ACTIVE_TIER.set(tier);
+    try {
+      result = qTree.evaluate(r);
+    } finally {
+      ACTIVE_TIER.remove();
+    }
+
+    if (result.docScores.size() < k)
+      return null;
+
+    //  The tier's scores are exact only for documents none of whose
+    //  postings were dropped, so score the documents that it found on
+    //  the full index, as the second stage of TwoStage does.
+
+    int[] candidates = new int[result.docScores.size()];
+    for (int i = 0; i < candidates.length; i++)
+      candidates[i] = result.docScores.getDocid(i);
+    Arrays.sort(candidates);
+
+    TwoStage.CANDIDATES.set(candidates);
+    try {
+      result = qTree.evaluate(r);
+    } finally {
+      TwoStage.CANDIDATES.remove();
+    }
+
+    int above = 0;
+    for (int i = 0; i < result.docScores.size() && above < k; i++)
+      if (result.docScores.getDocidScore(i) > limit)
+	above++;
+
+    return (above >= k) ? result : null;
+  }
+
+  /**
+   *  Build the tier for the index named in a parameter file.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java PrunedIndex paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.containsKey("tierPath") ?
+      params.get("tierPath") : defaultPath(indexPath);
+    String model = params.containsKey("pruneModel") ?
+      params.get("pruneModel") : params.get("retrievalAlgorithm");
+    double fraction = params.containsKey("pruneFraction") ?
+      Double.parseDouble(params.get("pruneFraction")) : 0.1;
+    int minPostings = params.containsKey("pruneMinPostings") ?
+      Integer.parseInt(params.get("pruneMinPostings")) : 1000;
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    CompressedPostings.Pruner pruner = null;
+
+    if ("BM25".equals(model))
+      pruner = new BM25Pruner(reader, fraction, minPostings,
+			      Double.parseDouble(params.get("BM25:k_1")),
+			      Double.parseDouble(params.get("BM25:b")));
+    else if ("Indri".equals(model))
+      pruner = new IndriPruner(reader, fraction, minPostings,
+			       Double.parseDouble(params.get("Indri:mu")),
+			       Double.parseDouble(params.get("Indri:lambda")));
+    else
+      QryEval.fatalError("Error: pruneModel must be BM25 or Indri.");
+
+    long start = System.currentTimeMillis();
+    long bytes = CompressedPostings.write(reader, path, pruner);
+    reader.close();
+
+    System.out.println("Wrote " + path + " (" + bytes + " bytes of postings) in " +
+		       (System.currentTimeMillis() - start) + " ms");
+  }
+}
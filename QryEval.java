@@ -13,8 +13,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
@@ -35,6 +35,25 @@ public class QryEval {
 
   public static IndexReader READER;
   public static DocLengthStore DocLenStore;
+  public static IndexSnapshot SNAPSHOT = null;
+  public static CompressedPostings POSTINGS = null;
+  public static ImpactIndex IMPACTS = null;
+  public static CompressedPostings TIER = null;
+  public static ForwardIndex FORWARD = null;
+  public static CompressedPostings PHRASES = null;
+  public static Federation FEDERATION = null;
+  public static boolean segmentParallel = false;
+  public static QueryExpansion EXPANSION = null;
+  public static TwoStage TWO_STAGE = null;
+  public static LiveIndex LIVE = null;
+
+  //  Shared pool for parallel evaluation.  It is created on first use.
+
+  private static ForkJoinPool POOL = null;
+
+  //  The number of documents written for each query.
+
+  static final int MAX_RESULTS = 100;
   public static RetrievalModel model = null;
 
   //  Create and configure an English analyzer that will be used for
@@ -48,6 +67,14 @@ public class QryEval {
     analyzer.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
   }
 
+  //  The analyzed tokens of query strings, cached across queries
+  //  because the same terms recur.  The cache is cleared when it grows
+  //  past stemCacheSize entries.
+
+  static int stemCacheSize = 100000;
+  private static final ConcurrentHashMap<String, String[]> STEM_CACHE =
+    new ConcurrentHashMap<String, String[]>();
+
   /**
    *  @param args The only argument is the path to the parameter file.
    *  @throws Exception
@@ -61,24 +88,151 @@ public class QryEval {
     }
 
     // read in the parameter file; one parameter per line in format of key=value
-    Map<String, String> params = new HashMap<String, String>();
-    Scanner scan = new Scanner(new File(args[0]));
-    String line = null;
-    do {
-      line = scan.nextLine();
-      String[] pair = line.split("=");
-      params.put(pair[0].trim(), pair[1].trim());
-    } while (scan.hasNext());
-    scan.close();
+    Map<String, String> params = readParameterFile(args[0]);
     
     // parameters required for this example to run
-    if (!params.containsKey("indexPath")) {
+    if (!params.containsKey("indexPath") && !params.containsKey("indexPaths")) {
       System.err.println("Error: Parameters were missing.");
       System.exit(1);
     }
 
-    // open the index
-    READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+    open(params);
+
+    /*
+     *  The code below is an unorganized set of examples that show
+     *  you different ways of accessing the index.  Some of these
+     *  are only useful in HW2 or HW3.
+     */
+  /*  System.out.println(s.toString());
+    // Lookup the document length of the body field of doc 0.
+    System.out.println(s.getDocLength("body", 1));
+
+    // How to use the term vector.
+    TermVector tv = new TermVector(1, "body");
+    System.out.println(tv.stemString(2)); // get the string for the 100th stem
+    System.out.println(tv.stemDf(2)); // get its df
+    System.out.println(tv.totalStemFreq(2)); // get its ctf
+    */
+  
+    /**
+     *  The index is open. Start evaluating queries. The examples
+     *  below show query trees for two simple queries.  These are
+     *  meant to illustrate how query nodes are created and connected.
+     *  However your software will not create queries like this.  Your
+     *  software will use a query parser.  See parseQuery.
+     *
+     *  The general pattern is to tokenize the  query term (so that it
+     *  gets converted to lowercase, stopped, stemmed, etc), create a
+     *  Term node to fetch the inverted list, create a Score node to
+     *  convert an inverted list to a score list, evaluate the query,
+     *  and print results.
+     * 
+     *  Modify the software so that you read a query from a file,
+     *  parse it, and form the query tree automatically.
+     */
+   
+    // Queries are streamed from the query file and evaluated in file order.
+
+    QueryStream queries = new QueryStream(params.get("queryFilePath"));
+
+    // Learning-to-rank feature extraction replaces the ranking output.
+
+    if (params.containsKey("letor:featureOutputFile")) {
+      try {
+        new FeatureExtractor(params).run(queries, params.get("letor:featureOutputFile"));
+      } finally {
+        queries.close();
+      }
+      return;
+    }
+    
+    QryResult res;
+    BufferedWriter writer = new BufferedWriter(new FileWriter(params.get("trecEvalOutputPath"), true));
+	  
+    // Evaluate each query and write the result into trecEvalOutputPath file.
+    // A query that can't be parsed is reported and skipped.
+    try {
+      for (QueryStream.Query q; (q = queries.next()) != null; )
+      {
+        int qid = q.id;
+        String query = q.text;
+
+        // The query sees one view of a live index until its results
+        // are written.
+
+        if (LIVE != null)
+          LIVE.acquire ();
+        try {
+          Deadline deadline = Deadline.begin (Deadline.timeout, Deadline.cancel);
+
+          try {
+            res = evaluateQuery (query);
+
+            // Expand the query and run it again.
+
+            if (EXPANSION != null) {
+              String expansion = EXPANSION.expansionQuery (res);
+              if (expansion != null) {
+                if (params.containsKey("fbExpansionQueryFile"))
+                  appendLine (params.get("fbExpansionQueryFile"), qid + ": " + expansion);
+                res = evaluateQuery (EXPANSION.combine (query, expansion));
+              }
+            }
+          } catch (QuerySyntaxException e) {
+            System.err.println("Warning: Skipping query " + qid + " (line " + q.line + "): " + e.getMessage());
+            continue;
+          } catch (DeadlineExceededException e) {
+            System.err.println("Warning: Skipping query " + qid + " (line " + q.line + "): " + e.getMessage());
+            continue;
+          } finally {
+            Deadline.end ();
+          }
+
+          if (deadline != null && deadline.isExpired ()) {
+            res.partial = true;
+            System.err.println("Warning: Query " + qid + " exceeded its time budget of " +
+                               Deadline.timeout + " ms; its results are partial.");
+          }
+
+          writeResults(qid, res, writer);
+        } finally {
+          if (LIVE != null)
+            LIVE.release ();
+        }
+      } 
+    } finally {
+      queries.close();
+      writer.close();
+      if (LIVE != null)
+        LIVE.close();
+    }
+  }
+
+  /**
+   *  Open the index and its sidecar files, and configure the retrieval
+   *  model and the evaluation options from the parameters.
+   *  @param params The parameters.
+   *  @throws IOException
+   */
+  static void open (Map<String, String> params) throws IOException {
+
+    // open the index.  indexPaths is a comma-separated list of indexes
+    // that are searched as one federated collection.
+
+    // With nrt=true, the index is opened for updates, and READER is a
+    // near-real-time view that LiveIndex refreshes.
+
+    if (params.containsKey("indexPaths")) {
+      if ("true".equals(params.get("nrt")))
+        fatalError("Error: nrt can't be used with indexPaths.");
+      FEDERATION = new Federation(params.get("indexPaths").split(","));
+      READER = FEDERATION.getReader();
+    } else if ("true".equals(params.get("nrt"))) {
+      LIVE = new LiveIndex(params.get("indexPath"));
+      READER = LIVE.getReader();
+    } else {
+      READER = DirectoryReader.open(FSDirectory.open(new File(params.get("indexPath"))));
+    }
 
    
     if (READER == null) {
@@ -86,7 +240,40 @@ public class QryEval {
       System.exit(1);
     }
 
-    DocLenStore = new DocLengthStore(READER);
+    // Sidecar files are built for a single index, so they are not used
+    // by federated search.  sidecars=false turns them all off, so that
+    // every statistic and posting is read from the Lucene index.
+
+    if (FEDERATION == null && ! "false".equals(params.get("sidecars")))
+      openSidecars(params);
+    else
+      DocLenStore = new DocLengthStore(READER);
+
+    // Long inverted lists can be scored in parallel chunks.
+
+    if (params.containsKey("scoreParallelThreshold"))
+      QryopSlScore.parallelThreshold = Integer.parseInt(params.get("scoreParallelThreshold"));
+    if (params.containsKey("scoreChunkSize"))
+      QryopSlScore.chunkSize = Integer.parseInt(params.get("scoreChunkSize"));
+
+    // Expensive sibling arguments (e.g., the #NEARs of an #AND) can be
+    // evaluated concurrently.
+
+    if (params.containsKey("argParallelThreshold"))
+      Qryop.argParallelThreshold = Long.parseLong(params.get("argParallelThreshold"));
+
+    // The segments of the index can be evaluated in parallel.
+
+    if (params.containsKey("segmentParallel"))
+      segmentParallel = Boolean.parseBoolean(params.get("segmentParallel"));
+
+    // Field weights and b values for multi-field terms (apple.title+body).
+
+    if (params.containsKey("fieldWeights"))
+      QryopSlMultiField.fieldWeights = QryopSlMultiField.parseFieldValues(params.get("fieldWeights"));
+    if (params.containsKey("fieldB"))
+      QryopSlMultiField.fieldB = QryopSlMultiField.parseFieldValues(params.get("fieldB"));
+
     
     
     if(params.get("retrievalAlgorithm").equals("UnrankedBoolean"))
@@ -129,68 +316,345 @@ public class QryEval {
     	System.err.println("incorrect model");
     	System.exit(1);
     }
-    
 
-    /*
-     *  The code below is an unorganized set of examples that show
-     *  you different ways of accessing the index.  Some of these
-     *  are only useful in HW2 or HW3.
-     */
-  /*  System.out.println(s.toString());
-    // Lookup the document length of the body field of doc 0.
-    System.out.println(s.getDocLength("body", 1));
+    // Pseudo-relevance feedback (RM3) expands queries with terms from
+    // the top documents of the original query.
 
-    // How to use the term vector.
-    TermVector tv = new TermVector(1, "body");
-    System.out.println(tv.stemString(2)); // get the string for the 100th stem
-    System.out.println(tv.stemDf(2)); // get its df
-    System.out.println(tv.totalStemFreq(2)); // get its ctf
-    */
-  
-    /**
-     *  The index is open. Start evaluating queries. The examples
-     *  below show query trees for two simple queries.  These are
-     *  meant to illustrate how query nodes are created and connected.
-     *  However your software will not create queries like this.  Your
-     *  software will use a query parser.  See parseQuery.
-     *
-     *  The general pattern is to tokenize the  query term (so that it
-     *  gets converted to lowercase, stopped, stemmed, etc), create a
-     *  Term node to fetch the inverted list, create a Score node to
-     *  convert an inverted list to a score list, evaluate the query,
-     *  and print results.
-     * 
-     *  Modify the software so that you read a query from a file,
-     *  parse it, and form the query tree automatically.
-     */
-   
-    String queryfile = params.get("queryFilePath");
-    BufferedReader br = new BufferedReader(new FileReader(queryfile));
+    if ("true".equals(params.get("fb"))) {
+      if (! (model instanceof RetrievalModelIndri))
+        fatalError("Error: fb requires the Indri retrieval model.");
+      EXPANSION = new QueryExpansion(params);
+    }
+    // Two-stage evaluation reranks the top BM25 #SUM candidates.
+
+    if (params.containsKey("rerankDepth")) {
+      if (FEDERATION != null)
+        fatalError("Error: rerankDepth can't be used with indexPaths.");
+      TWO_STAGE = new TwoStage(params);
+    }
+    if (params.containsKey("statsCacheSize"))
+      TermVector.statsCacheSize = Integer.parseInt(params.get("statsCacheSize"));
+    if (params.containsKey("stemCacheSize"))
+      stemCacheSize = Integer.parseInt(params.get("stemCacheSize"));
+    if (params.containsKey("parseCacheSize"))
+      QueryParser.parseCacheSize = Integer.parseInt(params.get("parseCacheSize"));
+    if (params.containsKey("queryLookahead"))
+      QueryStream.lookahead = Integer.parseInt(params.get("queryLookahead"));
+    if (params.containsKey("queryTimeout"))
+      Deadline.timeout = Long.parseLong(params.get("queryTimeout"));
+    if (params.containsKey("queryTimeoutMode")) {
+      String mode = params.get("queryTimeoutMode");
+      if (! mode.equals("partial") && ! mode.equals("cancel"))
+        fatalError("Error: queryTimeoutMode must be partial or cancel.");
+      Deadline.cancel = mode.equals("cancel");
+    }
+    if (params.containsKey("booleanBitmaps"))
+      BitmapEvaluator.enabled = Boolean.parseBoolean(params.get("booleanBitmaps"));
+    if (params.containsKey("bitmapCacheSize"))
+      BitmapEvaluator.bitmapCacheSize = Integer.parseInt(params.get("bitmapCacheSize"));
+    if (params.containsKey("normTableCacheSize"))
+      ScoreKernels.normTableCacheSize = Integer.parseInt(params.get("normTableCacheSize"));
+
+    // Updates are applied and made visible while queries are evaluated.
+
+    if (LIVE != null) {
+      if (params.containsKey("nrt:refreshInterval"))
+        LiveIndex.refreshInterval = Long.parseLong(params.get("nrt:refreshInterval"));
+      LIVE.start();
+      if (params.containsKey("nrt:updateFilePath"))
+        LIVE.ingestInBackground(params.get("nrt:updateFilePath"));
+    }
+    if (params.containsKey("schedulerInteractiveThreads"))
+      QueryScheduler.interactiveThreads = Integer.parseInt(params.get("schedulerInteractiveThreads"));
+    if (params.containsKey("schedulerBatchThreads"))
+      QueryScheduler.batchThreads = Integer.parseInt(params.get("schedulerBatchThreads"));
+    if (params.containsKey("schedulerMaxQueuedCost"))
+      QueryScheduler.maxQueuedCost = Long.parseLong(params.get("schedulerMaxQueuedCost"));
+    if (params.containsKey("schedulerInteractiveTimeout"))
+      QueryScheduler.interactiveTimeout = Long.parseLong(params.get("schedulerInteractiveTimeout"));
+    if (params.containsKey("schedulerBatchTimeout"))
+      QueryScheduler.batchTimeout = Long.parseLong(params.get("schedulerBatchTimeout"));
+  }
+
+  /**
+   *  Read a whole query file into memory.  See QueryStream for the format.
+   *  @param queryfile The query file.
+   *  @return The queries, by query id.
+   *  @throws IOException
+   */
+  static HashMap<Integer,String> readQueries (String queryfile) throws IOException {
+    QueryStream queries = new QueryStream(queryfile);
     HashMap<Integer,String> queryList = new  HashMap<Integer,String>();
-    
-    // Read query file and put it into hashmap.
-    String qline = br.readLine();
-    while (qline != null) {
-    	String words [] = qline.split(":");
-        queryList.put(Integer.parseInt(words[0]),words[1]);
-        qline = br.readLine();
+
+    try {
+      for (QueryStream.Query q; (q = queries.next()) != null; )
+        queryList.put(q.id, q.text);
+    } finally {
+      queries.close();
     }
-    
-    br.close();
-    
-    Qryop qTree;
-    QryResult res;
-	  
-    // For all the queries in the hashmap, evaluate and write the result into trecEvalOutputPath file
-    for(Integer qid : queryList.keySet())
-    {
-    	qTree = parseQuery(queryList.get(qid));
-    	res = qTree.evaluate (model);
-    	writeResults(qid, res, params.get("trecEvalOutputPath"));
-    } 
+    return queryList;
   }
 
-/**
+  /**
+   *  Append a line to a file.
+   *  @param filename The file.
+   *  @param line The line.
+   *  @throws IOException
+   */
+  static void appendLine (String filename, String line) throws IOException {
+    BufferedWriter writer = new BufferedWriter(new FileWriter(filename, true));
+    try {
+      writer.write(line + "\n");
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   *  Open the sidecar files that were built offline for the index:
+   *  the startup snapshot, exported postings, the impact index, the
+   *  pruned tier, the forward index and the phrase index.  Each one is
+   *  used only if it exists and matches the index generation.
+   *  @param params The parameters.
+   *  @throws IOException
+   */
+  static void openSidecars (Map<String, String> params) throws IOException {
+
+    // Use the startup snapshot if one was built for this generation of
+    // the index.  Otherwise norms and stored fields are read directly.
+
+    String snapshotPath = params.containsKey("snapshotPath") ?
+      params.get("snapshotPath") : IndexSnapshot.defaultPath(params.get("indexPath"));
+    SNAPSHOT = IndexSnapshot.open(snapshotPath, READER);
+
+    if (SNAPSHOT != null)
+      DocLenStore = new DocLengthStore(SNAPSHOT);
+    else
+      DocLenStore = new DocLengthStore(READER);
+
+    // Likewise, use postings exported by CompressedPostings if they match.
+
+    String postingsPath = params.containsKey("postingsPath") ?
+      params.get("postingsPath") : CompressedPostings.defaultPath(params.get("indexPath"));
+    POSTINGS = CompressedPostings.open(postingsPath, READER);
+
+    // With impactOrdered=true, a precomputed impact index lets BM25 #SUM
+    // queries over plain terms be evaluated score-at-a-time.  Its scores
+    // are quantized, so it is never used unless it is asked for.
+
+    if ("true".equals(params.get("impactOrdered"))) {
+      String impactPath = params.containsKey("impactPath") ?
+        params.get("impactPath") : ImpactIndex.defaultPath(params.get("indexPath"));
+      IMPACTS = ImpactIndex.open(impactPath, READER);
+    }
+
+    // With prunedTier=true, a pruned tier is searched first; queries
+    // fall back to the full index when the tier can't guarantee their
+    // top documents.
+
+    if ("true".equals(params.get("prunedTier"))) {
+      String tierPath = params.containsKey("tierPath") ?
+        params.get("tierPath") : PrunedIndex.defaultPath(params.get("indexPath"));
+      TIER = CompressedPostings.open(tierPath, READER);
+    }
+
+    // TermVector reads documents from a forward index if one was built.
+
+    String forwardPath = params.containsKey("forwardPath") ?
+      params.get("forwardPath") : ForwardIndex.defaultPath(params.get("indexPath"));
+    FORWARD = ForwardIndex.open(forwardPath, READER);
+
+    // #NEAR/1 of two terms is read from the phrase index if it has them.
+
+    String phrasePath = params.containsKey("phrasePath") ?
+      params.get("phrasePath") : PhraseIndex.defaultPath(params.get("indexPath"));
+    PHRASES = CompressedPostings.open(phrasePath, READER);
+  }
+
+  /**
+   *  Parse and evaluate a query with the current retrieval model.
+   *  Faster evaluation paths are used when they are available for the
+   *  query.
+   *  @param qString A string containing a query.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  static QryResult evaluateQuery (String qString) throws IOException {
+
+    if (FEDERATION != null)
+      return FEDERATION.evaluate (qString, model, MAX_RESULTS);
+
+    if (TWO_STAGE != null)
+      return TWO_STAGE.evaluate (qString, model);
+
+    Qryop qTree = parseQuery (qString);
+    QryResult res = null;
+
+    if (BitmapEvaluator.applies (qTree, model))
+      res = BitmapEvaluator.evaluate (qTree, model);
+
+    if (res == null && IMPACTS != null && qTree instanceof QryopSlSum)
+      res = ((QryopSlSum) qTree).evaluateImpactOrdered (model, IMPACTS, MAX_RESULTS);
+
+    if (res == null && TIER != null)
+      res = PrunedIndex.evaluate (qTree, model, TIER, MAX_RESULTS);
+
+    if (res == null && segmentParallel && READER.leaves().size() > 1)
+      res = Federation.evaluate (Federation.segments (READER), qString, model, MAX_RESULTS);
+
+    if (res == null)
+      res = qTree.evaluate (model);
+
+    return res;
+  }
+
+  /**
+   *  Parse and evaluate a query with its own time budget.
+   *  @param qString A string containing a query.
+   *  @param timeout The time budget in milliseconds, or 0 for none.
+   *  @param cancel If true, the query is cancelled when its budget runs
+   *  out; otherwise it returns what it found, marked partial.
+   *  @return The result of evaluating the query.
+   *  @throws DeadlineExceededException If the query was cancelled.
+   *  @throws IOException
+   */
+  static QryResult evaluateQuery (String qString, long timeout, boolean cancel) throws IOException {
+
+    Deadline outer = Deadline.current ();
+    Deadline deadline = Deadline.begin (timeout, cancel);
+
+    try {
+      QryResult res = evaluateQuery (qString);
+      res.partial = (deadline != null && deadline.isExpired ());
+      return res;
+    } finally {
+      Deadline.set (outer);
+    }
+  }
+
+  /**
+   *  Count the documents that match a query with the current retrieval
+   *  model.  Unranked Boolean queries are counted with bitmaps, without
+   *  building a score list.
+   *  @param qString A string containing a query.
+   *  @return The number of matching documents.
+   *  @throws IOException
+   */
+  static int countMatches (String qString) throws IOException {
+
+    if (FEDERATION == null && TWO_STAGE == null) {
+      Qryop qTree = parseQuery (qString);
+
+      if (BitmapEvaluator.applies (qTree, model)) {
+        int n = BitmapEvaluator.matches (qTree, model);
+        if (n >= 0)
+          return n;
+      }
+    }
+
+    QryResult res = evaluateQuery (qString);
+    return Math.max (res.invertedList.df, res.docScores.size());
+  }
+
+  /**
+   *  Returns the ForkJoinPool that parallel evaluation runs on.  It
+   *  has one worker per available processor.
+   *  @return The pool.
+   */
+  static synchronized ForkJoinPool getPool () {
+    if (POOL == null)
+      POOL = new ForkJoinPool ();
+    return POOL;
+  }
+
+  /**
+   *  Run tasks on the pool and return their results in order.  The
+   *  tasks run in the caller's EvalContext (its deadline, shard, tier
+   *  and candidates) under a scope of its deadline.  If a task fails,
+   *  the scope is aborted, so the others stop at their next deadline
+   *  check; invokeAll still waits for all of them before it throws the
+   *  first failure.
+   *  @param tasks The tasks.
+   *  @return The results.
+   *  @throws IOException If a task failed.
+   */
+  static <T> List<T> invokeAll (List<Callable<T>> tasks) throws IOException {
+
+    final Deadline scope = Deadline.scope (Deadline.current ());
+    final EvalContext context = EvalContext.capture ().withDeadline (scope);
+    final IOException[] failure = new IOException[1];
+    List<ForkJoinTask<T>> forked = new ArrayList<ForkJoinTask<T>>();
+    ForkJoinPool pool = getPool ();
+
+    for (final Callable<T> task : tasks) {
+      ForkJoinTask<T> f = new RecursiveTask<T>() {
+	protected T compute() {
+	  EvalContext previous = context.install ();
+	  try {
+	    return task.call ();
+	  } catch (Exception e) {
+	    synchronized (failure) {
+	      if (failure[0] == null)
+		failure[0] = (e instanceof IOException) ? (IOException) e : new IOException(e);
+	    }
+	    scope.abort ();
+	    return null;
+	  } finally {
+	    previous.restore ();
+	  }
+	}
+      };
+
+      //  Tasks of nested operators are forked onto the worker's own
+      //  queue, so they run while the worker waits for them.
+
+      if (ForkJoinTask.getPool () == pool)
+	f.fork ();
+      else
+	pool.execute (f);
+      forked.add (f);
+    }
+
+    List<T> results = new ArrayList<T>();
+
+    for (ForkJoinTask<T> f : forked) {
+      try {
+	results.add (f.join ());
+      } catch (RuntimeException e) {
+	synchronized (failure) {
+	  if (failure[0] == null)
+	    failure[0] = new IOException(e);
+	}
+	scope.abort ();
+      }
+    }
+
+    if (failure[0] != null)
+      throw failure[0];
+    return results;
+  }
+
+  /**
+   *  Read a parameter file.  There is one parameter per line in the
+   *  format key=value.
+   *  @param filename The path to the parameter file.
+   *  @return The parameters.
+   *  @throws IOException
+   */
+  static Map<String, String> readParameterFile (String filename) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    Scanner scan = new Scanner(new File(filename));
+    String line = null;
+    do {
+      line = scan.nextLine();
+      String[] pair = line.split("=");
+      params.put(pair[0].trim(), pair[1].trim());
+    } while (scan.hasNext());
+    scan.close();
+    return params;
+  }
+
+  /**
    *  Write an error message and exit.  This can be done in other
    *  ways, but I wanted something that takes just one statement so
    *  that it is easy to insert checks without cluttering the code.
@@ -210,11 +674,52 @@ public class QryEval {
    * @throws IOException 
    */
   static String getExternalDocid (int iid) throws IOException {
+    if (SNAPSHOT != null)
+      return SNAPSHOT.getExternalDocid (iid);
+    if (LIVE != null)
+      return LIVE.getExternalDocid (iid);
+
     Document d = QryEval.READER.document (iid);
     String eid = d.get ("externalId");
     return eid;
   }
 
+  /**
+   *  Returns the number of documents in the collection.  Scoring code
+   *  should use this and the other collection statistics below rather
+   *  than READER, so that they can be served from the snapshot.
+   *  @return The number of live documents.
+   */
+  static int numDocs () {
+    if (SNAPSHOT != null)
+      return SNAPSHOT.numDocs ();
+    return READER.numDocs ();
+  }
+
+  /**
+   *  Returns the total number of term occurrences in a field.
+   *  @param field The field name.
+   *  @return The sum of the total term frequencies in the field.
+   *  @throws IOException
+   */
+  static long getSumTotalTermFreq (String field) throws IOException {
+    if (SNAPSHOT != null)
+      return SNAPSHOT.getSumTotalTermFreq (field);
+    return READER.getSumTotalTermFreq (field);
+  }
+
+  /**
+   *  Returns the number of documents that have at least one term in a field.
+   *  @param field The field name.
+   *  @return The number of documents with the field.
+   *  @throws IOException
+   */
+  static int getDocCount (String field) throws IOException {
+    if (SNAPSHOT != null)
+      return SNAPSHOT.getDocCount (field);
+    return READER.getDocCount (field);
+  }
+
   /**
    *  Finds the internal document id for a document specified by its
    *  external id, e.g. clueweb09-enwp00-88-09710.  If no such
@@ -240,143 +745,17 @@ public class QryEval {
   }
 
   /**
-   * parseQuery converts a query string into a query tree.
+   * parseQuery converts a query string into a query tree.  See
+   * QueryParser for the query syntax.
    * 
    * @param qString
    *          A string containing a query.
-   * @param qTree
-   *          A query tree
+   * @return The query tree.
    * @throws IOException
+   *          If the query can't be parsed (a QuerySyntaxException) or analyzed.
    */
   static Qryop parseQuery(String qString) throws IOException {
-
-    Qryop currentOp = null;
-    Stack<Qryop> stack = new Stack<Qryop>();
-
-    // Add a default query operator to an unstructured query. This
-    // is a tiny bit easier if unnecessary whitespace is removed.
-
-    qString = qString.trim();
-    
-    if (model instanceof RetrievalModelIndri)
-    {
-    	String Str = qString;
-	    int i, x;
-	    while(Str.contains("#AND"))
-	    {
-	    	x = Str.indexOf("#AND");
-	    	StringBuilder sb = new StringBuilder();
-	    	sb.append(Str.substring(0, x));
-	    	
-	    	for (i = x + 5; i < Str.length(); i++)
-	    	{
-	    		if (Str.charAt(i) == ')')
-	    		{
-	    			break;
-	    		}
-	    		sb.append(Str.charAt(i));
-	    	}
-	    	i++;
-	    	while (i < Str.length())
-	    	{
-	    		sb.append(Str.charAt(i));
-	    		i++;
-	    	}
-	    
-	    	Str = sb.toString();
-	    }
-	    
-	    qString = Str;
-    }
-    
-    if (qString.charAt(0) != '#' || qString.charAt(qString.length()-1) != ')') {  	
-        if (model instanceof RetrievalModelBM25)
-      	  qString = "#sum(" + qString + ")";
-        else if (model instanceof RetrievalModelIndri)
-      	  qString = "#and(" + qString + ")";
-        else
-      	  qString = "#or(" + qString + ")";
-      }
-
-    // Tokenize the query.
-
-    StringTokenizer tokens = new StringTokenizer(qString, "\t\n\r ,()", true);
-    String token = null;
-
-    // Each pass of the loop processes one token. To improve
-    // efficiency and clarity, the query operator on the top of the
-    // stack is also stored in currentOp.
-
-    while (tokens.hasMoreTokens()) {
-
-      token = tokens.nextToken();
-
-      if (token.matches("[ ,(\t\n\r]")) {
-        // Ignore most delimiters.
-      } else if (token.equalsIgnoreCase("#and")) {
-        currentOp = new QryopSlAnd();
-        stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#or")) {
-          currentOp = new QryopSlOr();
-          stack.push(currentOp);
-      } else if (token.equalsIgnoreCase("#syn")) {
-        currentOp = new QryopIlSyn();
-        stack.push(currentOp);
-      } else if (token.toLowerCase().matches("#near/\\d*")) {  
-    	  String num[] = token.split("/");
-    	  currentOp = new QryopIlNear(Integer.parseInt(num[1])); // pass the number as arg in near
-          stack.push(currentOp); 
-      } else if (token.equalsIgnoreCase("#sum")) {
-          currentOp = new QryopSlSum();
-          stack.push(currentOp);
-      } else if (token.startsWith(")")) { // Finish current query operator.
-        // If the current query operator is not an argument to
-        // another query operator (i.e., the stack is empty when it
-        // is removed), we're done (assuming correct syntax - see
-        // below). Otherwise, add the current operator as an
-        // argument to the higher-level operator, and shift
-        // processing back to the higher-level operator.
-
-        stack.pop();
-
-        if (stack.empty())
-          break;
-
-        Qryop arg = currentOp;
-        currentOp = stack.peek();
-        currentOp.add(arg);
-      } else {
-
-        // NOTE: You should do lexical processing of the token before
-        // creating the query term, and you should check to see whether
-        // the token specifies a particular field (e.g., apple.title).
-    	 
-    	  
-    	  // pass the query to tokenizeQuery before adding it to currentOp.
-    	 
-    	  String [] field = token.split("\\.");  // split on . to add field term if present
-    	  String [] vals = tokenizeQuery(field[0]);
-    	  
-    	  if ( vals.length != 0)
-    	  {
-    		  if (field.length > 1)
-    			  currentOp.add(new QryopIlTerm(vals[0], field[1]));
-    		  else
-    			  currentOp.add(new QryopIlTerm(vals[0]));
-    	  }
-    		  
-      }
-    }
-
-    // A broken structured query can leave unprocessed tokens on the
-    // stack, so check for that.
-
-    if (tokens.hasMoreTokens()) {
-      System.err.println("Error:  Query syntax is incorrect.  " + qString);
-      return null;
-    }
-
-    return currentOp;
+    return QueryParser.parse(qString);
   }
 
   /**
@@ -417,20 +796,18 @@ public class QryEval {
 }
 
   /**
-   *  This function writes the result into a file named filename.
+   *  This function writes the result with the given writer.
    *  The output format is specified as - 
    *  QueryID	Q0	DocID	Rank	Score	RunID
    *  The function will also convert the the invertedList into a scoreList using the
    *  convertToScorelist() method.
    *  It will also sort the result according to descending score.
    *  @param result QryResult 
+   *  @param writer The output of the run; it stays open for the next query.
    *  @return void
    */
-  static void writeResults(int queryId, QryResult result, String filename) throws IOException {
-	  BufferedWriter writer = null;
-	
+  static void writeResults(int queryId, QryResult result, Writer writer) throws IOException {
 	  try {
-	    writer = new BufferedWriter(new FileWriter(filename, true));   // write in file
 	    if (result.invertedList.df > 0)
 	    {
 	    	convertToScorelist(result);
@@ -438,21 +815,16 @@ public class QryEval {
 	    
 	    result.docScores.sort_array();   // do sorting
 	    
-	    if (result.docScores.scores.size() < 1) {
+	    if (result.docScores.size() < 1) {
 	    	writer.write(queryId+" Q0 dummy 1 0 run-1\n");  // if no results found
 	      } else {
-	    for (int i = 0; i < result.docScores.scores.size() && i < 100; i++) {
+	    for (int i = 0; i < result.docScores.size() && i < MAX_RESULTS; i++) {
 	    	 writer.write(queryId+" Q0 " + getExternalDocid (result.docScores.getDocid(i))
 	    			  + " "+(i+1)+" " + result.docScores.getDocidScore(i) +" run-1\n");
 	    }
 	    }
 	   } catch (Exception e) {
 	    e.printStackTrace();
-	  } finally {
-	    try {
-	      writer.close();
-	    } catch (Exception e) {
-	    }
 	  }
   }
 
@@ -460,7 +832,8 @@ public class QryEval {
    *  Given a query string, returns the terms one at a time with stopwords
    *  removed and the terms stemmed using the Krovetz stemmer. 
    * 
-   *  Use this method to process raw query terms. 
+   *  Use this method to process raw query terms.  Results are cached,
+   *  so the returned array is shared and must not be modified.
    * 
    *  @param query String containing query
    *  @return Array of query tokens
@@ -468,17 +841,36 @@ public class QryEval {
    */
   static String[] tokenizeQuery(String query) throws IOException {
 
-    TokenStreamComponents comp = analyzer.createComponents("dummy", new StringReader(query));
-    TokenStream tokenStream = comp.getTokenStream();
+    String[] cached = STEM_CACHE.get(query);
+
+    if (cached != null)
+      return cached;
 
-    CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
-    tokenStream.reset();
+    //  analyzer.tokenStream reuses this thread's token stream
+    //  components, so the analysis chain is built once per thread.
 
+    TokenStream tokenStream = analyzer.tokenStream("dummy", new StringReader(query));
     List<String> tokens = new ArrayList<String>();
-    while (tokenStream.incrementToken()) {
-      String term = charTermAttribute.toString();
-      tokens.add(term);
+
+    try {
+      CharTermAttribute charTermAttribute = tokenStream.addAttribute(CharTermAttribute.class);
+      tokenStream.reset();
+
+      while (tokenStream.incrementToken()) {
+        String term = charTermAttribute.toString();
+        tokens.add(term);
+      }
+      tokenStream.end();
+    } finally {
+      tokenStream.close();
     }
-    return tokens.toArray(new String[tokens.size()]);
+
+    String[] result = tokens.toArray(new String[tokens.size()]);
+
+    if (STEM_CACHE.size() >= stemCacheSize)
+      STEM_CACHE.clear();
+    STEM_CACHE.put(query, result);
+
+    return result;
   }
 }
@@ -20,4 +20,9 @@ public class QryResult {
   ScoreList docScores = new ScoreList();
   InvList invertedList = new InvList();
 
+  // True if the query ran out of time and evaluation stopped early
+  // (see Deadline), so documents may be missing.
+
+  boolean partial = false;
+
 }
@@ -11,9 +11,16 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public abstract class Qryop {
 
+  //  Arguments whose estimated cost is at least argParallelThreshold
+  //  are evaluated concurrently, if there are two or more of them (0,
+  //  never).
+
+  static long argParallelThreshold = 0;
+
   //  DaaTPtrs are used by query operators for Document-at-a-Time (DAAT)
   //  query evaluation
 
@@ -28,6 +35,12 @@ public abstract class Qryop {
 
   protected ArrayList<Qryop> args = new ArrayList<Qryop>();
   protected List<DaaTPtr> daatPtrs = new ArrayList<DaaTPtr>();
+
+  //  The estimated cost of evaluating this operator (-1 until getCost
+  //  computes it), and whether it counts positions.
+
+  private long cost = -1;
+  private boolean costPositions = false;
   
   /**
    *  Appends an argument to the list of query operator arguments.  This
@@ -47,6 +60,115 @@ public abstract class Qryop {
    */
   public abstract void allocDaaTPtrs (RetrievalModel r) throws IOException;
 
+  /**
+   *  Evaluate the query arguments.  Arguments are independent, so when
+   *  two or more of them are expensive (see argParallelThreshold),
+   *  each expensive one is evaluated as a task on QryEval's pool while
+   *  another task evaluates the cheap ones.  If one of them fails, the
+   *  others are aborted.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The results, in argument order.
+   *  @throws IOException
+   */
+  protected QryResult[] evaluateArgs (final RetrievalModel r) throws IOException {
+
+    final QryResult[] results = new QryResult[this.args.size()];
+    final List<Integer> cheap = new ArrayList<Integer>();
+    List<Integer> expensive = new ArrayList<Integer>();
+
+    if (argParallelThreshold > 0 && results.length > 1)
+      for (int i=0; i<results.length; i++) {
+	if (this.args.get(i).getCost (readsArgPositions ()) >= argParallelThreshold)
+	  expensive.add (i);
+	else
+	  cheap.add (i);
+      }
+
+    if (expensive.size() < 2) {
+      for (int i=0; i<results.length; i++)
+	results[i] = this.args.get(i).evaluate(r);
+      return results;
+    }
+
+    List<Callable<QryResult>> tasks = new ArrayList<Callable<QryResult>>();
+
+    for (final int i : expensive)
+      tasks.add (new Callable<QryResult>() {
+	public QryResult call() throws IOException {
+	  return args.get(i).evaluate(r);
+	}
+      });
+
+    if (! cheap.isEmpty())
+      tasks.add (new Callable<QryResult>() {
+	public QryResult call() throws IOException {
+	  for (int i : cheap)
+	    results[i] = args.get(i).evaluate(r);
+	  return null;
+	}
+      });
+
+    List<QryResult> done = QryEval.invokeAll (tasks);
+
+    for (int j=0; j<expensive.size(); j++)
+      results[expensive.get(j)] = done.get(j);
+
+    return results;
+  }
+
+  /**
+   *  Get the estimated cost of evaluating the query operator: the
+   *  number of postings that are read, counting the positions of the
+   *  terms whose position lists are merged, plus one per operator.
+   *  The estimate of each operator in the tree is computed once, so
+   *  operators at every level can use it.
+   *  @param positions True if the operator's positions are read.
+   *  @return The estimated cost.
+   *  @throws IOException
+   */
+  long getCost (boolean positions) throws IOException {
+    if (this.cost < 0 || this.costPositions != positions) {
+      this.cost = estimateCost (positions);
+      this.costPositions = positions;
+    }
+    return this.cost;
+  }
+
+  /**
+   *  Estimate the cost of evaluating the query operator.  Operators
+   *  that read postings themselves override this.
+   *  @param positions True if the operator's positions are read.
+   *  @return The estimated cost.
+   *  @throws IOException
+   */
+  protected long estimateCost (boolean positions) throws IOException {
+    long c = 1;
+    for (Qryop arg : this.args)
+      c += arg.getCost (readsArgPositions ());
+    return c;
+  }
+
+  /**
+   *  @return True if the operator merges the position lists of its
+   *  arguments, as #SYN and #NEAR do.
+   */
+  protected boolean readsArgPositions () {
+    return (this instanceof QryopIlSyn || this instanceof QryopIlNear);
+  }
+
+  /**
+   *  Estimate the cost of reading a term's postings.
+   *  @param term The term string.
+   *  @param field The field.
+   *  @param positions True if the positions are read.
+   *  @return The term's df, plus its ctf if positions are read.
+   *  @throws IOException
+   */
+  static long termCost (String term, String field, boolean positions) throws IOException {
+    long[] stats = TermVector.getStats (new org.apache.lucene.index.Term (field, term));
+    return stats[0] + (positions ? Math.max (0, stats[1]) : 0);
+  }
+
   /**
    *  Evaluates the query operator, including any child operators and
    *  returns the result.
@@ -61,7 +183,7 @@ public abstract class Qryop {
    *  @return void
    */
   public void freeDaaTPtrs () {
-    this.daatPtrs = new ArrayList<DaaTPtr>();
+    this.daatPtrs.clear();
   }
 
   /**
@@ -23,9 +23,11 @@ public abstract class QryopIl extends Qryop {
    */
   public void allocDaaTPtrs (RetrievalModel r) throws IOException {
 
+    QryResult[] results = evaluateArgs (r);
+
     for (int i=0; i<this.args.size(); i++) {
       DaaTPtr ptri = new DaaTPtr ();
-      ptri.invList = this.args.get(i).evaluate(r).invertedList;
+      ptri.invList = results[i].invertedList;
       ptri.scoreList = null;
       ptri.nextDoc = 0;
 	
@@ -7,6 +7,7 @@
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -47,6 +48,15 @@ public class QryopIlNear extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
 
+    //  #NEAR/1 of two terms may have been precomputed.  The phrase
+    //  index covers the whole index, not one shard.
+
+    if (this.delta == 1 && QryEval.PHRASES != null && Federation.CURRENT_SHARD.get() == null) {
+      QryResult phrase = evaluatePhrase (r);
+      if (phrase != null)
+	return phrase;
+    }
+
     //  Initialization
 
     allocDaaTPtrs (r);
@@ -55,10 +65,15 @@ public class QryopIlNear extends QryopIl {
     int nearFreq = 0; // This stores the frequency of occurence of near teem. 
     
     DaaTPtr ptr0 = this.daatPtrs.get(0);
+    EvalArena arena = EvalArena.get();
     result.invertedList.field =  new String (ptr0.invList.field);
     
+    Deadline deadline = Deadline.current ();
+
     EVALUATEDOCUMENTS:
     for ( ; ptr0.nextDoc < ptr0.invList.postings.size(); ptr0.nextDoc ++) {
+      if (Deadline.expired (deadline))
+        break;
 
       int ptr0Docid = ptr0.invList.getDocid (ptr0.nextDoc);
 
@@ -89,33 +104,36 @@ public class QryopIlNear extends QryopIl {
       // Now test for near-ness
      
       //  savedpos array is used for storing the position indexes of all Daat lists.(query terms) 
-      int [] savedpos = new int [this.daatPtrs.size()];   
+      //  It and the matched positions are scratch buffers of the thread's arena.
+      int [] pos0 = ptr0.invList.postings.elementAt(ptr0.nextDoc).positions;
+      int [] savedpos = arena.ints (EvalArena.NEAR_POSITIONS, this.daatPtrs.size());
+      int [] positions = arena.ints (EvalArena.NEAR_MATCHES, pos0.length);
+      Arrays.fill (savedpos, 0, this.daatPtrs.size(), 0);
      
       nearFreq = 0;  // reset freq for each docid
-      int pos=0; 
-      ArrayList<Integer> positions = new ArrayList<Integer>();
       // The outer loop will iterate through all the doc positings for the first term
       // The internal loop will search the other terms in query order
       EVALUATEPOSITIONS:
-      for (int k = 0; k < ptr0.invList.postings.elementAt(ptr0.nextDoc).positions.size(); k++)
+      for (int k = 0; k < pos0.length; k++)
       {
-    	  int poscompare = ptr0.invList.postings.elementAt(ptr0.nextDoc).positions.get(k);
+    	  int poscompare = pos0[k];
     	  
     	  for (int j=1; j<this.daatPtrs.size(); j++) 
     	  {
     		  DaaTPtr ptrj = this.daatPtrs.get(j);
+    		  int [] posj = ptrj.invList.postings.elementAt(ptrj.nextDoc).positions;
    	      
 	    	 while(true)
 	    	  { 
-	    		  if (savedpos[j] >= ptrj.invList.postings.elementAt(ptrj.nextDoc).positions.size() ) // end of list
+	    		  if (savedpos[j] >= posj.length) // end of list
 	    		  {
 	    			 break EVALUATEPOSITIONS;
 	    		  }
-	    		  else if (poscompare  >  (pos = ptrj.invList.postings.elementAt(ptrj.nextDoc).positions.get(savedpos[j])))  // not yet
+	    		  else if (poscompare  >  posj[savedpos[j]])  // not yet
 	    		  {
 	    			  savedpos[j] =  savedpos[j] + 1;
 	    		  }
-	    		  else if (poscompare <  (pos = ptrj.invList.postings.elementAt(ptrj.nextDoc).positions.get(savedpos[j])) && ((pos = ptrj.invList.postings.elementAt(ptrj.nextDoc).positions.get(savedpos[j])) - poscompare) > this.delta) // didn't match
+	    		  else if (posj[savedpos[j]] - poscompare > this.delta) // didn't match
 	    		  {
 	    			  continue EVALUATEPOSITIONS;
 	    		  }
@@ -127,12 +145,11 @@ public class QryopIlNear extends QryopIl {
 	    	  }
 	    	 
 	    	// update poscompare to have position of next list to compare in array.
-   		  poscompare = ptrj.invList.postings.elementAt(ptrj.nextDoc).positions.get(savedpos[j]);
+   		  poscompare = posj[savedpos[j]];
         } 	  
-    	  // increment the occurence frequency.
-    	  nearFreq++;
-    	  // Save the pos compare here. It matched at postition k. So, add the position k to the list.
-    	  positions.add(ptr0.invList.postings.elementAt(ptr0.nextDoc).positions.get(k));  
+    	  // Save the pos compare here. It matched at postition k. So, add the position k to the list,
+    	  // and increment the occurence frequency.
+    	  positions[nearFreq++] = pos0[k];
     	  // increment the position index of jth list as we already processed the current positon index.
     	  for (int l = 1; l <this.daatPtrs.size(); l++ )
     	  {
@@ -147,7 +164,7 @@ public class QryopIlNear extends QryopIl {
       		  result.invertedList.add(ptr0Docid, 1);  // put freq as 1 for unranked boolean
       	  }
       	  else {
-      		  result.invertedList.appendPosting(ptr0Docid, positions);
+      		  result.invertedList.appendPosting(ptr0Docid, Arrays.copyOf(positions, nearFreq));
       	  }
       	}
 	    
@@ -199,6 +216,41 @@ public class QryopIlNear extends QryopIl {
     return true;
   }
 
+  /**
+   *  Read the result of #NEAR/1 of two terms in the same field from
+   *  the phrase index.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result, or null if the phrase index doesn't have the pair.
+   *  @throws IOException
+   */
+  private QryResult evaluatePhrase (RetrievalModel r) throws IOException {
+
+    if (this.args.size() != 2 ||
+	! (this.args.get(0) instanceof QryopIlTerm) ||
+	! (this.args.get(1) instanceof QryopIlTerm))
+      return null;
+
+    QryopIlTerm t0 = (QryopIlTerm) this.args.get(0);
+    QryopIlTerm t1 = (QryopIlTerm) this.args.get(1);
+    String field = t0.getField();
+    String key = PhraseIndex.key (t0.getTerm(), t1.getTerm());
+
+    if (! field.equals (t1.getField()) || ! QryEval.PHRASES.hasTerm (field, key))
+      return null;
+
+    InvList list = QryEval.PHRASES.getInvList (key, field, TwoStage.CANDIDATES.get());
+    QryResult result = new QryResult ();
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      result.invertedList.field = field;
+      for (int i = 0; i < list.df; i++)
+	result.invertedList.add (list.getDocid (i), 1);  // put freq as 1 for unranked boolean
+    } else
+      result.invertedList = list;
+
+    return result;
+  }
+
   /*
    *  Return a string version of this query operator.  
    *  @return The string version of this query operator.
@@ -210,6 +262,6 @@ public class QryopIlNear extends QryopIl {
     for (Iterator<Qryop> i = this.args.iterator(); i.hasNext(); )
       result += (i.next().toString() + " ");
 
-    return ("#NEAR( " + result + ")");
+    return ("#NEAR/" + this.delta + "( " + result + ")");
   }
 }
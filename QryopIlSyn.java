@@ -57,26 +57,45 @@ public class QryopIlSyn extends QryopIl {
     //  This implementation is intended to be clear.  A more efficient
     //  implementation would combine loops and use merge-sort.
 
+    Deadline deadline = Deadline.current ();
+
     while (this.daatPtrs.size() > 0) {
+      if (Deadline.expired (deadline))
+	break;
 
       int nextDocid = getSmallestCurrentDocid ();
 
       //  Create a new posting that is the union of the posting lists
       //  that match the nextDocid.
 
-      List<Integer> positions = new ArrayList<Integer>();
+      //  The positions are counted first, so that they can be merged
+      //  into one array of the right size.
+
+      int n = 0;
+
+      for (int i=0; i<this.daatPtrs.size(); i++) {
+	DaaTPtr ptri = this.daatPtrs.get(i);
+
+	if (ptri.invList.getDocid (ptri.nextDoc) == nextDocid)
+	  n += ptri.invList.postings.get(ptri.nextDoc).positions.length;
+      }
+
+      int[] merged = new int[n];
+      n = 0;
 
       for (int i=0; i<this.daatPtrs.size(); i++) {
 	DaaTPtr ptri = this.daatPtrs.get(i);
 
 	if (ptri.invList.getDocid (ptri.nextDoc) == nextDocid) {
-	  positions.addAll (ptri.invList.postings.get(ptri.nextDoc).positions);
+	  int[] p = ptri.invList.postings.get(ptri.nextDoc).positions;
+	  System.arraycopy (p, 0, merged, n, p.length);
+	  n += p.length;
 	  ptri.nextDoc ++;
 	}
       }
 
-      Collections.sort (positions);
-      result.invertedList.appendPosting (nextDocid, positions);
+      Arrays.sort (merged);
+      result.invertedList.appendPosting (nextDocid, merged);
 
       //  If a DaatPtr has reached the end of its list, remove it.
       //  The loop is backwards so that removing an arg does not
@@ -36,6 +36,30 @@ public class QryopIlTerm extends QryopIl {
     this.field = f;
   }
 
+  /**
+   *  @return The term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   *  @return The field that the term matches.
+   */
+  public String getField() {
+    return this.field;
+  }
+
+  /**
+   *  The cost of a term is the cost of reading its postings.
+   *  @param positions True if the term's positions are read.
+   *  @return The estimated cost.
+   *  @throws IOException
+   */
+  protected long estimateCost (boolean positions) throws IOException {
+    return termCost (this.term, this.field, positions);
+  }
+
   /*
    *  Every Qryop is required to have an add method that appends
    *  query arguments, but that doesn't make sense for the Term
@@ -54,7 +78,22 @@ public class QryopIlTerm extends QryopIl {
    */
   public QryResult evaluate(RetrievalModel r) throws IOException {
     QryResult result = new QryResult();
-    result.invertedList = new InvList(this.term, this.field);
+
+    //  Read exported postings (or the pruned tier, if the query is
+    //  being evaluated on it) if they are available for this field,
+    //  otherwise read Lucene's postings.  When a query is reranked,
+    //  only the candidates' postings are read.
+
+    CompressedPostings postings = PrunedIndex.ACTIVE_TIER.get();
+    int[] candidates = TwoStage.CANDIDATES.get();
+
+    if (postings == null && Federation.CURRENT_SHARD.get() == null)
+      postings = QryEval.POSTINGS;
+
+    if (postings != null && postings.hasField(this.field))
+      result.invertedList = postings.getInvList(this.term, this.field, candidates);
+    else
+      result.invertedList = new InvList(this.term, this.field, candidates);
     return result;
   }
 
@@ -23,17 +23,19 @@ public abstract class QryopSl extends Qryop {
    */
   public void allocDaaTPtrs (RetrievalModel r) throws IOException {
 		
-    for (int i=0; i<this.args.size(); i++) {
+    //  If an argument doesn't return ScoreLists, wrap it in a #SCORE
+    //  operator.
 
-      //  If this argument doesn't return ScoreLists, wrap it
-      //  in a #SCORE operator.
-    	
+    for (int i=0; i<this.args.size(); i++)
       if (! QryopSl.class.isInstance (this.args.get(i)))
 	this.args.set(i, new QryopSlScore(this.args.get(i)));
 
+    QryResult[] results = evaluateArgs (r);
+
+    for (int i=0; i<this.args.size(); i++) {
       DaaTPtr ptri = new DaaTPtr ();
       ptri.invList = null;
-      ptri.scoreList = this.args.get(i).evaluate(r).docScores;
+      ptri.scoreList = results[i].docScores;
       ptri.nextDoc = 0;
 	
       this.daatPtrs.add (ptri);
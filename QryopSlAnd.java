@@ -71,7 +71,7 @@ public class QryopSlAnd extends QryopSl {
 
     for (int i=0; i<(this.daatPtrs.size()-1); i++) {
     	for (int j=i+1; j<this.daatPtrs.size(); j++) {
-    		if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs.get(j).scoreList.scores.size()) {
+    		if (this.daatPtrs.get(i).scoreList.size() > this.daatPtrs.get(j).scoreList.size()) {
 		    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
 		    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
 		    this.daatPtrs.get(j).scoreList = tmpScoreList;
@@ -89,8 +89,12 @@ public class QryopSlAnd extends QryopSl {
 
     DaaTPtr ptr0 = this.daatPtrs.get(0);
 
+    Deadline deadline = Deadline.current ();
+
     EVALUATEDOCUMENTS:
-    for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+    for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
+      if (Deadline.expired (deadline))
+        break;
 
       int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
       double docScore = 1.0;
@@ -102,7 +106,7 @@ public class QryopSlAnd extends QryopSl {
     	  DaaTPtr ptrj = this.daatPtrs.get(j);
 
 			while (true) {
-			  if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
+			  if (ptrj.nextDoc >= ptrj.scoreList.size())
 			    break EVALUATEDOCUMENTS;		// No more docs can match
 			  else
 			    if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
@@ -137,7 +141,17 @@ public class QryopSlAnd extends QryopSl {
 
     if (r instanceof RetrievalModelUnrankedBoolean)
       return (0.0);
-    
+
+    // Indri: the geometric mean of the arguments' default scores.
+
+    if (r instanceof RetrievalModelIndri) {
+      double answer = 1.0;
+      for (int i = 0; i < this.args.size(); i++)
+	answer *= Math.pow (((QryopSl) this.args.get(i)).getDefaultScore (r, docid),
+			    1.0 / this.args.size());
+      return answer;
+    }
+
     return 0.0;
   }
 
@@ -160,7 +174,7 @@ public class QryopSlAnd extends QryopSl {
 
 	    for (int i=0; i<(this.daatPtrs.size()-1); i++) {
 	    	for (int j=i+1; j<this.daatPtrs.size(); j++) {
-	    		if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs.get(j).scoreList.scores.size()) {
+	    		if (this.daatPtrs.get(i).scoreList.size() > this.daatPtrs.get(j).scoreList.size()) {
 			    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
 			    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
 			    this.daatPtrs.get(j).scoreList = tmpScoreList;
@@ -178,8 +192,12 @@ public class QryopSlAnd extends QryopSl {
 
 	    DaaTPtr ptr0 = this.daatPtrs.get(0);
 
+	    Deadline deadline = Deadline.current ();
+
 	    EVALUATEDOCUMENTS:
-	    for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+	    for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
+	      if (Deadline.expired (deadline))
+	        break;
 
 	      int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
 	      double docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
@@ -191,7 +209,7 @@ public class QryopSlAnd extends QryopSl {
 	    	  DaaTPtr ptrj = this.daatPtrs.get(j);
 
 				while (true) {
-				  if (ptrj.nextDoc >= ptrj.scoreList.scores.size())
+				  if (ptrj.nextDoc >= ptrj.scoreList.size())
 				    break EVALUATEDOCUMENTS;		// No more docs can match
 				  else
 				    if (ptrj.scoreList.getDocid (ptrj.nextDoc) > ptr0Docid)
@@ -230,8 +248,13 @@ public class QryopSlAnd extends QryopSl {
 	    double tempScore = 0;
 	    DaaTPtr ptri;
 	    
+	    Deadline deadline = Deadline.current ();
+
 	    while (looper)
 	    {
+	      if (Deadline.expired (deadline))
+	        break;
+
 	    	looper = false;
 	    	double answer = 1;
 	    	// the minDoc is initialized to max value
@@ -242,7 +265,7 @@ public class QryopSlAnd extends QryopSl {
 	    		
 	    		ptri = this.daatPtrs.get(i);
 	    		
-	    		if (ptri.nextDoc == ptri.scoreList.scores.size())
+	    		if (ptri.nextDoc == ptri.scoreList.size())
 	    			continue;
 	    		
 	    		if (minDoc >= ptri.scoreList.getDocid (ptri.nextDoc))
@@ -260,8 +283,8 @@ public class QryopSlAnd extends QryopSl {
 		    	
 	    		ptri = this.daatPtrs.get(i);
 	    		
-	    		if (ptri.nextDoc == ptri.scoreList.scores.size()) {
-	    			tempScore = ((QryopSlScore) this.args.get(i)).getDefaultScore(r, minDoc);
+	    		if (ptri.nextDoc == ptri.scoreList.size()) {
+	    			tempScore = ((QryopSl) this.args.get(i)).getDefaultScore(r, minDoc);
 	    			double poww = Math.pow(tempScore, queryVal);	//  INDRI
 	    			answer = answer * poww; //	INDRI
 	    			continue;
@@ -270,7 +293,7 @@ public class QryopSlAnd extends QryopSl {
 	    		if (minDoc != ptri.scoreList.getDocid (ptri.nextDoc))
 	    		{
 	    		
-	    			tempScore = ((QryopSlScore) this.args.get(i)).getDefaultScore(r, minDoc);
+	    			tempScore = ((QryopSl) this.args.get(i)).getDefaultScore(r, minDoc);
 	    			double poww = Math.pow(tempScore, queryVal);	//  INDRI
 	    			answer = answer * poww; //	INDRI
 	    		}
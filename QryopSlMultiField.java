@@ -0,0 +1,278 @@
+/**
+ *  This class implements a multi-field term operator, written
+ *  apple.title+body+url+inlink in a query.  It reads the term's
+ *  inverted list in every field and merges them in one DAAT pass, so
+ *  that the term is scored once per document instead of once per
+ *  field.
+ *
+ *  BM25 is scored as BM25F: each field's tf is length-normalized with
+ *  that field's average length and b, weighted, and summed into one
+ *  pseudo tf that is saturated with k_1.  The RSJ weight uses the
+ *  term's largest df in any of the fields.  Indri is scored as a
+ *  mixture of field language models, each smoothed with mu and
+ *  lambda, with the field weights as mixture weights.  The boolean
+ *  models treat the fields like a #SYN.
+ *
+ *  Field weights and per-field b values come from the fieldWeights
+ *  and fieldB parameters, e.g. fieldWeights=title:2,body:1.  Fields
+ *  that are not listed get a weight of 1 and the model's b.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopSlMultiField extends QryopSl {
+
+  //  Field weights and BM25F b values, set from the parameter file.
+
+  static Map<String, Double> fieldWeights = new HashMap<String, Double>();
+  static Map<String, Double> fieldB = new HashMap<String, Double>();
+
+  private String term;
+  private List<String> fields = new ArrayList<String>();
+
+  //  Per-field weights and collection probabilities of the last
+  //  evaluation, which Indri's default score needs.
+
+  double[] _weight = null;
+  double[] _pc = null;
+  double _weightSum = 0.0;
+
+  /**
+   *  Constructor.
+   *  @param t The (processed) term string.
+   *  @param f The fields that the term matches.
+   */
+  public QryopSlMultiField(String t, String... f) {
+    this.term = t;
+    for (int i = 0; i < f.length; i++)
+      this.fields.add(f[i]);
+  }
+
+  /**
+   *  Parse a list of field:value pairs, e.g., title:2,body:1.
+   *  @param s The list.
+   *  @return A map from field to value.
+   */
+  static Map<String, Double> parseFieldValues(String s) {
+    Map<String, Double> values = new HashMap<String, Double>();
+    for (String pair : s.split(",")) {
+      String[] fv = pair.split(":");
+      if (fv.length == 2)
+	values.put(fv[0].trim(), Double.parseDouble(fv[1].trim()));
+    }
+    return values;
+  }
+
+  /**
+   *  @return The term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   *  @return The fields that the term matches.
+   */
+  public List<String> getFields() {
+    return this.fields;
+  }
+
+  /**
+   *  The term's postings are read in every field.
+   *  @param positions True if the term's positions are read.
+   *  @return The estimated cost.
+   *  @throws IOException
+   */
+  protected long estimateCost(boolean positions) throws IOException {
+    long cost = 1;
+    for (String field : this.fields)
+      cost += termCost(this.term, field, positions);
+    return cost;
+  }
+
+  /**
+   *  The weight of a field.
+   */
+  static double getWeight(String field) {
+    Double w = fieldWeights.get(field);
+    return (w == null) ? 1.0 : w;
+  }
+
+  /**
+   *  Every Qryop is required to have an add method, but the fields of
+   *  this operator are given to its constructor.  So, it does nothing.
+   *  @param q The query argument (query operator) to append.
+   */
+  public void add (Qryop q) {
+  }
+
+  /**
+   *  Fetch the term's inverted list in each field.  QryopIlTerm
+   *  decides where the postings are read from.
+   */
+  public void allocDaaTPtrs (RetrievalModel r) throws IOException {
+    for (String field : this.fields) {
+      DaaTPtr ptri = new DaaTPtr ();
+      ptri.invList = new QryopIlTerm(this.term, field).evaluate(r).invertedList;
+      ptri.scoreList = null;
+      ptri.nextDoc = 0;
+      this.daatPtrs.add (ptri);
+    }
+  }
+
+  /**
+   *  Evaluates the query operator and returns the result.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    allocDaaTPtrs (r);
+    QryResult result = new QryResult ();
+    int n = this.daatPtrs.size();
+
+    //  Per-field constants.  For BM25F, norm[f] is b_f / avglen_f and
+    //  base[f] is 1 - b_f.  For Indri, pc[f] is the collection
+    //  probability of the term in the field.
+
+    double[] weight = new double[n];
+    double[] norm = new double[n];
+    double[] base = new double[n];
+    double[] pc = new double[n];
+    double weightSum = 0.0;
+    int df = 0;
+
+    for (int f = 0; f < n; f++) {
+      InvList list = this.daatPtrs.get(f).invList;
+      String field = this.fields.get(f);
+
+      weight[f] = getWeight(field);
+      weightSum += weight[f];
+      df = Math.max(df, list.getCollectionDf());
+
+      if (r instanceof RetrievalModelBM25) {
+	Double bf = fieldB.get(field);
+	double b = (bf == null) ? r.b : bf;
+	double avgLen = ((double) QryEval.getSumTotalTermFreq(field)) / ((double) QryEval.getDocCount(field));
+	norm[f] = b / avgLen;
+	base[f] = 1 - b;
+      } else if (r instanceof RetrievalModelIndri) {
+	pc[f] = ((double) list.getCollectionCtf()) / ((double) QryEval.getSumTotalTermFreq(field));
+      }
+    }
+
+    _weight = weight;
+    _pc = pc;
+    _weightSum = weightSum;
+
+    double RSJweight = 0.0;
+    if (r instanceof RetrievalModelBM25) {
+      int N = QryEval.numDocs();
+      RSJweight = Math.log((N - df + 0.5) / (df + 0.5));
+    }
+
+    //  Each pass of the loop scores the smallest docid that any field
+    //  list is positioned on.
+
+    int[] tf = new int[n];
+
+    Deadline deadline = Deadline.current ();
+
+    while (true) {
+      if (Deadline.expired (deadline))
+        break;
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int f = 0; f < n; f++) {
+	DaaTPtr ptrf = this.daatPtrs.get(f);
+	if (ptrf.nextDoc < ptrf.invList.df)
+	  docid = Math.min(docid, ptrf.invList.postings.get(ptrf.nextDoc).docid);
+      }
+
+      if (docid == Integer.MAX_VALUE)
+	break;
+
+      int tfSum = 0;
+      for (int f = 0; f < n; f++) {
+	DaaTPtr ptrf = this.daatPtrs.get(f);
+	tf[f] = 0;
+	if (ptrf.nextDoc < ptrf.invList.df &&
+	    ptrf.invList.postings.get(ptrf.nextDoc).docid == docid) {
+	  tf[f] = ptrf.invList.postings.get(ptrf.nextDoc).tf;
+	  ptrf.nextDoc ++;
+	}
+	tfSum += tf[f];
+      }
+
+      double score;
+
+      if (r instanceof RetrievalModelBM25) {
+	double pseudoTf = 0.0;
+	for (int f = 0; f < n; f++)
+	  if (tf[f] > 0)
+	    pseudoTf += weight[f] * tf[f] /
+	      (base[f] + norm[f] * QryEval.DocLenStore.getDocLength(this.fields.get(f), docid));
+	score = RSJweight * pseudoTf / (r.k_1 + pseudoTf);
+      } else if (r instanceof RetrievalModelIndri) {
+	score = mixture(r, weight, weightSum, pc, tf, docid);
+      } else if (r instanceof RetrievalModelRankedBoolean) {
+	score = tfSum;
+      } else {
+	score = 1.0;
+      }
+
+      result.docScores.add (docid, score);
+    }
+
+    freeDaaTPtrs ();
+
+    return result;
+  }
+
+  /**
+   *  The Indri mixture of smoothed field language models.
+   */
+  private double mixture(RetrievalModel r, double[] weight, double weightSum,
+			 double[] pc, int[] tf, long docid) throws IOException {
+    double p = 0.0;
+    for (int f = 0; f < weight.length; f++) {
+      long docLen = QryEval.DocLenStore.getDocLength(this.fields.get(f), (int) docid);
+      p += (weight[f] / weightSum) *
+	((r.lambda * ((tf[f] + r.mu * pc[f]) / (docLen + r.mu))) + ((1 - r.lambda) * pc[f]));
+    }
+    return p;
+  }
+
+  /*
+   *  Calculate the default score for a document that does not match
+   *  the term in any field.  This score is 0 for every retrieval model
+   *  except Indri.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param docid The internal id of the document that needs a default score.
+   *  @return The default score.
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+    if (! (r instanceof RetrievalModelIndri) || _pc == null)
+      return 0.0;
+
+    return mixture(r, _weight, _weightSum, _pc, new int[_pc.length], docid);
+  }
+
+  /*
+   *  Return a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString(){
+
+    String result = this.term + ".";
+
+    for (int i = 0; i < this.fields.size(); i++)
+      result += ((i > 0) ? "+" : "") + this.fields.get(i);
+
+    return result;
+  }
+}
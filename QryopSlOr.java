@@ -70,7 +70,7 @@ public class QryopSlOr extends QryopSl {
 
     for (int i=0; i<(this.daatPtrs.size()-1); i++) {
     	for (int j=i+1; j<this.daatPtrs.size(); j++) {
-    		if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs.get(j).scoreList.scores.size()) {
+    		if (this.daatPtrs.get(i).scoreList.size() > this.daatPtrs.get(j).scoreList.size()) {
 		    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
 		    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
 		    this.daatPtrs.get(j).scoreList = tmpScoreList;
@@ -87,7 +87,11 @@ public class QryopSlOr extends QryopSl {
     
     // This is a term at a time kind of implementation. Take the doc id and put into a tree set
    
-    for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+    Deadline deadline = Deadline.current ();
+
+    for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
+      if (Deadline.expired (deadline))
+        break;
 
       int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
 
@@ -97,7 +101,7 @@ public class QryopSlOr extends QryopSl {
 
     	  DaaTPtr ptrj = this.daatPtrs.get(j);
     	  
-    	  if (ptrj.nextDoc < ptr0.scoreList.scores.size() && ptrj.nextDoc <  ptrj.scoreList.scores.size() )
+    	  if (ptrj.nextDoc < ptr0.scoreList.size() && ptrj.nextDoc <  ptrj.scoreList.size() )
     	  {
     		  ts.add(ptrj.scoreList.getDocid (ptrj.nextDoc));  // add the docid to the treeSet
     		  ptrj.nextDoc++;	 
@@ -153,7 +157,7 @@ public class QryopSlOr extends QryopSl {
 
 	    for (int i=0; i<(this.daatPtrs.size()-1); i++) {
 	    	for (int j=i+1; j<this.daatPtrs.size(); j++) {
-	    		if (this.daatPtrs.get(i).scoreList.scores.size() > this.daatPtrs.get(j).scoreList.scores.size()) {
+	    		if (this.daatPtrs.get(i).scoreList.size() > this.daatPtrs.get(j).scoreList.size()) {
 			    ScoreList tmpScoreList = this.daatPtrs.get(i).scoreList;
 			    this.daatPtrs.get(i).scoreList = this.daatPtrs.get(j).scoreList;
 			    this.daatPtrs.get(j).scoreList = tmpScoreList;
@@ -167,7 +171,11 @@ public class QryopSlOr extends QryopSl {
 	    // Hashmap will store the doc id and corresponding score. 
 	    HashMap<Integer, Double> hm = new HashMap<Integer, Double>();
 	    
-	    for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+	    Deadline deadline = Deadline.current ();
+
+	    for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
+	      if (Deadline.expired (deadline))
+	        break;
 
 	      int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
 	      double docScore = ptr0.scoreList.getDocidScore(ptr0.nextDoc);
@@ -191,7 +199,7 @@ public class QryopSlOr extends QryopSl {
 	    	  DaaTPtr ptrj = this.daatPtrs.get(j);
 	    	  
 	    	  //  If docid already not present, then add the doc id.
-	    	  if (ptrj.nextDoc < ptr0.scoreList.scores.size() && ptrj.nextDoc <  ptrj.scoreList.scores.size() )
+	    	  if (ptrj.nextDoc < ptr0.scoreList.size() && ptrj.nextDoc <  ptrj.scoreList.size() )
 	    	  {
 	    		  if (!hm.containsKey(ptrj.scoreList.getDocid (ptrj.nextDoc)))
 	    	      {
@@ -10,11 +10,91 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 public class QryopSlScore extends QryopSl {
 	
 	 long _ctf = 0;
 	 String _field = null;
+	 double[] _denominators = null;		// Indri docLen + mu, by docid
+
+  //  Inverted lists with at least parallelThreshold postings are split
+  //  into chunks of chunkSize postings that are scored in parallel on
+  //  QryEval's ForkJoinPool.  The defaults keep scoring sequential.
+
+  static int parallelThreshold = Integer.MAX_VALUE;
+  static int chunkSize = 1 << 16;
+
+  /**
+   *  Computes the scores of a block of postings.  Each retrieval model
+   *  captures its per-term constants in a PostingScorer; see
+   *  ScoreKernels.
+   */
+  static abstract class PostingScorer {
+
+    /**
+     *  @param docids The docids of the postings.
+     *  @param tfs Their tfs.
+     *  @param n The number of postings.
+     *  @param scores Receives their scores.
+     *  @throws IOException
+     */
+    abstract void score (int[] docids, int[] tfs, int n, double[] scores) throws IOException;
+  }
+
+  /**
+   *  Scores the postings [lo, hi) of an inverted list into scores[],
+   *  splitting the range until it is at most chunkSize long.  Chunks
+   *  run in the caller's EvalContext and check its deadline once per
+   *  block; postings that a stopped chunk didn't reach keep a NaN score.
+   */
+  static class ScoreChunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    InvList list;
+    PostingScorer scorer;
+    double[] scores;
+    int lo, hi;
+    EvalContext context;
+
+    ScoreChunk (InvList list, PostingScorer scorer, double[] scores, int lo, int hi,
+		EvalContext context) {
+      this.list = list;
+      this.scorer = scorer;
+      this.scores = scores;
+      this.lo = lo;
+      this.hi = hi;
+      this.context = context;
+    }
+
+    protected void compute () {
+      if (hi - lo <= chunkSize) {
+	EvalContext previous = context.install ();
+	try {
+	  Deadline deadline = Deadline.current();
+	  int[] docids = new int[ScoreKernels.BLOCK];
+	  int[] tfs = new int[ScoreKernels.BLOCK];
+	  double[] block = new double[ScoreKernels.BLOCK];
+
+	  for (int i = lo; i < hi; i += ScoreKernels.BLOCK) {
+	    if (Deadline.expired(deadline))
+	      break;
+	    int n = gather (list, i, Math.min (hi, i + ScoreKernels.BLOCK), docids, tfs);
+	    scorer.score (docids, tfs, n, block);
+	    System.arraycopy (block, 0, scores, i, n);
+	  }
+	} catch (IOException e) {
+	  throw new RuntimeException (e);
+	} finally {
+	  previous.restore ();
+	}
+      } else {
+	int mid = (lo + hi) >>> 1;
+	invokeAll (new ScoreChunk (list, scorer, scores, lo, mid, context),
+		   new ScoreChunk (list, scorer, scores, mid, hi, context));
+      }
+    }
+  }
 	  
   /**
    *  Construct a new SCORE operator.  The SCORE operator accepts just
@@ -74,13 +154,18 @@ public class QryopSlScore extends QryopSl {
 
     // Evaluate the query argument.
 
-    QryResult result = args.get(0).evaluate(r);
+    QryResult result = evaluateArgument(r);
 
     // Each pass of the loop computes a score for one document. Note:
     // If the evaluate operation above returned a score list (which is
     // very possible), this loop gets skipped.
 
+    result.docScores.ensureCapacity(result.invertedList.df);
+    Deadline deadline = Deadline.current();
+
     for (int i = 0; i < result.invertedList.df; i++) {
+      if (Deadline.expired(deadline))
+	break;
 
       // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY. 
       // Unranked Boolean. All matching documents get a score of 1.0.
@@ -121,7 +206,7 @@ public class QryopSlScore extends QryopSl {
   		// the cumulative term frequency in corpus 
   		long ctf = _ctf;
   		//  length_terms (C) means the total term frequency of all terms in the entire collection
-  		long C = QryEval.READER.getSumTotalTermFreq(_field);
+  		long C = QryEval.getSumTotalTermFreq(_field);
   		// PMLE is constant term per query
   		double PMLE = ((double)ctf) / ((double)C);
   		// Indri tunable param
@@ -131,10 +216,17 @@ public class QryopSlScore extends QryopSl {
   		// Pdq will hold final score
   		double Pdq = 0.0;
   		
-  		docLen = QryEval.DocLenStore.getDocLength(_field, (int)docid);
+  		// docLen + mu, from the field's table if there is one
+  		double denominator;
+  		if (_denominators != null)
+  		  denominator = _denominators[(int) docid];
+  		else {
+  		  docLen = QryEval.DocLenStore.getDocLength(_field, (int)docid);
+  		  denominator = docLen + mu;
+  		}
 		     
 		 // Indri SCORE formula - term freq is 0
-  		Pdq = (lambda*((mu*PMLE)/(docLen + mu))) + ((1-lambda)*PMLE);
+  		Pdq = (lambda*((mu*PMLE)/denominator)) + ((1-lambda)*PMLE);
 		     
     	return Pdq;
       }
@@ -151,13 +243,18 @@ public class QryopSlScore extends QryopSl {
   public QryResult evaluateRankedBoolean(RetrievalModel r) throws IOException {
 	// Evaluate the query argument.
 
-	    QryResult result = args.get(0).evaluate(r);
+	    QryResult result = evaluateArgument(r);
 
 	    // Each pass of the loop computes a score for one document. Note:
 	    // If the evaluate operation above returned a score list (which is
 	    // very possible), this loop gets skipped.
-	    
+
+	    result.docScores.ensureCapacity(result.invertedList.df);
+	    Deadline deadline = Deadline.current();
+
 	    for (int i = 0; i < result.invertedList.df; i++) {
+	      if (Deadline.expired(deadline))
+		break;
 
 	      // DIFFERENT RETRIEVAL MODELS IMPLEMENT THIS DIFFERENTLY. 
 	      // Ranked Boolean. All matching documents get a score of tf.
@@ -175,46 +272,135 @@ public class QryopSlScore extends QryopSl {
 	    return result;
   }
   
+  /**
+   *  Score every posting of the result's inverted list and append the
+   *  scores to its score list in docid order.  Postings are scored in
+   *  blocks of ScoreKernels.BLOCK; long lists are scored in parallel
+   *  chunks.
+   *  @param result The result that holds the inverted list.
+   *  @param scorer Computes the score of one posting.
+   *  @throws IOException
+   */
+  static void scorePostings (QryResult result, PostingScorer scorer) throws IOException {
+
+    InvList list = result.invertedList;
+
+    result.docScores.ensureCapacity(list.df);
+
+    if (list.df < parallelThreshold) {
+      Deadline deadline = Deadline.current();
+      int[] docids = new int[Math.min (list.df, ScoreKernels.BLOCK)];
+      int[] tfs = new int[docids.length];
+      double[] scores = new double[docids.length];
+
+      //  The deadline is checked once per block.
+
+      for (int i = 0; i < list.df; i += ScoreKernels.BLOCK) {
+	if (Deadline.expired(deadline))
+	  break;
+	int n = gather (list, i, Math.min (list.df, i + ScoreKernels.BLOCK), docids, tfs);
+	scorer.score (docids, tfs, n, scores);
+	result.docScores.add (docids, scores, n);
+      }
+      return;
+    }
+
+    double[] scores = new double[list.df];
+    Arrays.fill (scores, Double.NaN);
+
+    try {
+      QryEval.getPool().invoke (new ScoreChunk (list, scorer, scores, 0, list.df,
+						EvalContext.capture ()));
+    } catch (RuntimeException e) {
+
+      //  The pool may wrap a chunk's exception again.
+
+      for (Throwable t = e.getCause(); t != null; t = t.getCause())
+	if (t instanceof IOException)
+	  throw (IOException) t;
+      throw e;
+    }
+
+    //  Postings that weren't reached before the deadline are left out.
+
+    for (int i = 0; i < list.df; i++)
+      if (! Double.isNaN (scores[i]))
+	result.docScores.add(list.postings.get(i).docid, scores[i]);
+  }
+
+  /**
+   *  Copy the docids and tfs of the postings [lo, hi) of an inverted
+   *  list into primitive arrays.
+   *  @return The number of postings, hi - lo.
+   */
+  private static int gather (InvList list, int lo, int hi, int[] docids, int[] tfs) {
+    for (int i = lo; i < hi; i++) {
+      InvList.DocPosting p = list.postings.get(i);
+      docids[i - lo] = p.docid;
+      tfs[i - lo] = p.tf;
+    }
+    return hi - lo;
+  }
+
+  /**
+   *  Evaluate the query argument.  During federated search, an
+   *  inverted list operator's list gets its federation-wide statistics.
+   *  During reranking, an inverted list operator other than a term is
+   *  evaluated on full lists, so that its statistics are exact, and
+   *  then restricted to the candidates.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the argument.
+   *  @throws IOException
+   */
+  QryResult evaluateArgument(RetrievalModel r) throws IOException {
+
+    int[] candidates = TwoStage.CANDIDATES.get();
+
+    if (candidates == null || args.get(0) instanceof QryopIlTerm) {
+      QryResult result = args.get(0).evaluate(r);
+      Federation.applyGlobalStats(args.get(0), result.invertedList);
+      return result;
+    }
+
+    QryResult result;
+
+    TwoStage.CANDIDATES.remove();
+    try {
+      result = args.get(0).evaluate(r);
+    } finally {
+      TwoStage.CANDIDATES.set(candidates);
+    }
+
+    result.invertedList = TwoStage.restrict(result.invertedList, candidates);
+    return result;
+  }
+
   public QryResult evaluateBM25(RetrievalModel r) throws IOException {
 		
-	  QryResult result = args.get(0).evaluate(r);
+	  QryResult result = evaluateArgument(r);
 
 	    // Each pass of the loop computes a score for one document. Note:
 	    // If the evaluate operation above returned a score list (which is
 	    // very possible), this loop gets skipped.
 	    
 	  	// Total Documents in the corpus
-	    int N = QryEval.READER.numDocs();
+	    int N = QryEval.numDocs();
 	    // Number of docs in the collection which has this term. i.e. document freq
-	    int dfreq = result.invertedList.df;
+	    int dfreq = result.invertedList.getCollectionDf();
 	    // avg doclen for whole collection. It is dependent upon the field. 
 	    // the total number of term occurrences in all 'x' field/ 
 	    //  number of documents that have 'x' field
-	    double avgDocLen = ((double) QryEval.READER.getSumTotalTermFreq(result.invertedList.field)) / ((double)QryEval.READER.getDocCount (result.invertedList.field));
+	    double avgDocLen = ((double) QryEval.getSumTotalTermFreq(result.invertedList.field)) / ((double)QryEval.getDocCount (result.invertedList.field));
 	    // RSJ weight (the collection or idf weight)
 	    double RSJweight = Math.log((N - dfreq + 0.5)/ (double)(dfreq + 0.5));
 	    // BM25 tunable params
 	    double k1 = r.k_1;
 	    // BM25 tunable params
 	    double b = r.b;
-	    // term freq 
-	    int termFreq = 0;
-		// length of doc in that field 
-	    long docLen = 0;
-	    
-	    for (int i = 0; i < result.invertedList.df; i++) {
 
-	     // the term freq of term inside the document. 
-	     termFreq = result.invertedList.postings.get(i).tf;
-	     // lenght of the current document with the field x
-	     docLen = QryEval.DocLenStore.getDocLength(result.invertedList.field, result.invertedList.postings.get(i).docid);
-	     
-	     // calculating the tf weight/doc weight
-	     double DOCweight = termFreq /(double) (termFreq + k1*((1-b) + b*(((double) docLen)/(avgDocLen))));
-	     
-	      result.docScores.add(result.invertedList.postings.get(i).docid,
-				   (double) (RSJweight*DOCweight));
-	    }
+	    // tf weight/doc weight: tf / (tf + k1*((1-b) + b*docLen/avgDocLen))
+
+	    scorePostings (result, new ScoreKernels.Bm25 (result.invertedList.field, b, avgDocLen, RSJweight, k1));
 
 	    // The SCORE operator should not return a populated inverted list.
 	    // If there is one, replace it with an empty inverted list.
@@ -227,39 +413,21 @@ public class QryopSlScore extends QryopSl {
   
   	public QryResult evaluateIndri(RetrievalModel r) throws IOException {
   		
-  		QryResult result = args.get(0).evaluate(r);
+  		QryResult result = evaluateArgument(r);
   		
-  		// term freq 
-  		int termFreq = 0;
-  		// length of doc in that field 
-  		long docLen = 0;
   		// the cumulative term frequency in corpus 
-  		long ctf = result.invertedList.ctf;
+  		long ctf = result.invertedList.getCollectionCtf();
   		_ctf = ctf;
   		//  length_terms (C) means the total term frequency of all terms in the entire collection
-  		long C = QryEval.READER.getSumTotalTermFreq(result.invertedList.field);
+  		long C = QryEval.getSumTotalTermFreq(result.invertedList.field);
   		_field = result.invertedList.field;
+  		_denominators = ScoreKernels.indriDenominators(_field, r.mu);
   		// PMLE is constant term per query
   		double PMLE = ((double) ctf) /((double)C);
-  		// Indri tunable param
-  		double lambda = r.lambda;
-  		// Indri tunable param
-  		double mu = r.mu;
-  		// Pdq will hold final score
-  		double Pdq = 0.0;
-  		
-  		for (int i = 0; i < result.invertedList.df; i++) {
-
-  		     // the term freq of term inside the document. 
-  		     termFreq = result.invertedList.postings.get(i).tf;
-  		     // lenght of the current document with the field x
-  		     docLen = QryEval.DocLenStore.getDocLength(result.invertedList.field, result.invertedList.postings.get(i).docid);
-  		     
-  		     // Indri SCORE formula
-  		     Pdq = (lambda*((termFreq + mu*PMLE)/(docLen + mu))) + ((1-lambda)*PMLE);
-  		     
-  		   result.docScores.add(result.invertedList.postings.get(i).docid, Pdq);
-  		} 
+
+  		// Indri SCORE formula: lambda*((tf + mu*PMLE)/(docLen + mu)) + (1-lambda)*PMLE
+
+  		scorePostings (result, new ScoreKernels.Indri (result.invertedList.field, r.lambda, r.mu, PMLE));
   		
   		 if (result.invertedList.df > 0)
   			result.invertedList = new InvList();
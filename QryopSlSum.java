@@ -68,13 +68,13 @@ public class QryopSlSum extends QryopSl {
     //  Sort the arguments so that the shortest lists are first.  This
     //  improves the efficiency of exact-match OR without changing
     //  the result.
-    int max = this.daatPtrs.get(0).scoreList.scores.size();
+    int max = this.daatPtrs.get(0).scoreList.size();
     int maxindex = 0;
     
     for (int i=1; i< this.daatPtrs.size(); i++) {
-    	if (max < this.daatPtrs.get(i).scoreList.scores.size() )
+    	if (max < this.daatPtrs.get(i).scoreList.size() )
     	{
-    		max = this.daatPtrs.get(i).scoreList.scores.size();
+    		max = this.daatPtrs.get(i).scoreList.size();
     		maxindex = i;
     	}
     }
@@ -91,7 +91,11 @@ public class QryopSlSum extends QryopSl {
     HashMap<Integer, Double> hm = new HashMap<Integer, Double>();
     double currScore = 0;
     
-    for ( ; ptr0.nextDoc < ptr0.scoreList.scores.size(); ptr0.nextDoc ++) {
+    Deadline deadline = Deadline.current ();
+
+    for ( ; ptr0.nextDoc < ptr0.scoreList.size(); ptr0.nextDoc ++) {
+      if (Deadline.expired (deadline))
+        break;
 
       int ptr0Docid = ptr0.scoreList.getDocid (ptr0.nextDoc);
    
@@ -111,7 +115,7 @@ public class QryopSlSum extends QryopSl {
     	  DaaTPtr ptrj = this.daatPtrs.get(j);
     	  
     	  //  If docid already not present, then add the doc id.
-    	  if (ptrj.nextDoc < ptr0.scoreList.scores.size() && ptrj.nextDoc <  ptrj.scoreList.scores.size() )
+    	  if (ptrj.nextDoc < ptr0.scoreList.size() && ptrj.nextDoc <  ptrj.scoreList.size() )
     	  {
     		  if (!hm.containsKey(ptrj.scoreList.getDocid (ptrj.nextDoc)))
     	      {
@@ -140,6 +144,38 @@ public class QryopSlSum extends QryopSl {
     return result;
   }
 
+  /**
+   *  Evaluates the query operator score-at-a-time with a precomputed
+   *  impact index.  This is only possible if every argument is a
+   *  plain term and the index was built with the model's parameters.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param index The impact index.
+   *  @param k The number of documents to return.
+   *  @return The top k documents, or null if the impact index can't be used.
+   */
+  public QryResult evaluateImpactOrdered (RetrievalModel r, ImpactIndex index, int k)
+    throws IOException {
+
+    if (! index.matches (r))
+      return null;
+
+    String[] terms = new String[this.args.size()];
+    String[] fields = new String[this.args.size()];
+
+    for (int i=0; i<this.args.size(); i++) {
+      if (! (this.args.get(i) instanceof QryopIlTerm))
+	return null;
+      terms[i] = ((QryopIlTerm) this.args.get(i)).getTerm();
+      fields[i] = ((QryopIlTerm) this.args.get(i)).getField();
+    }
+
+    double k3 = r.k_3;
+    int qtf = 1;
+    double USERweight = ((k3 + 1)*qtf)/(k3 + qtf);
+
+    return index.evaluateSum (terms, fields, USERweight, k);
+  }
+
   /*
    *  Calculate the default score for the specified document if it
    *  does not match the query operator.  This score is 0 for many
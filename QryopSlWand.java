@@ -0,0 +1,162 @@
+/**
+ *  This class implements the WAND (weighted AND) operator for the
+ *  Indri retrieval model.  Each argument is preceded by its weight,
+ *  e.g., #WAND( 0.7 apple 0.3 pie ), and a document's score is the
+ *  weighted geometric mean of its argument scores.
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class QryopSlWand extends QryopSl {
+
+  //  The weight of each argument, and the weight of the next argument
+  //  while the query is being parsed.
+
+  private List<Double> weights = new ArrayList<Double>();
+  private double nextWeight = Double.NaN;
+
+  /**
+   *  Constructor.  Arguments are given with addWeight and add.
+   */
+  public QryopSlWand() {
+  }
+
+  /**
+   *  Set the weight of the next argument.
+   *  @param w The weight.
+   */
+  public void addWeight (double w) {
+    this.nextWeight = w;
+  }
+
+  /**
+   *  @return True if the next token is expected to be a weight.
+   */
+  public boolean expectsWeight () {
+    return Double.isNaN(this.nextWeight);
+  }
+
+  /**
+   *  Appends an argument with the weight given by the last call to
+   *  addWeight.
+   *  @param {q} q The query argument (query operator) to append.
+   *  @return void
+   */
+  public void add (Qryop a) {
+    this.args.add(a);
+    this.weights.add(expectsWeight() ? 1.0 : this.nextWeight);
+    this.nextWeight = Double.NaN;
+  }
+
+  /**
+   *  Evaluates the query operator, including any child operators and
+   *  returns the result.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluate(RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelIndri)
+      return (evaluateIndri (r));
+
+    return null;
+  }
+
+  /**
+   *  Evaluates the query operator for the Indri retrieval model.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @return The result of evaluating the query.
+   *  @throws IOException
+   */
+  public QryResult evaluateIndri (RetrievalModel r) throws IOException {
+
+    allocDaaTPtrs (r);
+    QryResult result = new QryResult ();
+
+    double weightSum = 0.0;
+    for (double w : this.weights)
+      weightSum += w;
+
+    //  Each pass of the loop scores the smallest docid that any
+    //  argument is positioned on.  Arguments that don't match it
+    //  contribute their default scores.
+
+    Deadline deadline = Deadline.current ();
+
+    while (true) {
+      if (Deadline.expired (deadline))
+        break;
+
+      int minDoc = Integer.MAX_VALUE;
+
+      for (DaaTPtr ptri : this.daatPtrs)
+	if (ptri.nextDoc < ptri.scoreList.size())
+	  minDoc = Math.min(minDoc, ptri.scoreList.getDocid (ptri.nextDoc));
+
+      if (minDoc == Integer.MAX_VALUE)
+	break;
+
+      double answer = 1.0;
+
+      for (int i = 0; i < this.daatPtrs.size(); i++) {
+	DaaTPtr ptri = this.daatPtrs.get(i);
+	double score;
+
+	if (ptri.nextDoc < ptri.scoreList.size() &&
+	    ptri.scoreList.getDocid (ptri.nextDoc) == minDoc) {
+	  score = ptri.scoreList.getDocidScore (ptri.nextDoc);
+	  ptri.nextDoc ++;
+	} else
+	  score = ((QryopSl) this.args.get(i)).getDefaultScore (r, minDoc);
+
+	answer *= Math.pow (score, this.weights.get(i) / weightSum);
+      }
+
+      result.docScores.add (minDoc, answer);
+    }
+
+    freeDaaTPtrs ();
+
+    return result;
+  }
+
+  /*
+   *  Calculate the default score for a document that matches none of
+   *  the arguments: the weighted geometric mean of their default scores.
+   *  @param r A retrieval model that controls how the operator behaves.
+   *  @param docid The internal id of the document that needs a default score.
+   *  @return The default score.
+   */
+  public double getDefaultScore (RetrievalModel r, long docid) throws IOException {
+
+    if (! (r instanceof RetrievalModelIndri))
+      return 0.0;
+
+    double weightSum = 0.0;
+    for (double w : this.weights)
+      weightSum += w;
+
+    double answer = 1.0;
+    for (int i = 0; i < this.args.size(); i++)
+      answer *= Math.pow (((QryopSl) this.args.get(i)).getDefaultScore (r, docid),
+			  this.weights.get(i) / weightSum);
+
+    return answer;
+  }
+
+  /*
+   *  Return a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString(){
+
+    String result = new String ();
+
+    for (int i=0; i<this.args.size(); i++)
+      result += this.weights.get(i) + " " + this.args.get(i).toString() + " ";
+
+    return ("#WAND( " + result + ")");
+  }
+}
@@ -0,0 +1,212 @@
+/**
+ *  QueryExpansion implements pseudo-relevance feedback with the RM3
+ *  relevance model for the Indri retrieval model.
+ *
+ *  The top fbDocs documents of the original query are treated as
+ *  relevant.  Their term vectors are fetched in parallel, each
+ *  candidate term t gets the relevance model score
+ *
+ *    p(t|I) = sum over d of p(t|d) p(I|d)
+ *
+ *  where p(I|d) is the document's original score and p(t|d) is
+ *  smoothed with fbMu, and the fbTerms best terms form an expansion
+ *  query that is combined with the original query:
+ *
+ *    #WAND( fbOrigWeight #AND( original ) (1 - fbOrigWeight) #WAND( p1 t1 p2 t2 ... ) )
+ *
+ *  To bound the cost of expansion, only the fbCandidates terms with
+ *  the highest unsmoothed scores are scored with smoothing, and the
+ *  collection statistics of stems are cached by TermVector.
+ *
+ *  Parameters:
+ *    fb:                  true to expand queries.
+ *    fbDocs:              Number of feedback documents (10).
+ *    fbTerms:             Number of expansion terms (10).
+ *    fbMu:                Smoothing of p(t|d) (0).
+ *    fbOrigWeight:        Weight of the original query (0.5).
+ *    fbField:             Field that expansion terms come from (body).
+ *    fbCandidates:        Number of terms scored with smoothing (1000).
+ *    fbExpansionQueryFile: If set, expansion queries are written here.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.Term;
+
+public class QueryExpansion {
+
+  int fbDocs = 10;
+  int fbTerms = 10;
+  int fbCandidates = 1000;
+  double fbMu = 0.0;
+  double fbOrigWeight = 0.5;
+  String fbField = "body";
+
+  /**
+   *  Constructor.  Read the feedback parameters.
+   *  @param params The parameters.
+   */
+  public QueryExpansion(Map<String, String> params) {
+    if (params.containsKey("fbDocs"))
+      fbDocs = Integer.parseInt(params.get("fbDocs"));
+    if (params.containsKey("fbTerms"))
+      fbTerms = Integer.parseInt(params.get("fbTerms"));
+    if (params.containsKey("fbCandidates"))
+      fbCandidates = Integer.parseInt(params.get("fbCandidates"));
+    if (params.containsKey("fbMu"))
+      fbMu = Double.parseDouble(params.get("fbMu"));
+    if (params.containsKey("fbOrigWeight"))
+      fbOrigWeight = Double.parseDouble(params.get("fbOrigWeight"));
+    if (params.containsKey("fbField"))
+      fbField = params.get("fbField");
+  }
+
+  /**
+   *  A candidate expansion term and its score.
+   */
+  static class Candidate {
+    String stem;
+    long ctf;
+    double score = 0.0;
+
+    Candidate(String stem, long ctf) {
+      this.stem = stem;
+      this.ctf = ctf;
+    }
+  }
+
+  /**
+   *  Sorts candidates by descending score, then by stem.
+   */
+  static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+    public int compare(Candidate a, Candidate b) {
+      if (a.score != b.score)
+	return (a.score > b.score) ? -1 : 1;
+      return a.stem.compareTo(b.stem);
+    }
+  };
+
+  /**
+   *  Build the expansion terms for a query.
+   *  @param initial The result of the original query.
+   *  @return The expansion query, #WAND( p1 t1 p2 t2 ... ), or null if
+   *  no document matched the original query.
+   *  @throws IOException
+   */
+  public String expansionQuery(QryResult initial) throws IOException {
+
+    if (initial.invertedList.df > 0)
+      QryEval.convertToScorelist(initial);
+
+    ScoreList top = Federation.topDocs(initial.docScores, fbDocs);
+    int n = top.size();
+
+    if (n == 0)
+      return null;
+
+    //  Fetch the term vectors of the feedback documents in parallel.
+
+    List<Callable<TermVector>> tasks = new ArrayList<Callable<TermVector>>();
+
+    for (int d = 0; d < n; d++) {
+      final int docid = top.getDocid(d);
+      tasks.add(new Callable<TermVector>() {
+	public TermVector call() throws Exception {
+	  return new TermVector(docid, fbField);
+	}
+      });
+    }
+
+    List<TermVector> vectors = QryEval.invokeAll(tasks);
+
+    //  Gather the tf of each stem in each document, and rank the
+    //  stems by their unsmoothed relevance model scores.
+
+    List<Map<String, Integer>> tfs = new ArrayList<Map<String, Integer>>();
+    long[] docLen = new long[n];
+    double[] docWeight = new double[n];
+    Map<String, Double> roughScores = new HashMap<String, Double>();
+
+    for (int d = 0; d < n; d++) {
+      TermVector tv = vectors.get(d);
+      Map<String, Integer> tf = new HashMap<String, Integer>();
+
+      docLen[d] = QryEval.DocLenStore.getDocLength(fbField, top.getDocid(d));
+      docWeight[d] = top.getDocidScore(d);
+
+      for (int i = 1; i < tv.stemsLength(); i++) {
+	String stem = tv.stemString(i);
+
+	//  Stems that the query parser would split can't be used.
+
+	if (stem.indexOf('.') >= 0 || stem.indexOf(',') >= 0)
+	  continue;
+
+	tf.put(stem, tv.stemFreq(i));
+
+	Double s = roughScores.get(stem);
+	double add = docWeight[d] * tv.stemFreq(i) / Math.max(1, docLen[d]);
+	roughScores.put(stem, (s == null) ? add : s + add);
+      }
+      tfs.add(tf);
+    }
+
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    for (Map.Entry<String, Double> e : roughScores.entrySet()) {
+      Candidate c = new Candidate(e.getKey(), 0);
+      c.score = e.getValue();
+      candidates.add(c);
+    }
+    Collections.sort(candidates, BY_SCORE);
+    if (candidates.size() > fbCandidates)
+      candidates = candidates.subList(0, fbCandidates);
+
+    //  Score the candidates with smoothing.  Documents that don't
+    //  contain a term still give it its smoothed probability.
+
+    long C = QryEval.getSumTotalTermFreq(fbField);
+
+    for (Candidate c : candidates) {
+      c.ctf = TermVector.getStats(new Term(fbField, c.stem))[1];
+      double pmle = ((double) c.ctf) / ((double) C);
+      double score = 0.0;
+
+      for (int d = 0; d < n; d++) {
+
+	//  Without smoothing, an empty document has no distribution.
+
+	if (docLen[d] + fbMu <= 0)
+	  continue;
+
+	Integer tf = tfs.get(d).get(c.stem);
+	score += docWeight[d] * (((tf == null) ? 0 : tf) + fbMu * pmle) / (docLen[d] + fbMu);
+      }
+      c.score = score;
+    }
+
+    Collections.sort(candidates, BY_SCORE);
+
+    StringBuilder expansion = new StringBuilder("#wand(");
+    for (int i = 0; i < candidates.size() && i < fbTerms; i++) {
+      Candidate c = candidates.get(i);
+      expansion.append(String.format(Locale.US, " %.6f %s", c.score,
+				     fbField.equals("body") ? c.stem : c.stem + "." + fbField));
+    }
+    expansion.append(" )");
+
+    return expansion.toString();
+  }
+
+  /**
+   *  Combine the original query with its expansion query.
+   *  @param qString The original query.
+   *  @param expansion The expansion query.
+   *  @return The expanded query.
+   */
+  public String combine(String qString, String expansion) {
+    return String.format(Locale.US, "#wand( %.6f #and( %s ) %.6f %s )",
+			 fbOrigWeight, qString.trim(), 1 - fbOrigWeight, expansion);
+  }
+}
@@ -0,0 +1,392 @@
+/**
+ *  QueryParser converts query strings into query trees.
+ *
+ *  A hand-written lexer reads the query once, left to right, and a
+ *  recursive-descent parser builds an immutable Plan from its tokens:
+ *
+ *    query    := expr*
+ *    expr     := operator ( expr* ) | term
+ *    operator := #AND | #OR | #SYN | #SUM | #WAND | #NEAR/n
+ *    term     := text | text.field | text.field+field+...
+ *
+ *  Each argument of #WAND is preceded by its weight.  Blanks and
+ *  commas separate tokens.  Operator names are case-insensitive,
+ *  except that for the Indri retrieval model an upper-case #AND is
+ *  flattened into its parent.  The text of a term is processed by
+ *  QryEval.tokenizeQuery; a term that is removed (e.g., a stopword) is
+ *  dropped, with its weight.  Unless the query is a single operator,
+ *  its expressions are the arguments of the model's default operator:
+ *  #SUM for BM25, #AND for Indri and #OR for the Boolean models.
+ *  Syntax errors throw a QuerySyntaxException that gives the position
+ *  of the error.
+ *
+ *  Plans are cached by query string, so a query that is seen again is
+ *  not lexed, parsed or analyzed again.  A plan can be shared by
+ *  threads; each evaluation builds its own Qryop tree from it, because
+ *  query operators hold evaluation state.
+ *
+ *  Parameters:
+ *    parseCacheSize:  Number of cached plans (10000).  The cache is
+ *                     cleared when it is full; 0 turns it off.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class QueryParser {
+
+  static int parseCacheSize = 10000;
+  private static final ConcurrentHashMap<String, Plan> CACHE =
+    new ConcurrentHashMap<String, Plan>();
+
+  //  Kinds of plan nodes.  TOP is the query itself while it is parsed.
+
+  static final int TERM = 0;
+  static final int MULTI_FIELD = 1;
+  static final int AND = 2;
+  static final int OR = 3;
+  static final int SYN = 4;
+  static final int SUM = 5;
+  static final int WAND = 6;
+  static final int NEAR = 7;
+  static final int TOP = 8;
+
+  /**
+   *  A parsed query: an operator and its arguments, or a term.
+   */
+  static final class Plan {
+    final int kind;
+    final int distance;			// #NEAR/n
+    final String term;
+    final String[] fields;		// null for the default field
+    final Plan[] args;
+    final double[] weights;		// #WAND
+
+    Plan(int kind, int distance, String term, String[] fields,
+	 Plan[] args, double[] weights) {
+      this.kind = kind;
+      this.distance = distance;
+      this.term = term;
+      this.fields = fields;
+      this.args = args;
+      this.weights = weights;
+    }
+
+    /**
+     *  Build a new query tree for this plan.
+     *  @return The query tree.
+     *  @throws IOException
+     */
+    Qryop build() throws IOException {
+
+      if (kind == TERM)
+	return (fields == null) ? new QryopIlTerm(term) : new QryopIlTerm(term, fields[0]);
+      if (kind == MULTI_FIELD)
+	return new QryopSlMultiField(term, fields);
+
+      Qryop op;
+
+      if (kind == AND)
+	op = new QryopSlAnd();
+      else if (kind == OR)
+	op = new QryopSlOr();
+      else if (kind == SYN)
+	op = new QryopIlSyn();
+      else if (kind == SUM)
+	op = new QryopSlSum();
+      else if (kind == WAND)
+	op = new QryopSlWand();
+      else
+	op = new QryopIlNear(distance);
+
+      for (int i = 0; i < args.length; i++) {
+	if (kind == WAND)
+	  ((QryopSlWand) op).addWeight(weights[i]);
+	op.add(args[i].build());
+      }
+
+      return op;
+    }
+  }
+
+  //  The query being parsed, and the position of the next character.
+
+  private final String query;
+  private int pos = 0;
+
+  private QueryParser(String query) {
+    this.query = query;
+  }
+
+  /**
+   *  Convert a query string into a query tree.
+   *  @param qString The query.
+   *  @return The query tree.
+   *  @throws IOException If the query can't be parsed or analyzed.
+   */
+  static Qryop parse(String qString) throws IOException {
+    return plan(qString).build();
+  }
+
+  /**
+   *  Get the plan of a query, from the cache if it is there.
+   *  @param qString The query.
+   *  @return The plan.
+   *  @throws IOException If the query can't be parsed or analyzed.
+   */
+  static Plan plan(String qString) throws IOException {
+
+    //  The default operator and #AND flattening depend on the model.
+
+    String key = ((QryEval.model == null) ? "" : QryEval.model.getClass().getName()) + "\n" + qString;
+    Plan plan = CACHE.get(key);
+
+    if (plan == null) {
+      plan = new QueryParser(qString).parseQuery();
+
+      if (parseCacheSize > 0) {
+	if (CACHE.size() >= parseCacheSize)
+	  CACHE.clear();
+	CACHE.put(key, plan);
+      }
+    }
+
+    return plan;
+  }
+
+  /**
+   *  Get the terms at the leaves of a query's plan, in query order and
+   *  without duplicates.  A multi-field term gives a term in each of
+   *  its fields, and a term without a field is in the body field.
+   *  Operators and weights are ignored.
+   *  @param qString The query.
+   *  @return The terms.
+   *  @throws IOException If the query can't be parsed or analyzed.
+   */
+  static List<QryopIlTerm> terms(String qString) throws IOException {
+    List<QryopIlTerm> terms = new ArrayList<QryopIlTerm>();
+    collectTerms(plan(qString), terms, new HashSet<String>());
+    return terms;
+  }
+
+  private static void collectTerms(Plan p, List<QryopIlTerm> terms, Set<String> seen) {
+
+    if (p.kind == TERM || p.kind == MULTI_FIELD) {
+      String[] fields = (p.fields == null) ? new String[] { "body" } : p.fields;
+      for (String field : fields)
+	if (seen.add(p.term + "." + field))
+	  terms.add(new QryopIlTerm(p.term, field));
+      return;
+    }
+
+    for (Plan arg : p.args)
+      collectTerms(arg, terms, seen);
+  }
+
+  /**
+   *  query := expr*
+   */
+  private Plan parseQuery() throws IOException {
+
+    List<Plan> args = new ArrayList<Plan>();
+    List<Double> weights = new ArrayList<Double>();
+
+    parseArgs(TOP, args, weights);
+
+    if (pos < query.length())
+      throw new QuerySyntaxException("Unmatched )", query, pos);
+
+    if (args.size() == 1 && args.get(0).kind >= AND)
+      return args.get(0);
+
+    int kind;
+    if (QryEval.model instanceof RetrievalModelBM25)
+      kind = SUM;
+    else if (QryEval.model instanceof RetrievalModelIndri)
+      kind = AND;
+    else
+      kind = OR;
+
+    return new Plan(kind, 0, null, null, args.toArray(new Plan[args.size()]), null);
+  }
+
+  /**
+   *  Parse expressions until a ) or the end of the query.
+   *  @param parent The kind of operator that the expressions are arguments of.
+   *  @param args Where the expressions are added.
+   *  @param weights Where their weights are added.
+   */
+  private void parseArgs(int parent, List<Plan> args, List<Double> weights) throws IOException {
+
+    while (true) {
+      skipSeparators();
+
+      if (pos == query.length() || query.charAt(pos) == ')')
+	return;
+
+      int start = pos;
+      double weight = 1.0;
+
+      if (parent == WAND) {
+	String w = readWord();
+
+	try {
+	  weight = Double.parseDouble(w);
+	} catch (NumberFormatException e) {
+	  throw new QuerySyntaxException("Expected a #WAND weight", query, start);
+	}
+
+	skipSeparators();
+	if (pos == query.length() || query.charAt(pos) == ')')
+	  throw new QuerySyntaxException("Missing the argument of a #WAND weight", query, pos);
+	start = pos;
+      }
+
+      String word = readWord();
+
+      if (word.length() == 0)
+	throw new QuerySyntaxException("Unexpected (", query, start);
+
+      if (word.charAt(0) == '#') {
+	Plan op = parseOperator(word, start);
+
+	//  #AND is flattened for Indri, except in #WAND, whose
+	//  arguments each need their own weight.
+
+	if (op.kind == AND && word.equals("#AND") && parent != WAND &&
+	    QryEval.model instanceof RetrievalModelIndri) {
+	  for (Plan arg : op.args) {
+	    args.add(arg);
+	    weights.add(1.0);
+	  }
+	  continue;
+	}
+
+	args.add(op);
+	weights.add(weight);
+      } else {
+	Plan term = parseTerm(word);
+
+	if (term != null) {
+	  args.add(term);
+	  weights.add(weight);
+	}
+      }
+    }
+  }
+
+  /**
+   *  expr := operator ( expr* )
+   *  @param word The operator name.
+   *  @param start The position of the operator name.
+   */
+  private Plan parseOperator(String word, int start) throws IOException {
+
+    String name = word.toLowerCase();
+    int kind, distance = 0;
+
+    if (name.equals("#and"))
+      kind = AND;
+    else if (name.equals("#or"))
+      kind = OR;
+    else if (name.equals("#syn"))
+      kind = SYN;
+    else if (name.equals("#sum"))
+      kind = SUM;
+    else if (name.equals("#wand"))
+      kind = WAND;
+    else if (name.startsWith("#near/")) {
+      kind = NEAR;
+      try {
+	distance = Integer.parseInt(name.substring(6));
+      } catch (NumberFormatException e) {
+	throw new QuerySyntaxException("Expected a distance in " + word, query, start + 6);
+      }
+      if (distance < 0)
+	throw new QuerySyntaxException("Expected a distance in " + word, query, start + 6);
+    } else
+      throw new QuerySyntaxException("Unknown operator " + word, query, start);
+
+    skipSeparators();
+    if (pos == query.length() || query.charAt(pos) != '(')
+      throw new QuerySyntaxException("Expected ( after " + word, query, pos);
+    pos++;
+
+    List<Plan> args = new ArrayList<Plan>();
+    List<Double> weights = new ArrayList<Double>();
+
+    parseArgs(kind, args, weights);
+
+    if (pos == query.length())
+      throw new QuerySyntaxException("Missing ) of " + word, query, start);
+    pos++;
+
+    double[] w = null;
+    if (kind == WAND) {
+      w = new double[weights.size()];
+      for (int i = 0; i < w.length; i++)
+	w[i] = weights.get(i);
+    }
+
+    return new Plan(kind, distance, null, null, args.toArray(new Plan[args.size()]), w);
+  }
+
+  /**
+   *  term := text | text.field | text.field+field+...
+   *  @param word The term.
+   *  @return The plan of the term, or null if lexical processing
+   *  removed it.
+   */
+  private Plan parseTerm(String word) throws IOException {
+
+    int dot = word.indexOf('.');
+    String text = (dot < 0) ? word : word.substring(0, dot);
+    String field = null;
+
+    if (dot >= 0) {
+      int end = word.indexOf('.', dot + 1);
+      field = word.substring(dot + 1, (end < 0) ? word.length() : end);
+      if (field.length() == 0)
+	field = null;
+    }
+
+    String[] vals = QryEval.tokenizeQuery(text);
+
+    if (vals.length == 0)
+      return null;
+
+    if (field != null && field.indexOf('+') >= 0)	// apple.title+body is a multi-field term
+      return new Plan(MULTI_FIELD, 0, vals[0], field.split("\\+"), null, null);
+
+    return new Plan(TERM, 0, vals[0], (field == null) ? null : new String[] { field }, null, null);
+  }
+
+  /**
+   *  Skip blanks and commas.
+   */
+  private void skipSeparators() {
+    while (pos < query.length()) {
+      char c = query.charAt(pos);
+      if (c != ' ' && c != ',' && c != '\t' && c != '\n' && c != '\r')
+	return;
+      pos++;
+    }
+  }
+
+  /**
+   *  Read the characters up to the next separator or parenthesis.
+   *  @return The word, which is empty if the next character is a
+   *  parenthesis.
+   */
+  private String readWord() {
+    int start = pos;
+    while (pos < query.length()) {
+      char c = query.charAt(pos);
+      if (c == ' ' || c == ',' || c == '\t' || c == '\n' || c == '\r' || c == '(' || c == ')')
+	break;
+      pos++;
+    }
+    return query.substring(start, pos);
+  }
+}
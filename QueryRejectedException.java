@@ -0,0 +1,32 @@
+/**
+ *  QueryRejectedException is thrown when QueryScheduler does not
+ *  evaluate a query because the estimated cost of the queued queries
+ *  is too high: either the query was not admitted, or it was shed
+ *  from the queue to make room for an interactive query.
+ */
+
+import java.io.*;
+
+public class QueryRejectedException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final boolean shed;
+
+  /**
+   *  Constructor.
+   *  @param message Why the query was rejected.
+   *  @param shed True if the query had been admitted and was shed.
+   */
+  public QueryRejectedException(String message, boolean shed) {
+    super(message);
+    this.shed = shed;
+  }
+
+  /**
+   *  @return True if the query had been admitted and was shed.
+   */
+  public boolean wasShed() {
+    return this.shed;
+  }
+}
@@ -0,0 +1,524 @@
+/**
+ *  QueryScheduler sits in front of query evaluation when QryEval runs
+ *  as a shared service, so one heavy query can't starve cheap
+ *  interactive ones.
+ *
+ *  The cost of a query is estimated before it is evaluated, from its
+ *  parsed plan and the df and ctf of its terms: the number of postings
+ *  that evaluation reads, counting positions for the arguments of
+ *  #SYN and #NEAR, which merge position lists.
+ *
+ *  Queries are submitted in one of two priority classes, INTERACTIVE
+ *  and BATCH.  Each class has its own queue and its own workers, so at
+ *  most schedulerInteractiveThreads interactive and
+ *  schedulerBatchThreads batch queries are evaluated at once, and
+ *  batch work can never occupy the workers of interactive queries.
+ *  Within a class, the query with the earliest expected completion
+ *  time (arrival time plus estimated evaluation time) is run first: a
+ *  cheap query overtakes an expensive one that arrived a little
+ *  earlier, but an expensive query is not passed over forever.  The
+ *  time per unit of cost is learned from the queries that complete.
+ *
+ *  Admission control keeps the estimated cost of the queued queries
+ *  under schedulerMaxQueuedCost.  A batch query that would cross it is
+ *  rejected.  An interactive query sheds queued batch queries, the
+ *  most expensive first, until it fits; it is rejected only if it
+ *  still does not fit.  Rejected and shed queries fail with a
+ *  QueryRejectedException.
+ *
+ *  The queueing delay of each query (the time from submission until
+ *  a worker starts it) is recorded, and metrics() reports it per class.
+ *
+ *  Parameters:
+ *    schedulerInteractiveThreads:  Interactive queries evaluated at once
+ *                                  (one per available processor).
+ *    schedulerBatchThreads:        Batch queries evaluated at once (half
+ *                                  of the available processors).
+ *    schedulerMaxQueuedCost:       Estimated cost of the queued queries
+ *                                  above which queries are shed or
+ *                                  rejected (0, no limit).
+ *    schedulerInteractiveTimeout:  Time budget of interactive queries in
+ *                                  milliseconds (queryTimeout).
+ *    schedulerBatchTimeout:        Time budget of batch queries in
+ *                                  milliseconds (queryTimeout).
+ *
+ *  The main program replays the query file as batch queries,
+ *  interleaved with the queries of scheduler:interactiveQueryFilePath,
+ *  if it is given, as interactive queries, and reports each query's
+ *  cost, queueing delay and evaluation time, and the metrics.
+ *
+ *  Usage:  java QueryScheduler paramFile
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class QueryScheduler {
+
+  static final int INTERACTIVE = 0;
+  static final int BATCH = 1;
+  static final String[] CLASS_NAMES = { "interactive", "batch" };
+
+  static int interactiveThreads = Runtime.getRuntime().availableProcessors();
+  static int batchThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  static long maxQueuedCost = 0;
+  static long interactiveTimeout = -1;		// -1: Deadline.timeout
+  static long batchTimeout = -1;
+
+  //  Queueing delays that are kept per class for the percentiles.
+
+  static final int DELAY_WINDOW = 1024;
+
+  private final List<PriorityBlockingQueue<Ticket>> queues =
+    new ArrayList<PriorityBlockingQueue<Ticket>>();
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private final long[] timeouts = new long[2];
+
+  private long queuedCost = 0;
+  private long sequence = 0;
+  private volatile boolean shutdown = false;
+
+  //  Nanoseconds of evaluation per unit of estimated cost, a moving
+  //  average over the completed queries.
+
+  private volatile double nanosPerCost = 100.0;
+
+  //  Metrics, per class.  Guarded by this.
+
+  private final long[] submitted = new long[2];
+  private final long[] started = new long[2];
+  private final long[] rejected = new long[2];
+  private final long[] shed = new long[2];
+  private final long[] delayTotal = new long[2];
+  private final long[] delayMax = new long[2];
+  private final long[][] delays = new long[2][DELAY_WINDOW];
+
+  /**
+   *  A query that was submitted to the scheduler.
+   */
+  class Ticket implements Comparable<Ticket> {
+    final String query;
+    final int priorityClass;
+    final long cost;
+    private final long seq;
+    private final long submitNanos;
+    private final long dueNanos;		// Expected completion time.
+    private long startNanos = 0;
+    private long endNanos = 0;
+    private QryResult result = null;
+    private IOException error = null;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    Ticket(String query, int priorityClass, long cost, long seq) {
+      this.query = query;
+      this.priorityClass = priorityClass;
+      this.cost = cost;
+      this.seq = seq;
+      this.submitNanos = System.nanoTime();
+      this.dueNanos = submitNanos + (long) (cost * nanosPerCost);
+    }
+
+    public int compareTo(Ticket t) {
+      if (dueNanos != t.dueNanos)
+	return (dueNanos < t.dueNanos) ? -1 : 1;
+      return Long.compare(seq, t.seq);
+    }
+
+    /**
+     *  Wait for the query to be evaluated.
+     *  @return The result of evaluating the query.
+     *  @throws QueryRejectedException If the query was shed.
+     *  @throws DeadlineExceededException If the query was cancelled.
+     *  @throws IOException If evaluation failed.
+     */
+    QryResult get() throws IOException {
+      try {
+	done.await();
+      } catch (InterruptedException e) {
+	Thread.currentThread().interrupt();
+	throw new InterruptedIOException("Interrupted while waiting for a query");
+      }
+      if (error != null)
+	throw error;
+      return result;
+    }
+
+    /**
+     *  @return True if the query has been evaluated, or has failed.
+     */
+    boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     *  @return The time from submission until evaluation started, in
+     *  milliseconds, or -1 if evaluation has not started.
+     */
+    double queueDelay() {
+      return (startNanos == 0) ? -1 : (startNanos - submitNanos) / 1e6;
+    }
+
+    /**
+     *  @return The evaluation time in milliseconds, or -1 if the query
+     *  has not been evaluated.
+     */
+    double evaluationTime() {
+      return (startNanos == 0 || endNanos == 0) ? -1 : (endNanos - startNanos) / 1e6;
+    }
+
+    private void finish(QryResult result, IOException error) {
+      this.endNanos = System.nanoTime();
+      this.result = result;
+      this.error = error;
+      done.countDown();
+    }
+  }
+
+  /**
+   *  Constructor.  Starts the workers of each class.
+   */
+  QueryScheduler() {
+
+    int[] threads = { Math.max(1, interactiveThreads), Math.max(1, batchThreads) };
+    timeouts[INTERACTIVE] = (interactiveTimeout >= 0) ? interactiveTimeout : Deadline.timeout;
+    timeouts[BATCH] = (batchTimeout >= 0) ? batchTimeout : Deadline.timeout;
+
+    for (int c = 0; c < 2; c++) {
+      queues.add(new PriorityBlockingQueue<Ticket>());
+
+      for (int i = 0; i < threads[c]; i++) {
+	final int priorityClass = c;
+	Thread worker = new Thread(new Runnable() {
+	  public void run() {
+	    work(priorityClass);
+	  }
+	}, "QueryScheduler-" + CLASS_NAMES[c] + "-" + i);
+	worker.setDaemon(true);
+	worker.start();
+	workers.add(worker);
+      }
+    }
+  }
+
+  /**
+   *  Submit a query for evaluation.
+   *  @param query The query.
+   *  @param priorityClass INTERACTIVE or BATCH.
+   *  @return The ticket of the query.
+   *  @throws QuerySyntaxException If the query can't be parsed.
+   *  @throws QueryRejectedException If the query was not admitted.
+   *  @throws IOException
+   */
+  Ticket submit(String query, int priorityClass) throws IOException {
+
+    if (priorityClass != INTERACTIVE && priorityClass != BATCH)
+      throw new IllegalArgumentException("Unknown priority class " + priorityClass);
+    if (shutdown)
+      throw new QueryRejectedException("Error: The scheduler has been shut down", false);
+
+    //  The estimate reads term statistics, so a live index must not be
+    //  refreshed under it.
+
+    QueryParser.Plan plan = QueryParser.plan(query);
+    long cost;
+
+    if (QryEval.LIVE != null)
+      QryEval.LIVE.acquire();
+    try {
+      cost = estimateCost(plan);
+    } finally {
+      if (QryEval.LIVE != null)
+	QryEval.LIVE.release();
+    }
+
+    Ticket ticket;
+
+    synchronized (this) {
+      submitted[priorityClass]++;
+
+      if (maxQueuedCost > 0 && queuedCost + cost > maxQueuedCost) {
+	if (priorityClass == INTERACTIVE)
+	  shedBatch(queuedCost + cost - maxQueuedCost);
+
+	if (queuedCost + cost > maxQueuedCost) {
+	  rejected[priorityClass]++;
+	  throw new QueryRejectedException("Error: Query rejected; the estimated cost of the queue (" +
+					   queuedCost + " + " + cost + ") exceeds " + maxQueuedCost,
+					   false);
+	}
+      }
+
+      queuedCost += cost;
+      ticket = new Ticket(query, priorityClass, cost, sequence++);
+    }
+
+    queues.get(priorityClass).add(ticket);
+    return ticket;
+  }
+
+  /**
+   *  Shed queued batch queries, the most expensive first.  Called with
+   *  the lock held.
+   *  @param excess The cost to shed.
+   */
+  private void shedBatch(long excess) {
+
+    List<Ticket> queued = new ArrayList<Ticket>(queues.get(BATCH));
+
+    Collections.sort(queued, new Comparator<Ticket>() {
+      public int compare(Ticket x, Ticket y) {
+	return Long.compare(y.cost, x.cost);
+      }
+    });
+
+    for (Ticket t : queued) {
+      if (excess <= 0)
+	break;
+
+      //  A worker may have taken it in the meantime.
+
+      if (queues.get(BATCH).remove(t)) {
+	queuedCost -= t.cost;
+	excess -= t.cost;
+	shed[BATCH]++;
+	t.finish(null, new QueryRejectedException("Error: Query shed to admit an interactive query", true));
+      }
+    }
+  }
+
+  /**
+   *  The loop of a worker: take the next query of a class and
+   *  evaluate it.
+   */
+  private void work(int priorityClass) {
+
+    PriorityBlockingQueue<Ticket> queue = queues.get(priorityClass);
+
+    while (! shutdown) {
+      Ticket t;
+
+      try {
+	t = queue.take();
+      } catch (InterruptedException e) {
+	break;
+      }
+
+      t.startNanos = System.nanoTime();
+      long delay = t.startNanos - t.submitNanos;
+
+      synchronized (this) {
+	queuedCost -= t.cost;
+	delays[priorityClass][(int) (started[priorityClass] % DELAY_WINDOW)] = delay;
+	delayTotal[priorityClass] += delay;
+	delayMax[priorityClass] = Math.max(delayMax[priorityClass], delay);
+	started[priorityClass]++;
+      }
+
+      QryResult result = null;
+      IOException error = null;
+
+      //  A live index is not refreshed while the query is evaluated.
+
+      if (QryEval.LIVE != null)
+	QryEval.LIVE.acquire();
+      try {
+	result = QryEval.evaluateQuery(t.query, timeouts[priorityClass], Deadline.cancel);
+      } catch (IOException e) {
+	error = e;
+      } catch (RuntimeException e) {
+	error = new IOException(e);
+      } finally {
+	if (QryEval.LIVE != null)
+	  QryEval.LIVE.release();
+      }
+
+      t.finish(result, error);
+
+      if (t.cost > 0) {
+	double rate = (t.endNanos - t.startNanos) / (double) t.cost;
+	nanosPerCost = 0.9 * nanosPerCost + 0.1 * rate;
+      }
+    }
+  }
+
+  /**
+   *  Stop the workers.  Queued queries are not evaluated.
+   */
+  void shutdown() {
+    shutdown = true;
+    for (Thread worker : workers)
+      worker.interrupt();
+  }
+
+  /**
+   *  @return The estimated cost of the queries that are waiting.
+   */
+  synchronized long queuedCost() {
+    return queuedCost;
+  }
+
+  /**
+   *  Get a percentile of the queueing delay of the recent queries of
+   *  a class.
+   *  @param priorityClass INTERACTIVE or BATCH.
+   *  @param quantile E.g., 0.95.
+   *  @return The delay in milliseconds, or 0 if no query has started.
+   */
+  synchronized double queueDelay(int priorityClass, double quantile) {
+
+    int n = (int) Math.min(started[priorityClass], DELAY_WINDOW);
+
+    if (n == 0)
+      return 0;
+
+    long[] sorted = Arrays.copyOf(delays[priorityClass], n);
+    Arrays.sort(sorted);
+    int i = (int) Math.ceil(quantile * n) - 1;
+    return sorted[Math.max(0, Math.min(n - 1, i))] / 1e6;
+  }
+
+  /**
+   *  @return A report of the queries and queueing delays of each
+   *  class, one line per class.
+   */
+  synchronized String metrics() {
+
+    StringBuilder b = new StringBuilder();
+
+    for (int c = 0; c < 2; c++) {
+      b.append(String.format(Locale.US,
+			     "%s\tsubmitted %d\tstarted %d\trejected %d\tshed %d\t" +
+			     "queue delay ms: mean %.3f p50 %.3f p95 %.3f max %.3f\n",
+			     CLASS_NAMES[c], submitted[c], started[c], rejected[c], shed[c],
+			     (started[c] == 0) ? 0.0 : delayTotal[c] / 1e6 / started[c],
+			     queueDelay(c, 0.5), queueDelay(c, 0.95), delayMax[c] / 1e6));
+    }
+
+    b.append("queued cost\t" + queuedCost + "\n");
+    return b.toString();
+  }
+
+  /**
+   *  Estimate the cost of evaluating a query: the number of postings
+   *  that are read, counting the positions of the terms whose position
+   *  lists are merged, plus one per operator.
+   *  @param plan The plan of the query.
+   *  @return The estimated cost.
+   *  @throws IOException
+   */
+  static long estimateCost(QueryParser.Plan plan) throws IOException {
+    return estimateCost(plan, false);
+  }
+
+  private static long estimateCost(QueryParser.Plan plan, boolean positions) throws IOException {
+
+    if (plan.kind == QueryParser.TERM)
+      return Qryop.termCost(plan.term, (plan.fields == null) ? "body" : plan.fields[0], positions);
+
+    if (plan.kind == QueryParser.MULTI_FIELD) {
+      long cost = 1;
+      for (String field : plan.fields)
+	cost += Qryop.termCost(plan.term, field, positions);
+      return cost;
+    }
+
+    //  #SYN and #NEAR merge the position lists of their arguments.
+
+    boolean argPositions = (plan.kind == QueryParser.SYN || plan.kind == QueryParser.NEAR);
+    long cost = 1;
+
+    for (QueryParser.Plan arg : plan.args)
+      cost += estimateCost(arg, argPositions);
+
+    return cost;
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java QueryScheduler paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if ((!params.containsKey("indexPath") && !params.containsKey("indexPaths")) ||
+	!params.containsKey("queryFilePath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    QryEval.open(params);
+
+    List<String[]> batch = queries(params.get("queryFilePath"));
+    List<String[]> interactive = params.containsKey("scheduler:interactiveQueryFilePath") ?
+      queries(params.get("scheduler:interactiveQueryFilePath")) : new ArrayList<String[]>();
+
+    //  Interleave the two classes, as they would arrive at a service.
+
+    QueryScheduler scheduler = new QueryScheduler();
+    List<String> names = new ArrayList<String>();
+    List<Ticket> tickets = new ArrayList<Ticket>();
+
+    for (int i = 0; i < Math.max(batch.size(), interactive.size()); i++)
+      for (int c = 0; c < 2; c++) {
+	List<String[]> list = (c == INTERACTIVE) ? interactive : batch;
+
+	if (i >= list.size())
+	  continue;
+
+	names.add(CLASS_NAMES[c] + "\t" + list.get(i)[0]);
+
+	try {
+	  tickets.add(scheduler.submit(list.get(i)[1], c));
+	} catch (IOException e) {
+	  tickets.add(null);
+	  System.err.println("Warning: Query " + list.get(i)[0] + ": " + e.getMessage());
+	}
+      }
+
+    System.out.println("class\tqid\tcost\tqueue ms\teval ms\tstatus");
+
+    for (int i = 0; i < tickets.size(); i++) {
+      Ticket t = tickets.get(i);
+      String status;
+
+      if (t == null) {
+	System.out.println(names.get(i) + "\t-\t-\t-\trejected");
+	continue;
+      }
+
+      try {
+	status = t.get().partial ? "partial" : "ok";
+      } catch (QueryRejectedException e) {
+	status = e.wasShed() ? "shed" : "rejected";
+      } catch (IOException e) {
+	status = e.getMessage();
+      }
+
+      System.out.println(names.get(i) + "\t" + t.cost + "\t" +
+			 String.format(Locale.US, "%.3f\t%.3f", t.queueDelay(), t.evaluationTime()) +
+			 "\t" + status);
+    }
+
+    System.out.print(scheduler.metrics());
+    scheduler.shutdown();
+  }
+
+  /**
+   *  @return The queries of a query file in file order, as { id, text }.
+   */
+  private static List<String[]> queries(String queryFile) throws IOException {
+
+    List<String[]> list = new ArrayList<String[]>();
+    QueryStream queries = new QueryStream(queryFile);
+
+    try {
+      for (QueryStream.Query q; (q = queries.next()) != null; )
+	list.add(new String[] { Integer.toString(q.id), q.text });
+    } finally {
+      queries.close();
+    }
+
+    return list;
+  }
+}
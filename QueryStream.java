@@ -0,0 +1,155 @@
+/**
+ *  QueryStream reads a query file lazily, in file order.  Each line is
+ *  qid:query.  A reader thread parses lines into a bounded queue, so
+ *  reading overlaps evaluation, and at most queryLookahead queries are
+ *  held in memory: when evaluation or output is slower than reading,
+ *  the reader waits.
+ *
+ *  Blank lines are skipped.  Malformed lines (no colon, or a qid that
+ *  isn't an integer) are reported on System.err and skipped.
+ *
+ *  Parameters:
+ *    queryLookahead:  Number of queries read ahead of evaluation (1000).
+ */
+
+import java.io.*;
+import java.util.concurrent.*;
+
+public class QueryStream implements Closeable {
+
+  static int lookahead = 1000;
+
+  /**
+   *  A query and where it came from.
+   */
+  static class Query {
+    final int id;
+    final String text;
+    final int line;
+
+    Query(int id, String text, int line) {
+      this.id = id;
+      this.text = text;
+      this.line = line;
+    }
+  }
+
+  //  Marks the end of the file in the queue.
+
+  private static final Query END = new Query(0, null, 0);
+
+  private final String filename;
+  private final BlockingQueue<Query> queue;
+  private final Thread reader;
+  private volatile IOException error = null;
+  private boolean done = false;
+
+  /**
+   *  Open a query file and start reading it.
+   *  @param filename The query file.
+   *  @throws IOException If the file can't be opened.
+   */
+  public QueryStream(String filename) throws IOException {
+
+    final BufferedReader br = new BufferedReader(new FileReader(filename));
+
+    this.filename = filename;
+    this.queue = new ArrayBlockingQueue<Query>(Math.max(1, lookahead));
+    this.reader = new Thread(new Runnable() {
+      public void run() {
+	read(br);
+      }
+    }, "QueryStream");
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  /**
+   *  Read the file into the queue.  Runs on the reader thread.
+   */
+  private void read(BufferedReader br) {
+    try {
+      int n = 0;
+
+      for (String line; (line = br.readLine()) != null; ) {
+	Query q = parseLine(line, ++n);
+	if (q != null)
+	  queue.put(q);
+      }
+    } catch (IOException e) {
+      error = e;
+    } catch (InterruptedException e) {
+      return;				// Closed.
+    } finally {
+      try {
+	br.close();
+      } catch (IOException e) {
+      }
+    }
+
+    try {
+      queue.put(END);
+    } catch (InterruptedException e) {
+    }
+  }
+
+  /**
+   *  Parse a line of the query file.
+   *  @param line The line.
+   *  @param n The line number.
+   *  @return The query, or null if the line is blank or malformed.
+   */
+  Query parseLine(String line, int n) {
+
+    if (line.trim().length() == 0)
+      return null;
+
+    int colon = line.indexOf(':');
+
+    if (colon >= 0) {
+      try {
+	return new Query(Integer.parseInt(line.substring(0, colon).trim()), line.substring(colon + 1), n);
+      } catch (NumberFormatException e) {
+      }
+    }
+
+    System.err.println("Warning: Skipping malformed line " + n + " of " + filename + ": " + line);
+    return null;
+  }
+
+  /**
+   *  Get the next query, waiting for the reader if necessary.
+   *  @return The next query in file order, or null at the end of the file.
+   *  @throws IOException If the file couldn't be read.
+   */
+  public Query next() throws IOException {
+
+    if (done)
+      return null;
+
+    Query q;
+
+    try {
+      q = queue.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while reading " + filename);
+    }
+
+    if (q == END) {
+      done = true;
+      if (error != null)
+	throw error;
+      return null;
+    }
+
+    return q;
+  }
+
+  /**
+   *  Stop reading.  Queries that were not read yet are discarded.
+   */
+  public void close() {
+    done = true;
+    reader.interrupt();
+  }
+}
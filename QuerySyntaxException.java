@@ -0,0 +1,40 @@
+/**
+ *  QuerySyntaxException is thrown when a query can't be parsed.  It
+ *  records the position in the query where the error was found.
+ */
+
+import java.io.*;
+
+public class QuerySyntaxException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String query;
+  private final int position;
+
+  /**
+   *  Constructor.
+   *  @param message What is wrong.
+   *  @param query The query.
+   *  @param position The character offset of the error in the query.
+   */
+  public QuerySyntaxException(String message, String query, int position) {
+    super("Error: " + message + " at position " + position + " of query: " + query);
+    this.query = query;
+    this.position = position;
+  }
+
+  /**
+   *  @return The query.
+   */
+  public String getQuery() {
+    return this.query;
+  }
+
+  /**
+   *  @return The character offset of the error in the query.
+   */
+  public int getPosition() {
+    return this.position;
+  }
+}
@@ -0,0 +1,376 @@
+/**
+ *  RankSafety checks that optimized configurations rank documents as
+ *  the reference evaluation does.  A query file is run through
+ *  QryEval with the baseline parameters and with each configuration,
+ *  and the TREC runs that writeResults produced are compared query by
+ *  query: the same documents must be at the same ranks, with scores
+ *  that agree within a tolerance.  The first divergence of each query
+ *  is reported.  The baseline is run with sidecars=false, so that it
+ *  reads nothing but the Lucene index even if sidecar files exist.
+ *
+ *  A configuration is a parameter file whose parameters are added to,
+ *  or replace, the baseline parameters, e.g., a file that only sets
+ *  prunedTier or segmentParallel.  Each run is a separate QryEval
+ *  process, because QryEval's state is static.  The parameters, run
+ *  and output of each process are kept in rankSafety:runDir.
+ *
+ *  Lucene's docFreq and totalTermFreq count deleted documents until
+ *  their segments are merged, so statistics that are computed
+ *  differently by different paths often agree until documents are
+ *  deleted.  rankSafety:deleteEvery checks the configurations on a copy
+ *  of the index in which documents are deleted; the copy's segments are
+ *  not merged.  Sidecar files must then be built for the copy, which
+ *  rankSafety:build does before a run.  The segments and deleted
+ *  documents of the index are reported, because a check of
+ *  segmentParallel on an index with one segment, or of statistics on
+ *  an index without deletions, proves little.
+ *
+ *  Parameters are those of QryEval, plus:
+ *    rankSafety:tolerance:    Largest relative score difference that
+ *                             is not a divergence (1e-9).
+ *    rankSafety:depth:        Number of ranks compared per query (all).
+ *    rankSafety:runDir:       Where runs are written (java.io.tmpdir).
+ *    rankSafety:baselineRun:  An existing baseline run to compare with,
+ *                             instead of running the baseline.
+ *    rankSafety:deleteEvery:  Check a copy of indexPath, kept in runDir,
+ *                             in which every n'th document is deleted
+ *                             (0: check indexPath itself).
+ *    rankSafety:build:        Classes whose main builds sidecar files from
+ *                             a parameter file (e.g., CompressedPostings,
+ *                             PrunedIndex), run with a run's parameters
+ *                             before the run.  It is usually set in a
+ *                             configuration, with the paths of the files.
+ *
+ *  The exit status is 1 if any configuration diverged.
+ *
+ *  Usage:  java RankSafety paramFile configFile [configFile ...]
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.Version;
+
+public class RankSafety {
+
+  static double tolerance = 1e-9;
+  static int depth = Integer.MAX_VALUE;
+
+  /**
+   *  One line of a TREC run.
+   */
+  static class Entry {
+    String docid;
+    double score;
+
+    public String toString() {
+      return docid + " (" + score + ")";
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 2) {
+      System.err.println("Usage:  java RankSafety paramFile configFile [configFile ...]");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if ((!params.containsKey("indexPath") && !params.containsKey("indexPaths")) ||
+	!params.containsKey("queryFilePath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    if (params.containsKey("rankSafety:tolerance"))
+      tolerance = Double.parseDouble(params.get("rankSafety:tolerance"));
+    if (params.containsKey("rankSafety:depth"))
+      depth = Integer.parseInt(params.get("rankSafety:depth"));
+
+    File runDir = new File(params.containsKey("rankSafety:runDir") ?
+			   params.get("rankSafety:runDir") : System.getProperty("java.io.tmpdir"));
+
+    if (! runDir.isDirectory() && ! runDir.mkdirs())
+      QryEval.fatalError("Error: Can't create " + runDir);
+
+    if (params.containsKey("rankSafety:deleteEvery") &&
+	Integer.parseInt(params.get("rankSafety:deleteEvery")) > 0) {
+      if (! params.containsKey("indexPath"))
+	QryEval.fatalError("Error: rankSafety:deleteEvery needs indexPath.");
+      params.put("indexPath", deleteDocuments(params.get("indexPath"),
+					      Integer.parseInt(params.get("rankSafety:deleteEvery")),
+					      new File(runDir, "index")));
+    }
+
+    if (params.containsKey("indexPath"))
+      describe(params.get("indexPath"));
+
+    //  The baseline.
+
+    File baselineRun;
+
+    if (params.containsKey("rankSafety:baselineRun"))
+      baselineRun = new File(params.get("rankSafety:baselineRun"));
+    else {
+      Map<String, String> reference = new HashMap<String, String>();
+      reference.put("sidecars", "false");
+      baselineRun = run("baseline", params, reference, runDir);
+    }
+
+    Map<String, List<Entry>> baseline = readRun(baselineRun);
+
+    //  Each configuration.
+
+    boolean diverged = false;
+
+    for (int i = 1; i < args.length; i++) {
+      String name = new File(args[i]).getName().replaceFirst("\\.[^.]*$", "");
+      File configRun = run(name, params, QryEval.readParameterFile(args[i]), runDir);
+
+      System.out.println(name + ":");
+      diverged |= ! compare(baseline, readRun(configRun));
+    }
+
+    System.exit(diverged ? 1 : 0);
+  }
+
+  /**
+   *  Copy an index and delete every n'th document of the copy.  The
+   *  copy's segments are not merged.
+   *  @param indexPath The index.
+   *  @param n Delete documents 0, n, 2n, ...
+   *  @param copy Where the copy is written.  Its old contents are
+   *  deleted.
+   *  @return The path of the copy.
+   *  @throws IOException
+   */
+  static String deleteDocuments(String indexPath, int n, File copy) throws IOException {
+
+    if (copy.isDirectory())
+      for (File f : copy.listFiles())
+	f.delete();
+
+    Directory src = FSDirectory.open(new File(indexPath));
+    Directory dst = FSDirectory.open(copy);
+
+    for (String f : src.listAll())
+      src.copy(dst, f, f, IOContext.DEFAULT);
+
+    //  Delete by external id, as LiveIndex does.
+
+    IndexReader reader = DirectoryReader.open(dst);
+    List<String> ids = new ArrayList<String>();
+
+    try {
+      Bits liveDocs = MultiFields.getLiveDocs(reader);
+      for (int d = 0; d < reader.maxDoc(); d += n)
+	if (liveDocs == null || liveDocs.get(d))
+	  ids.add(reader.document(d).get("externalId"));
+    } finally {
+      reader.close();
+    }
+
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.APPEND);
+    config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+
+    IndexWriter writer = new IndexWriter(dst, config);
+    try {
+      for (String id : ids)
+	writer.deleteDocuments(new Term("externalId", id));
+    } finally {
+      writer.close();
+    }
+
+    return copy.getPath();
+  }
+
+  /**
+   *  Report the segments and deleted documents of an index.
+   *  @param indexPath The index.
+   *  @throws IOException
+   */
+  static void describe(String indexPath) throws IOException {
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+
+    try {
+      System.out.println("Index " + indexPath + ": " + reader.leaves().size() + " segments, " +
+			 reader.numDeletedDocs() + " of " + reader.maxDoc() +
+			 " documents deleted");
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   *  Run QryEval in another process.
+   *  @param name The name of the run.
+   *  @param params The baseline parameters.
+   *  @param overrides Parameters that are added or replaced.
+   *  @param runDir Where the run is written.
+   *  @return The run.
+   *  @throws IOException
+   *  @throws InterruptedException
+   */
+  static File run(String name, Map<String, String> params, Map<String, String> overrides,
+		  File runDir) throws IOException, InterruptedException {
+
+    File paramFile = new File(runDir, name + ".param");
+    File runFile = new File(runDir, name + ".run");
+    File logFile = new File(runDir, name + ".log");
+
+    Map<String, String> p = new TreeMap<String, String>(params);
+    p.putAll(overrides);
+    p.put("trecEvalOutputPath", runFile.getPath());
+
+    PrintWriter out = new PrintWriter(new FileWriter(paramFile));
+    try {
+      for (Map.Entry<String, String> e : p.entrySet())
+	if (! e.getKey().startsWith("rankSafety:"))
+	  out.println(e.getKey() + "=" + e.getValue());
+    } finally {
+      out.close();
+    }
+
+    //  QryEval appends to its output.
+
+    runFile.delete();
+    logFile.delete();
+
+    if (p.containsKey("rankSafety:build"))
+      for (String tool : p.get("rankSafety:build").split(","))
+	if (exec(tool.trim(), paramFile, logFile) != 0)
+	  QryEval.fatalError("Error: " + tool.trim() + " failed for the " + name + " run; see " +
+			     logFile);
+
+    if (exec("QryEval", paramFile, logFile) != 0 || ! runFile.exists())
+      QryEval.fatalError("Error: The " + name + " run failed; see " + logFile);
+
+    return runFile;
+  }
+
+  /**
+   *  Run a class's main in another process.
+   *  @param mainClass The class.
+   *  @param paramFile Its only argument.
+   *  @param logFile The file that its output is appended to.
+   *  @return The exit status.
+   *  @throws IOException
+   *  @throws InterruptedException
+   */
+  static int exec(String mainClass, File paramFile, File logFile)
+    throws IOException, InterruptedException {
+
+    ProcessBuilder pb =
+      new ProcessBuilder(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath(),
+			 "-cp", System.getProperty("java.class.path"),
+			 mainClass, paramFile.getPath());
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile));
+
+    return pb.start().waitFor();
+  }
+
+  /**
+   *  Read a TREC run.
+   *  @param runFile The run.
+   *  @return The entries of each query, in rank order.
+   *  @throws IOException
+   */
+  static Map<String, List<Entry>> readRun(File runFile) throws IOException {
+
+    Map<String, List<Entry>> run = new LinkedHashMap<String, List<Entry>>();
+    BufferedReader in = new BufferedReader(new FileReader(runFile));
+
+    try {
+      for (String line; (line = in.readLine()) != null; ) {
+	String[] f = line.trim().split("\\s+");
+
+	if (f.length < 5)
+	  continue;
+
+	Entry e = new Entry();
+	e.docid = f[2];
+	e.score = Double.parseDouble(f[4]);
+
+	List<Entry> entries = run.get(f[0]);
+	if (entries == null) {
+	  entries = new ArrayList<Entry>();
+	  run.put(f[0], entries);
+	}
+	entries.add(e);
+      }
+    } finally {
+      in.close();
+    }
+
+    return run;
+  }
+
+  /**
+   *  Compare a run with the baseline and report the first divergence
+   *  of each query.
+   *  @param baseline The baseline run.
+   *  @param config The run of a configuration.
+   *  @return True if the runs agree.
+   */
+  static boolean compare(Map<String, List<Entry>> baseline, Map<String, List<Entry>> config) {
+
+    Set<String> qids = new LinkedHashSet<String>(baseline.keySet());
+    qids.addAll(config.keySet());
+
+    int same = 0;
+
+    for (String qid : qids) {
+      String divergence = firstDivergence(baseline.get(qid), config.get(qid));
+
+      if (divergence == null)
+	same++;
+      else
+	System.out.println("  " + qid + "\t" + divergence);
+    }
+
+    System.out.println("  " + same + " of " + qids.size() + " queries agree");
+    return same == qids.size();
+  }
+
+  /**
+   *  @return A description of the first divergence of two rankings of
+   *  a query, or null if they agree.
+   */
+  static String firstDivergence(List<Entry> b, List<Entry> c) {
+
+    if (b == null)
+      return "not in the baseline";
+    if (c == null)
+      return "not in the run";
+
+    for (int i = 0; i < depth && (i < b.size() || i < c.size()); i++) {
+      Entry x = (i < b.size()) ? b.get(i) : null;
+      Entry y = (i < c.size()) ? c.get(i) : null;
+
+      if (x == null)
+	return "rank " + (i + 1) + ": baseline ends, run has " + y;
+      if (y == null)
+	return "rank " + (i + 1) + ": run ends, baseline has " + x;
+      if (! x.docid.equals(y.docid))
+	return "rank " + (i + 1) + ": baseline " + x + ", run " + y;
+      if (! agree(x.score, y.score))
+	return "rank " + (i + 1) + ": " + x.docid + " scores " + x.score + " in the baseline, " +
+	  y.score + " in the run";
+    }
+
+    return null;
+  }
+
+  /**
+   *  @return True if two scores are equal within the tolerance,
+   *  relative to the larger of them (or absolute, near 0).
+   */
+  static boolean agree(double x, double y) {
+    return Math.abs(x - y) <= tolerance * Math.max(1.0, Math.max(Math.abs(x), Math.abs(y)));
+  }
+}
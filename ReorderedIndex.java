@@ -0,0 +1,826 @@
+/**
+ *  ReorderedIndex writes a copy of an index in which the documents are
+ *  renumbered, so that similar documents get nearby docids.  Lucene
+ *  assigns docids in ingest order, so the gaps in postings are large
+ *  and random.  Clustering similar documents makes the gaps smaller,
+ *  which makes exported postings smaller, and makes the documents that
+ *  a query touches closer together in DocLengthStore and in the blocks
+ *  that block-max skipping works on.
+ *
+ *  Two orders are available:
+ *    url:        By the URL field with the host name reversed
+ *                (com.example.www/page), so the pages of a host and of
+ *                a domain are adjacent.
+ *    bisection:  Recursive graph bisection of the document-term graph
+ *                (Dhulipala et al., KDD 2016).  Each half of a range
+ *                of documents is refined by swapping the documents
+ *                whose move most reduces the estimated cost of the
+ *                docid gaps of the range's terms.
+ *
+ *  The copy is written with IndexWriter.addIndexes over a reader that
+ *  presents the documents in the new order, so postings, positions,
+ *  stored fields (including externalId), term vectors and norms are
+ *  all renumbered.  Deleted documents are dropped.  The tool also
+ *  writes a startup snapshot of the copy, which holds its external id
+ *  table, and reorderPath + ".docmap", which maps each new docid to its
+ *  old docid and external id (one "new old externalId" line per
+ *  document), for remapping other data that is keyed by docid.
+ *
+ *  It reports the size of the exported (CompressedPostings) postings
+ *  of both indexes and, if queryFilePath is given, the query
+ *  throughput of QryEval on both, configured by the parameter file.
+ *  Other sidecar files of the copy must be rebuilt with their tools.
+ *
+ *  Usage:  java ReorderedIndex paramFile
+ *
+ *  Parameters are those of QryEval, plus:
+ *    reorderPath:        Where the copy is written (required).
+ *    reorderOrder:       url or bisection (url).
+ *    reorderUrlField:    The field that holds the URL (url).
+ *    reorderField:       The field whose terms bisection uses (body).
+ *    reorderLeafSize:    Bisection stops at ranges this small (16).
+ *    reorderIterations:  Swap rounds per bisection step (20).
+ *    benchmark:iterations:  Timed passes over the queries (3).
+ */
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+public class ReorderedIndex {
+
+  /**
+   *  Order the live documents of an index by URL, with host names
+   *  reversed.  The URL is read from the stored field, or rebuilt from
+   *  the field's term vector if it isn't stored.  Documents without a
+   *  URL come last.  Ties keep their docid order.
+   *  @param reader The index.
+   *  @param field The URL field.
+   *  @return The old docid of each new docid.
+   *  @throws IOException
+   */
+  static int[] urlOrder(IndexReader reader, String field) throws IOException {
+
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    final List<Integer> docs = new ArrayList<Integer>();
+    final Map<Integer, String> keys = new HashMap<Integer, String>();
+
+    for (int docid = 0; docid < reader.maxDoc(); docid++) {
+      if (liveDocs != null && ! liveDocs.get(docid))
+	continue;
+
+      String url = reader.document(docid).get(field);
+      if (url == null)
+	url = termVectorText(reader, docid, field);
+
+      docs.add(docid);
+      keys.put(docid, (url == null) ? null : urlKey(url));
+    }
+
+    Collections.sort(docs, new Comparator<Integer>() {
+      public int compare(Integer x, Integer y) {
+	String kx = keys.get(x), ky = keys.get(y);
+	if (kx == null || ky == null)
+	  return (kx != null) ? -1 : (ky != null) ? 1 : x.compareTo(y);
+	int c = kx.compareTo(ky);
+	return (c != 0) ? c : x.compareTo(y);
+      }
+    });
+
+    int[] order = new int[docs.size()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = docs.get(i);
+    return order;
+  }
+
+  /**
+   *  The sort key of a URL: its host name with the components reversed,
+   *  then the rest of the URL.
+   */
+  static String urlKey(String url) {
+
+    String u = url.trim().toLowerCase();
+    int scheme = u.indexOf("://");
+    if (scheme >= 0)
+      u = u.substring(scheme + 3);
+
+    int end = 0;
+    while (end < u.length() && u.charAt(end) != '/' && ! Character.isWhitespace(u.charAt(end)))
+      end++;
+
+    String[] parts = u.substring(0, end).split("\\.");
+    StringBuilder key = new StringBuilder();
+    for (int i = parts.length - 1; i >= 0; i--) {
+      key.append(parts[i]);
+      if (i > 0)
+	key.append('.');
+    }
+
+    return key.append(u.substring(end)).toString();
+  }
+
+  /**
+   *  Rebuild the text of a field from its term vector.
+   *  @return The terms in position order, or null if the document has
+   *  no vector for the field.
+   */
+  private static String termVectorText(IndexReader reader, int docid, String field) throws IOException {
+
+    Terms vector = reader.getTermVector(docid, field);
+
+    if (vector == null || ! vector.hasPositions())
+      return null;
+
+    TreeMap<Integer, String> terms = new TreeMap<Integer, String>();
+    TermsEnum te = vector.iterator(null);
+    DocsAndPositionsEnum dp = null;
+
+    for (BytesRef t; (t = te.next()) != null; ) {
+      dp = te.docsAndPositions(null, dp);
+      dp.nextDoc();
+      for (int i = 0; i < dp.freq(); i++)
+	terms.put(dp.nextPosition(), t.utf8ToString());
+    }
+
+    StringBuilder text = new StringBuilder();
+    for (String t : terms.values())
+      text.append(t).append(' ');
+    return text.toString();
+  }
+
+  /**
+   *  Order the live documents of an index by recursive graph bisection.
+   *  @param reader The index.
+   *  @param field The field whose terms are used.
+   *  @param leafSize Ranges of at most this many documents are not split.
+   *  @param iterations The maximum number of swap rounds per split.
+   *  @return The old docid of each new docid.
+   *  @throws IOException
+   */
+  static int[] bisectionOrder(IndexReader reader, String field, int leafSize, int iterations)
+    throws IOException {
+
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    int[] order = new int[reader.numDocs()];
+    int[] index = new int[reader.maxDoc()];
+    int n = 0;
+
+    for (int docid = 0; docid < reader.maxDoc(); docid++) {
+      if (liveDocs != null && ! liveDocs.get(docid)) {
+	index[docid] = -1;
+	continue;
+      }
+      index[docid] = n;
+      order[n++] = docid;
+    }
+
+    //  Invert the postings into each document's list of term ids.
+    //  Terms that occur in one document don't affect any gap.
+
+    List<int[]> docTerms = new ArrayList<int[]>();
+    int[] lengths = new int[n];
+    int numTerms = 0;
+    Terms terms = MultiFields.getTerms(reader, field);
+
+    for (int d = 0; d < n; d++)
+      docTerms.add(new int[4]);
+
+    if (terms != null) {
+      TermsEnum te = terms.iterator(null);
+      DocsEnum docs = null;
+
+      while (te.next() != null) {
+	if (te.docFreq() < 2)
+	  continue;
+
+	docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+	for (int doc; (doc = docs.nextDoc()) != DocsEnum.NO_MORE_DOCS; ) {
+	  int d = index[doc];
+	  int[] t = docTerms.get(d);
+	  if (lengths[d] == t.length)
+	    docTerms.set(d, t = Arrays.copyOf(t, 2 * t.length));
+	  t[lengths[d]++] = numTerms;
+	}
+	numTerms++;
+      }
+    }
+
+    int[][] termIds = new int[n][];
+    for (int d = 0; d < n; d++)
+      termIds[d] = Arrays.copyOf(docTerms.get(d), lengths[d]);
+    docTerms = null;
+
+    int[] docs = new int[n];
+    for (int d = 0; d < n; d++)
+      docs[d] = d;
+
+    new Bisection(termIds, numTerms, Math.max(2, leafSize), iterations).bisect(docs, 0, n);
+
+    for (int d = 0; d < n; d++)
+      docs[d] = order[docs[d]];
+    return docs;
+  }
+
+  /**
+   *  Recursive graph bisection.  The cost of a term in a range of N
+   *  documents, a of which contain it, is estimated as a * log2(N / (a
+   *  + 1)) bits, the size of its docid gaps if they were uniform.
+   */
+  static class Bisection {
+
+    private final int[][] termIds;
+    private final int leafSize;
+    private final int iterations;
+    private final int[] left;		// Degree of each term in each half.
+    private final int[] right;
+
+    Bisection(int[][] termIds, int numTerms, int leafSize, int iterations) {
+      this.termIds = termIds;
+      this.leafSize = leafSize;
+      this.iterations = iterations;
+      this.left = new int[numTerms];
+      this.right = new int[numTerms];
+    }
+
+    /**
+     *  Reorder docs[lo, hi).
+     */
+    void bisect(int[] docs, int lo, int hi) {
+
+      if (hi - lo <= leafSize)
+	return;
+
+      int mid = (lo + hi) >>> 1;
+
+      for (int i = lo; i < hi; i++)
+	for (int t : termIds[docs[i]])
+	  if (i < mid)
+	    left[t]++;
+	  else
+	    right[t]++;
+
+      Integer[] l = new Integer[mid - lo];
+      Integer[] r = new Integer[hi - mid];
+      final double[] gain = new double[hi - lo];
+      Comparator<Integer> byGain = new Comparator<Integer>() {
+	public int compare(Integer x, Integer y) {
+	  return Double.compare(gain[y], gain[x]);
+	}
+      };
+
+      for (int iter = 0; iter < iterations; iter++) {
+
+	//  The gain of moving each document to the other half.
+
+	for (int i = lo; i < hi; i++) {
+	  boolean inLeft = i < mid;
+	  double g = 0.0;
+
+	  for (int t : termIds[docs[i]]) {
+	    int from = inLeft ? left[t] : right[t];
+	    int to = inLeft ? right[t] : left[t];
+	    int fromSize = inLeft ? mid - lo : hi - mid;
+	    int toSize = inLeft ? hi - mid : mid - lo;
+	    g += cost(from, fromSize) + cost(to, toSize)
+	      - cost(from - 1, fromSize) - cost(to + 1, toSize);
+	  }
+
+	  gain[i - lo] = g;
+	}
+
+	for (int i = 0; i < l.length; i++)
+	  l[i] = i;
+	for (int i = 0; i < r.length; i++)
+	  r[i] = mid - lo + i;
+	Arrays.sort(l, byGain);
+	Arrays.sort(r, byGain);
+
+	//  Swap pairs while the swap reduces the cost.
+
+	int swaps = 0;
+
+	for (int i = 0; i < l.length && i < r.length && gain[l[i]] + gain[r[i]] > 0; i++) {
+	  int x = lo + l[i], y = lo + r[i];
+
+	  for (int t : termIds[docs[x]]) {
+	    left[t]--;
+	    right[t]++;
+	  }
+	  for (int t : termIds[docs[y]]) {
+	    right[t]--;
+	    left[t]++;
+	  }
+
+	  int tmp = docs[x];
+	  docs[x] = docs[y];
+	  docs[y] = tmp;
+	  swaps++;
+	}
+
+	if (swaps == 0)
+	  break;
+      }
+
+      for (int i = lo; i < hi; i++)
+	for (int t : termIds[docs[i]]) {
+	  left[t] = 0;
+	  right[t] = 0;
+	}
+
+      bisect(docs, lo, mid);
+      bisect(docs, mid, hi);
+    }
+
+    private static double cost(int a, int size) {
+      return a * Math.log(size / (a + 1.0)) / Math.log(2);
+    }
+  }
+
+  /**
+   *  A reader that presents the live documents of another reader in a
+   *  new order.  Postings are read into memory one term at a time and
+   *  sorted by their new docids.
+   */
+  static class Reordered extends FilterAtomicReader {
+
+    private final int[] newToOld;
+    private final int[] oldToNew;
+
+    /**
+     *  @param in The index.
+     *  @param order The old docid of each new docid.
+     */
+    Reordered(AtomicReader in, int[] order) {
+      super(in);
+      this.newToOld = order;
+      this.oldToNew = new int[in.maxDoc()];
+      Arrays.fill(this.oldToNew, -1);
+      for (int i = 0; i < order.length; i++)
+	this.oldToNew[order[i]] = i;
+    }
+
+    public int maxDoc() {
+      return newToOld.length;
+    }
+
+    public int numDocs() {
+      return newToOld.length;
+    }
+
+    public Bits getLiveDocs() {
+      return null;
+    }
+
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+      in.document(newToOld[docID], visitor);
+    }
+
+    public Fields getTermVectors(int docID) throws IOException {
+      return in.getTermVectors(newToOld[docID]);
+    }
+
+    public NumericDocValues getNormValues(String field) throws IOException {
+      return reorder(in.getNormValues(field));
+    }
+
+    public NumericDocValues getNumericDocValues(String field) throws IOException {
+      return reorder(in.getNumericDocValues(field));
+    }
+
+    public BinaryDocValues getBinaryDocValues(String field) throws IOException {
+      final BinaryDocValues values = in.getBinaryDocValues(field);
+      if (values == null)
+	return null;
+      return new BinaryDocValues() {
+	public void get(int docID, BytesRef result) {
+	  values.get(newToOld[docID], result);
+	}
+      };
+    }
+
+    public SortedDocValues getSortedDocValues(String field) throws IOException {
+      final SortedDocValues values = in.getSortedDocValues(field);
+      if (values == null)
+	return null;
+      return new SortedDocValues() {
+	public int getOrd(int docID) {
+	  return values.getOrd(newToOld[docID]);
+	}
+	public void lookupOrd(int ord, BytesRef result) {
+	  values.lookupOrd(ord, result);
+	}
+	public int getValueCount() {
+	  return values.getValueCount();
+	}
+      };
+    }
+
+    public SortedSetDocValues getSortedSetDocValues(String field) throws IOException {
+      final SortedSetDocValues values = in.getSortedSetDocValues(field);
+      if (values == null)
+	return null;
+      return new SortedSetDocValues() {
+	public long nextOrd() {
+	  return values.nextOrd();
+	}
+	public void setDocument(int docID) {
+	  values.setDocument(newToOld[docID]);
+	}
+	public void lookupOrd(long ord, BytesRef result) {
+	  values.lookupOrd(ord, result);
+	}
+	public long getValueCount() {
+	  return values.getValueCount();
+	}
+      };
+    }
+
+    private NumericDocValues reorder(final NumericDocValues values) {
+      if (values == null)
+	return null;
+      return new NumericDocValues() {
+	public long get(int docID) {
+	  return values.get(newToOld[docID]);
+	}
+      };
+    }
+
+    public Fields fields() throws IOException {
+      Fields fields = in.fields();
+      if (fields == null)
+	return null;
+
+      return new FilterFields(fields) {
+	public Terms terms(String field) throws IOException {
+	  Terms terms = super.terms(field);
+	  if (terms == null)
+	    return null;
+
+	  final FieldInfo info = Reordered.this.in.getFieldInfos().fieldInfo(field);
+
+	  return new FilterTerms(terms) {
+	    public TermsEnum iterator(TermsEnum reuse) throws IOException {
+	      return new ReorderedTermsEnum(in.iterator(null), info);
+	    }
+	  };
+	}
+      };
+    }
+
+    /**
+     *  A TermsEnum whose postings are in the new docid order.
+     */
+    private class ReorderedTermsEnum extends FilterTermsEnum {
+
+      private final FieldInfo info;
+
+      ReorderedTermsEnum(TermsEnum in, FieldInfo info) {
+	super(in);
+	this.info = info;
+      }
+
+      public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+	return new SortedPostings(in.docs(Reordered.this.in.getLiveDocs(), null, flags), null,
+				  false, false, liveDocs);
+      }
+
+      public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags)
+	throws IOException {
+	DocsAndPositionsEnum dp = in.docsAndPositions(Reordered.this.in.getLiveDocs(), null, flags);
+	if (dp == null)
+	  return null;
+
+	//  Offsets and payloads are buffered only if the field has them
+	//  and they were asked for.
+
+	boolean offsets = (flags & DocsAndPositionsEnum.FLAG_OFFSETS) != 0 && info != null &&
+	  info.getIndexOptions() == FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS;
+	boolean payloads = (flags & DocsAndPositionsEnum.FLAG_PAYLOADS) != 0 && info != null &&
+	  info.hasPayloads();
+
+	return new SortedPostings(dp, dp, offsets, payloads, liveDocs);
+      }
+    }
+
+    /**
+     *  The postings of one term, read from the old index and sorted
+     *  by new docid.  Positions, and offsets and payloads if they are
+     *  kept, are buffered for the term's whole list.
+     */
+    private class SortedPostings extends DocsAndPositionsEnum {
+
+      private int[] docs = new int[8];
+      private int[] freqs = new int[8];
+      private int[] starts = new int[8];	// Of each doc's positions.
+      private int[] positions = new int[8];
+      private int[] startOffsets = null;	// null if offsets aren't kept.
+      private int[] endOffsets = null;
+      private BytesRef[] payloads = null;	// null if payloads aren't kept.
+      private int size = 0;
+      private int i = -1;
+      private int pos = 0;			// Next position of the current doc.
+
+      SortedPostings(DocsEnum postings, DocsAndPositionsEnum dp, boolean keepOffsets, boolean keepPayloads,
+		     Bits liveDocs) throws IOException {
+
+	if (keepOffsets) {
+	  startOffsets = new int[8];
+	  endOffsets = new int[8];
+	}
+	if (keepPayloads)
+	  payloads = new BytesRef[8];
+
+	//  Read the postings, keyed by (new docid, index).
+
+	long[] keys = new long[8];
+	int[] oldStarts = new int[8];
+	int numPositions = 0;
+	int n = 0;
+
+	for (int doc; (doc = postings.nextDoc()) != NO_MORE_DOCS; ) {
+	  int newDoc = oldToNew[doc];
+	  if (newDoc < 0 || (liveDocs != null && ! liveDocs.get(newDoc)))
+	    continue;
+
+	  if (n == keys.length) {
+	    keys = Arrays.copyOf(keys, 2 * n);
+	    oldStarts = Arrays.copyOf(oldStarts, 2 * n);
+	    freqs = Arrays.copyOf(freqs, 2 * n);
+	  }
+
+	  int freq = postings.freq();
+	  keys[n] = ((long) newDoc << 32) | n;
+	  freqs[n] = freq;
+	  oldStarts[n] = numPositions;
+
+	  if (dp != null) {
+	    if (numPositions + freq > positions.length) {
+	      int len = Math.max(2 * positions.length, numPositions + freq);
+	      positions = Arrays.copyOf(positions, len);
+	      if (keepOffsets) {
+		startOffsets = Arrays.copyOf(startOffsets, len);
+		endOffsets = Arrays.copyOf(endOffsets, len);
+	      }
+	      if (keepPayloads)
+		payloads = Arrays.copyOf(payloads, len);
+	    }
+	    for (int j = 0; j < freq; j++) {
+	      positions[numPositions] = dp.nextPosition();
+	      if (keepOffsets) {
+		startOffsets[numPositions] = dp.startOffset();
+		endOffsets[numPositions] = dp.endOffset();
+	      }
+	      if (keepPayloads) {
+		BytesRef payload = dp.getPayload();
+		payloads[numPositions] = (payload == null) ? null : BytesRef.deepCopyOf(payload);
+	      }
+	      numPositions++;
+	    }
+	  }
+	  n++;
+	}
+
+	Arrays.sort(keys, 0, n);
+
+	this.docs = new int[n];
+	this.starts = new int[n];
+	int[] oldFreqs = this.freqs;
+	this.freqs = new int[n];
+
+	for (int k = 0; k < n; k++) {
+	  int old = (int) keys[k];
+	  this.docs[k] = (int) (keys[k] >>> 32);
+	  this.freqs[k] = oldFreqs[old];
+	  this.starts[k] = oldStarts[old];
+	}
+
+	this.size = n;
+      }
+
+      public int docID() {
+	if (i < 0)
+	  return -1;
+	return (i < size) ? docs[i] : NO_MORE_DOCS;
+      }
+
+      public int nextDoc() {
+	if (i < size)
+	  i++;
+	pos = 0;
+	return docID();
+      }
+
+      public int advance(int target) {
+	while (docID() < target)
+	  nextDoc();
+	return docID();
+      }
+
+      public int freq() {
+	return freqs[i];
+      }
+
+      public int nextPosition() {
+	return positions[starts[i] + pos++];
+      }
+
+      public int startOffset() {
+	return (startOffsets == null) ? -1 : startOffsets[starts[i] + pos - 1];
+      }
+
+      public int endOffset() {
+	return (endOffsets == null) ? -1 : endOffsets[starts[i] + pos - 1];
+      }
+
+      public BytesRef getPayload() {
+	return (payloads == null) ? null : payloads[starts[i] + pos - 1];
+      }
+
+      public long cost() {
+	return size;
+      }
+    }
+  }
+
+  /**
+   *  Write a copy of an index with its documents in a new order.
+   *  @param reader The index.
+   *  @param order The old docid of each new docid.
+   *  @param path Where the copy is written.  It must not be the index.
+   *  @throws IOException
+   */
+  public static void write(IndexReader reader, int[] order, String path) throws IOException {
+
+    IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, QryEval.analyzer);
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    config.setSimilarity(new DocLenStoreSimilarity());
+
+    IndexWriter writer = new IndexWriter(FSDirectory.open(new File(path)), config);
+
+    try {
+      writer.addIndexes(new Reordered(SlowCompositeReaderWrapper.wrap(reader), order));
+      writer.commit();
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   *  Write the docid map: one "new old externalId" line per document.
+   */
+  static void writeDocMap(IndexReader reader, int[] order, String path) throws IOException {
+
+    BufferedWriter out = new BufferedWriter(new FileWriter(path));
+
+    try {
+      for (int i = 0; i < order.length; i++)
+	out.write(i + " " + order[i] + " " + reader.document(order[i]).get("externalId") + "\n");
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   *  @return The number of bytes of exported postings that
+   *  CompressedPostings would write for an index.
+   */
+  static long postingsBytes(IndexReader reader) throws IOException {
+
+    long bytes = 0;
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+
+    for (String field : MultiFields.getIndexedFields(reader)) {
+      Terms terms = MultiFields.getTerms(reader, field);
+
+      if (terms == null || ! terms.hasPositions())
+	continue;
+
+      TermsEnum te = terms.iterator(null);
+      DocsAndPositionsEnum dp = null;
+
+      while (te.next() != null) {
+	dp = te.docsAndPositions(liveDocs, dp);
+	bytes += CompressedPostings.encodePostings(dp, null).length;
+      }
+    }
+
+    return bytes;
+  }
+
+  /**
+   *  Measure the query throughput of QryEval on an index.  The
+   *  queries are evaluated once to warm up, then timed.
+   *  @param params The parameters.
+   *  @param indexPath The index.
+   *  @param iterations The number of timed passes over the queries.
+   *  @return Queries per second.
+   *  @throws IOException
+   */
+  static double throughput(Map<String, String> params, String indexPath, int iterations)
+    throws IOException {
+
+    Map<String, String> p = new HashMap<String, String>(params);
+    p.put("indexPath", indexPath);
+
+    QryEval.open(p);
+    TermVector.clearCache();
+    BitmapEvaluator.clearCache();
+
+    Map<Integer, String> queries = QryEval.readQueries(params.get("queryFilePath"));
+
+    for (String query : queries.values())
+      AllocationBenchmark.evaluate(query);
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; i++)
+      for (String query : queries.values())
+	AllocationBenchmark.evaluate(query);
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    QryEval.READER.close();
+
+    return queries.size() * iterations / Math.max(seconds, 1e-9);
+  }
+
+  /**
+   *  Reorder the index named in a parameter file.
+   *  @param args The only argument is the path to the parameter file.
+   *  @throws Exception
+   */
+  public static void main(String[] args) throws Exception {
+
+    if (args.length < 1) {
+      System.err.println("Usage:  java ReorderedIndex paramFile");
+      System.exit(1);
+    }
+
+    Map<String, String> params = QryEval.readParameterFile(args[0]);
+
+    if (!params.containsKey("indexPath") || !params.containsKey("reorderPath"))
+      QryEval.fatalError("Error: Parameters were missing.");
+
+    String indexPath = params.get("indexPath");
+    String path = params.get("reorderPath");
+
+    if (new File(path).getAbsoluteFile().equals(new File(indexPath).getAbsoluteFile()))
+      QryEval.fatalError("Error: reorderPath must not be indexPath.");
+
+    String method = params.containsKey("reorderOrder") ? params.get("reorderOrder") : "url";
+    int leafSize = params.containsKey("reorderLeafSize") ?
+      Integer.parseInt(params.get("reorderLeafSize")) : 16;
+    int rounds = params.containsKey("reorderIterations") ?
+      Integer.parseInt(params.get("reorderIterations")) : 20;
+    int iterations = params.containsKey("benchmark:iterations") ?
+      Integer.parseInt(params.get("benchmark:iterations")) : 3;
+
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+    long start = System.currentTimeMillis();
+    int[] order;
+
+    if (method.equals("url"))
+      order = urlOrder(reader, params.containsKey("reorderUrlField") ?
+		       params.get("reorderUrlField") : "url");
+    else if (method.equals("bisection"))
+      order = bisectionOrder(reader, params.containsKey("reorderField") ?
+			     params.get("reorderField") : "body", leafSize, rounds);
+    else {
+      QryEval.fatalError("Error: Unknown reorderOrder " + method);
+      return;
+    }
+
+    System.out.println("Ordered " + order.length + " documents by " + method + " in " +
+		       (System.currentTimeMillis() - start) + " ms");
+
+    write(reader, order, path);
+    writeDocMap(reader, order, path + ".docmap");
+
+    IndexReader reordered = DirectoryReader.open(FSDirectory.open(new File(path)));
+    double k1 = params.containsKey("BM25:k_1") ? Double.parseDouble(params.get("BM25:k_1")) : 1.2;
+    double b = params.containsKey("BM25:b") ? Double.parseDouble(params.get("BM25:b")) : 0.75;
+    IndexSnapshot.write(reordered, IndexSnapshot.defaultPath(path), k1, b);
+
+    System.out.println("Wrote " + path + " in " + (System.currentTimeMillis() - start) + " ms");
+
+    long before = postingsBytes(reader);
+    long after = postingsBytes(reordered);
+    reader.close();
+    reordered.close();
+
+    System.out.println(String.format(Locale.US, "Postings:    %d bytes -> %d bytes (%.1f%%)",
+				     before, after, 100.0 * (after - before) / Math.max(1, before)));
+
+    if (params.containsKey("queryFilePath") && params.containsKey("retrievalAlgorithm")) {
+      double qpsBefore = throughput(params, indexPath, iterations);
+      double qpsAfter = throughput(params, path, iterations);
+
+      System.out.println(String.format(Locale.US, "Throughput:  %.1f queries/s -> %.1f queries/s",
+				       qpsBefore, qpsAfter));
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**
+ *  ScoreKernels scores blocks of postings for BM25 and Indri.  A
+ *  block is a pair of primitive arrays of docids and tfs; a kernel
+ *  first gathers each posting's length normalization into the output
+ *  array, then computes the scores in a second, branch-free loop over
+ *  primitive arrays that the JIT can unroll and vectorize.
+ *
+ *  The length normalization of a document depends only on its length
+ *  and the model's parameters, so it is precomputed for every document
+ *  of a field into a table that is cached per (field, b) for BM25 and
+ *  per (field, mu) for Indri.  Scoring a posting then costs an array
+ *  load and a few floating point operations instead of a document
+ *  length lookup.  The tables hold exactly the values that the
+ *  per-posting formulas computed, so scores are unchanged.
+ *
+ *  Tables are assembled from the lengths of each segment, which are
+ *  kept, so when the index is refreshed only new segments are read.
+ *
+ *  Parameters:
+ *    normTableCacheSize:  Number of cached normalization tables (16).
+ *                         The cache is cleared when it is full; 0
+ *                         turns the tables off, and lengths are looked
+ *                         up per posting.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+
+public class ScoreKernels {
+
+  static final int BLOCK = 256;
+
+  static int normTableCacheSize = 16;
+  private static final ConcurrentHashMap<String, double[]> TABLES =
+    new ConcurrentHashMap<String, double[]>();
+
+  //  The lengths of a field in each segment, by (segment core, field).
+
+  private static final ConcurrentHashMap<List<Object>, double[]> SEGMENT_LENGTHS =
+    new ConcurrentHashMap<List<Object>, double[]>();
+
+  /**
+   *  Scores a block of BM25 postings of one field.
+   */
+  static class Bm25 extends QryopSlScore.PostingScorer {
+    private final String field;
+    private final double[] norms;		// null: no table
+    private final double b, avgLen, idf, k1;
+
+    /**
+     *  @param field The field.
+     *  @param b The BM25 b parameter.
+     *  @param avgLen The average length of the field.
+     *  @param idf The RSJ weight of the term.
+     *  @param k1 The BM25 k_1 parameter.
+     *  @throws IOException
+     */
+    Bm25(String field, double b, double avgLen, double idf, double k1) throws IOException {
+      this.field = field;
+      this.b = b;
+      this.avgLen = avgLen;
+      this.idf = idf;
+      this.k1 = k1;
+      this.norms = bm25Norms(field, b, avgLen);
+    }
+
+    void score(int[] docids, int[] tfs, int n, double[] scores) throws IOException {
+
+      if (norms != null)
+	for (int i = 0; i < n; i++)
+	  scores[i] = norms[docids[i]];
+      else
+	for (int i = 0; i < n; i++)
+	  scores[i] = (1 - b) + b * (((double) QryEval.DocLenStore.getDocLength(field, docids[i])) / avgLen);
+
+      for (int i = 0; i < n; i++) {
+	double tf = tfs[i];
+	scores[i] = idf * (tf / (tf + k1 * scores[i]));
+      }
+    }
+  }
+
+  /**
+   *  Scores a block of Indri postings of one field.
+   */
+  static class Indri extends QryopSlScore.PostingScorer {
+    private final String field;
+    private final double[] denominators;	// null: no table
+    private final double lambda, mu, muPc, background;
+
+    /**
+     *  @param field The field.
+     *  @param lambda The Indri lambda parameter.
+     *  @param mu The Indri mu parameter.
+     *  @param pc The collection probability of the term.
+     *  @throws IOException
+     */
+    Indri(String field, double lambda, double mu, double pc) throws IOException {
+      this.field = field;
+      this.lambda = lambda;
+      this.mu = mu;
+      this.muPc = mu * pc;
+      this.background = (1 - lambda) * pc;
+      this.denominators = indriDenominators(field, mu);
+    }
+
+    void score(int[] docids, int[] tfs, int n, double[] scores) throws IOException {
+
+      if (denominators != null)
+	for (int i = 0; i < n; i++)
+	  scores[i] = denominators[docids[i]];
+      else
+	for (int i = 0; i < n; i++)
+	  scores[i] = QryEval.DocLenStore.getDocLength(field, docids[i]) + mu;
+
+      for (int i = 0; i < n; i++)
+	scores[i] = lambda * ((tfs[i] + muPc) / scores[i]) + background;
+    }
+  }
+
+  /**
+   *  Get the BM25 length normalization of every document of a field,
+   *  (1 - b) + b * length / avgLen.
+   *  @param field The field.
+   *  @param b The BM25 b parameter.
+   *  @param avgLen The average length of the field.
+   *  @return The table, indexed by docid, or null if tables are off.
+   *  @throws IOException
+   */
+  static double[] bm25Norms(String field, double b, double avgLen) throws IOException {
+
+    String key = "bm25\n" + field + "\n" + b + "\n" + avgLen;
+    double[] table = TABLES.get(key);
+
+    if (table == null && normTableCacheSize > 0) {
+      table = lengths(field);
+      for (int d = 0; d < table.length; d++)
+	table[d] = (1 - b) + b * (table[d] / avgLen);
+      cache(key, table);
+    }
+
+    return table;
+  }
+
+  /**
+   *  Get the Indri smoothing denominator of every document of a
+   *  field, length + mu.
+   *  @param field The field.
+   *  @param mu The Indri mu parameter.
+   *  @return The table, indexed by docid, or null if tables are off.
+   *  @throws IOException
+   */
+  static double[] indriDenominators(String field, double mu) throws IOException {
+
+    String key = "indri\n" + field + "\n" + mu;
+    double[] table = TABLES.get(key);
+
+    if (table == null && normTableCacheSize > 0) {
+      table = lengths(field);
+      for (int d = 0; d < table.length; d++)
+	table[d] += mu;
+      cache(key, table);
+    }
+
+    return table;
+  }
+
+  /**
+   *  Forget the cached tables, e.g., when the index changes.
+   */
+  static void clearCache() {
+    TABLES.clear();
+    SEGMENT_LENGTHS.clear();
+  }
+
+  /**
+   *  Forget the tables after the index was refreshed.  The lengths of
+   *  the segments that are still in the index are kept.
+   *  @param reader The refreshed index.
+   */
+  static void refresh(IndexReader reader) {
+
+    Set<Object> cores = new HashSet<Object>();
+
+    for (AtomicReaderContext leaf : reader.leaves())
+      cores.add(leaf.reader().getCoreCacheKey());
+
+    TABLES.clear();
+    for (Iterator<List<Object>> i = SEGMENT_LENGTHS.keySet().iterator(); i.hasNext(); )
+      if (! cores.contains(i.next().get(0)))
+	i.remove();
+  }
+
+  /**
+   *  @return The lengths of a field of every document, in a new array.
+   */
+  private static double[] lengths(String field) throws IOException {
+
+    double[] lengths = new double[QryEval.READER.maxDoc()];
+
+    for (AtomicReaderContext leaf : QryEval.READER.leaves()) {
+      List<Object> key = Arrays.asList(leaf.reader().getCoreCacheKey(), (Object) field);
+      double[] segment = SEGMENT_LENGTHS.get(key);
+
+      if (segment == null) {
+	segment = new double[leaf.reader().maxDoc()];
+	for (int d = 0; d < segment.length; d++)
+	  segment[d] = QryEval.DocLenStore.getDocLength(field, leaf.docBase + d);
+	SEGMENT_LENGTHS.put(key, segment);
+      }
+
+      System.arraycopy(segment, 0, lengths, leaf.docBase, segment.length);
+    }
+
+    return lengths;
+  }
+
+  private static void cache(String key, double[] table) {
+    if (TABLES.size() >= normTableCacheSize)
+      TABLES.clear();
+    TABLES.put(key, table);
+  }
+}
@@ -10,42 +10,17 @@ import java.util.*;
 
 public class ScoreList {
 
-  //  A little utilty class to create a <docid, score> object.
+  //  The docids and scores are kept in parallel arrays, so that
+  //  adding a score does not allocate an object.  Only the first size
+  //  entries are used; the arrays grow by doubling.
 
-  protected class ScoreListEntry implements Comparable<ScoreListEntry> {
-    private int docid;
-    private double score;
+  private int[] docids = new int[8];
+  private double[] docScores = new double[8];
+  private int size = 0;
 
-    private ScoreListEntry(int docid, double score) {
-      this.docid = docid;
-      this.score = score;
-    }
-
-    /**
-     *  CompareTo method for sorting.
-     *  Sort descending according to scores and ascending by name to break ties
-     *  @param ScoreListEntry scorelist entry.
-     *  @return int
-     */
-	@Override
-	public int compareTo(ScoreListEntry sle) {
-		// TODO Auto-generated method stub
-		try {
-		if (this.score < sle.score)
-			return 1;
-		else if (this.score > sle.score)
-			return -1;
-		else
-			return QryEval.getExternalDocid(this.docid).compareTo(QryEval.getExternalDocid(sle.docid));
-		} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-				return -2;
-			}
-	}
-  }
+  //  External docids of the entries that sort_array has compared.
 
-  List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  private String[] externalIds = null;
 
   /**
    *  Append a document score to a score list.
@@ -54,7 +29,44 @@ public class ScoreList {
    *  @return void
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+    if (this.size == this.docids.length)
+      ensureCapacity(2 * this.size);
+    this.docids[this.size] = docid;
+    this.docScores[this.size] = score;
+    this.size++;
+  }
+
+  /**
+   *  Append a block of document scores to a score list.
+   *  @param docids Internal document ids.
+   *  @param scores The documents' scores.
+   *  @param n The number of document scores.
+   */
+  public void add(int[] docids, double[] scores, int n) {
+    if (this.size + n > this.docids.length)
+      ensureCapacity(Math.max(2 * this.size, this.size + n));
+    System.arraycopy(docids, 0, this.docids, this.size, n);
+    System.arraycopy(scores, 0, this.docScores, this.size, n);
+    this.size += n;
+  }
+
+  /**
+   *  Make room for n document scores, e.g., before a list of known
+   *  length is added.
+   *  @param n The number of document scores.
+   */
+  public void ensureCapacity(int n) {
+    if (n > this.docids.length) {
+      this.docids = Arrays.copyOf(this.docids, n);
+      this.docScores = Arrays.copyOf(this.docScores, n);
+    }
+  }
+
+  /**
+   *  @return The number of document scores.
+   */
+  public int size() {
+    return this.size;
   }
 
   /**
@@ -63,7 +75,9 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    if (n >= this.size)
+      throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+    return this.docids[n];
   }
 
   /**
@@ -72,15 +86,96 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    if (n >= this.size)
+      throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+    return this.docScores[n];
   }
 
   /**
-   *  Sort the scores array
+   *  Sort the scores array descending by score, and ascending by
+   *  external docid to break ties.  The sort is a stable merge sort of
+   *  an index array kept in the thread's EvalArena.
    *  @param void.
    *  @return void.
    */
   public void sort_array() {
-	  Collections.sort(this.scores);
+
+    EvalArena arena = EvalArena.get();
+    int[] order = arena.ints(EvalArena.SORT_ORDER, this.size);
+    int[] temp = arena.ints(EvalArena.SORT_TEMP, this.size);
+
+    for (int i = 0; i < this.size; i++)
+      order[i] = i;
+
+    this.externalIds = null;
+    mergeSort(order, temp, 0, this.size);
+    this.externalIds = null;
+
+    int[] ids = arena.ints(EvalArena.SORT_DOCIDS, this.size);
+    double[] scores = arena.doubles(EvalArena.SORT_SCORES, this.size);
+
+    System.arraycopy(this.docids, 0, ids, 0, this.size);
+    System.arraycopy(this.docScores, 0, scores, 0, this.size);
+
+    for (int i = 0; i < this.size; i++) {
+      this.docids[i] = ids[order[i]];
+      this.docScores[i] = scores[order[i]];
+    }
+  }
+
+  /**
+   *  Merge sort order[lo, hi) by compare.
+   */
+  private void mergeSort(int[] order, int[] temp, int lo, int hi) {
+
+    if (hi - lo < 2)
+      return;
+
+    int mid = (lo + hi) >>> 1;
+    mergeSort(order, temp, lo, mid);
+    mergeSort(order, temp, mid, hi);
+
+    if (compare(order[mid - 1], order[mid]) <= 0)
+      return;				// Already in order.
+
+    System.arraycopy(order, lo, temp, lo, hi - lo);
+
+    for (int i = lo, j = mid, k = lo; k < hi; k++)
+      if (j >= hi || (i < mid && compare(temp[i], temp[j]) <= 0))
+	order[k] = temp[i++];
+      else
+	order[k] = temp[j++];
+  }
+
+  /**
+   *  Compare entries a and b: descending by score, then ascending by
+   *  external docid.
+   */
+  private int compare(int a, int b) {
+    try {
+      if (this.docScores[a] < this.docScores[b])
+	return 1;
+      else if (this.docScores[a] > this.docScores[b])
+	return -1;
+      else
+	return externalId(a).compareTo(externalId(b));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return -2;
+    }
+  }
+
+  /**
+   *  The external docid of entry i.  Without a startup snapshot each
+   *  lookup reads stored fields, so while sorting they are looked up
+   *  once per entry, not once per comparison.
+   */
+  private String externalId(int i) throws IOException {
+
+    if (this.externalIds == null)
+      this.externalIds = new String[this.size];
+    if (this.externalIds[i] == null)
+      this.externalIds[i] = QryEval.getExternalDocid(this.docids[i]);
+    return this.externalIds[i];
   }
 }
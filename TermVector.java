@@ -6,22 +6,45 @@
  *    stemsFreq:  The frequency (tf) of each entry in stems.
  *    positions:  The index of the stem that occurred at this position. 
  *
+ *  If QryEval has a ForwardIndex for the field, the vector is read
+ *  from it, stems are kept as ids, and stem strings and statistics
+ *  are looked up in its dictionary only when they are asked for.
+ *
  *  Copyright (c) 2014, Carnegie Mellon University.  All Rights Reserved.
  */
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
 
 public class TermVector {
 
+  //  The df and ctf of stems, cached across documents and queries
+  //  because query expansion asks for the same stems many times.  The
+  //  cache is cleared when it grows past statsCacheSize entries.
+
+  static int statsCacheSize = 100000;
+  private static final ConcurrentHashMap<Term, long[]> STATS_CACHE =
+    new ConcurrentHashMap<Term, long[]>();
+
   /**
    * Class variables.
    */
   Terms luceneTerms;
+  ForwardIndex forward;
+  String fieldName;
+  int[] stemIds;
   int[] positions;
   String[] stems;
   int[] stemsFreq;
@@ -33,10 +56,33 @@ public class TermVector {
    */
   public TermVector(int docId, String fieldName) throws IOException {
 
+    this.fieldName = fieldName;
+
+    //  Read the forward index if it has the field.
+
+    if (QryEval.FORWARD != null && QryEval.FORWARD.hasField(fieldName)) {
+      int[][] vector = QryEval.FORWARD.getVector(fieldName, docId);
+      this.forward = QryEval.FORWARD;
+      this.stemIds = vector[0];
+      this.stemsFreq = vector[1];
+      this.positions = vector[2];
+      return;
+    }
+
     //  Fetch the term vector.
 
     this.luceneTerms = QryEval.READER.getTermVector(docId, fieldName);
 
+    //  A document that doesn't have the field has an empty vector.
+
+    if (this.luceneTerms == null) {
+      stems = new String[] { "" };
+      terms = new Term[1];
+      stemsFreq = new int[1];
+      positions = new int[0];
+      return;
+    }
+
     //  Allocate space for stems. The 0'th stem indicates a stopword.
 
     int stemsLength = (int) this.luceneTerms.size();
@@ -131,6 +177,8 @@ public class TermVector {
    *  @return The stem string.
    */
   public String stemString(int i) {
+    if (forward != null)
+      return (i > 0 && i < stemIds.length) ? forward.getStem(fieldName, stemIds[i]) : null;
     if (i < stems.length)
       return stems[i];
     else
@@ -142,6 +190,8 @@ public class TermVector {
    *  @return The number of unique stems in this field.
    */
   public int stemsLength() {
+    if (forward != null)
+      return this.stemIds.length;
     return this.stems.length;
   }
   
@@ -152,7 +202,9 @@ public class TermVector {
    * @throws IOException.
    */
   public long totalStemFreq(int i) throws IOException {
-    return QryEval.READER.totalTermFreq(terms[i]);
+    if (forward != null)
+      return forward.totalTermFreq(fieldName, stemIds[i]);
+    return getStats(terms[i])[1];
   }
   
   /**
@@ -162,7 +214,149 @@ public class TermVector {
    * @throws IOException.
    */
   public int stemDf(int i) throws IOException {
-    return QryEval.READER.docFreq(terms[i]);
+    if (forward != null)
+      return forward.docFreq(fieldName, stemIds[i]);
+    return (int) getStats(terms[i])[0];
   }
-  
+
+  /**
+   * Forget the cached df and ctf of stems, e.g., when the index changes.
+   */
+  static void clearCache() {
+    STATS_CACHE.clear();
+  }
+
+  /**
+   * Bring the cached df and ctf of stems up to date after the index
+   * was refreshed, by adding the live statistics of the segments that
+   * were added and subtracting those of the segments that were removed
+   * (e.g., merged away).  A segment in which documents were deleted is
+   * both: its new reader is added and its old one removed.  Only
+   * statistics that were read from the index, not from a snapshot, can
+   * be updated this way.
+   * @param added The segments that are new in the refreshed index.
+   * @param removed The segments that are gone from it.
+   * @throws IOException.
+   */
+  static void updateStats(List<AtomicReaderContext> added,
+			  List<AtomicReaderContext> removed) throws IOException {
+
+    for (Map.Entry<Term, long[]> e : STATS_CACHE.entrySet()) {
+      Term t = e.getKey();
+      long df = e.getValue()[0], ctf = e.getValue()[1];
+
+      for (AtomicReaderContext leaf : added) {
+	long[] stats = liveStats(leaf.reader(), t);
+	df += stats[0];
+	ctf += stats[1];
+      }
+      for (AtomicReaderContext leaf : removed) {
+	long[] stats = liveStats(leaf.reader(), t);
+	df -= stats[0];
+	ctf -= stats[1];
+      }
+
+      //  Callers may hold the old array.
+
+      e.setValue(new long[] { df, ctf });
+    }
+  }
+
+  /**
+   * Returns the df and ctf of the term that a TermsEnum is positioned
+   * on, counting only live documents.  Lucene's docFreq and
+   * totalTermFreq include deleted documents until their segments are
+   * merged, but scores use numDocs(), which does not.
+   * @param te The TermsEnum.
+   * @param liveDocs The live documents, or null if none are deleted.
+   * @return { df, ctf }.
+   * @throws IOException.
+   */
+  static long[] liveStats(TermsEnum te, Bits liveDocs) throws IOException {
+
+    if (liveDocs == null)
+      return new long[] { te.docFreq(), te.totalTermFreq() };
+
+    long df = 0, ctf = 0;
+    DocsEnum de = te.docs(liveDocs, null, DocsEnum.FLAG_FREQS);
+
+    while (de.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      df++;
+      ctf += de.freq();
+    }
+
+    return new long[] { df, ctf };
+  }
+
+  /**
+   * Returns the df and ctf of a term in an index, counting only live
+   * documents.  They are summed over the index's segments (and, for a
+   * federation, its indexes); segments without deletions use Lucene's
+   * counts.
+   * @param reader The index.
+   * @param t The term.
+   * @return { df, ctf }.
+   * @throws IOException.
+   */
+  static long[] liveStats(IndexReader reader, Term t) throws IOException {
+
+    long df = 0, ctf = 0;
+
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      long[] stats = liveStats(leaf.reader(), t);
+      df += stats[0];
+      ctf += stats[1];
+    }
+
+    return new long[] { df, ctf };
+  }
+
+  /**
+   * Returns the df and ctf of a term in one segment, counting only
+   * live documents.
+   * @param leaf The segment.
+   * @param t The term.
+   * @return { df, ctf }.
+   * @throws IOException.
+   */
+  static long[] liveStats(AtomicReader leaf, Term t) throws IOException {
+
+    Terms terms = leaf.terms(t.field());
+
+    if (terms == null)
+      return new long[] { 0, 0 };
+
+    TermsEnum te = terms.iterator(null);
+
+    if (! te.seekExact(t.bytes(), true))
+      return new long[] { 0, 0 };
+
+    return liveStats(te, leaf.getLiveDocs());
+  }
+
+  /**
+   * Returns the df and ctf of a term from the cache, the startup
+   * snapshot or the index.
+   * @param t The term.
+   * @return { df, ctf }.
+   * @throws IOException.
+   */
+  static long[] getStats(Term t) throws IOException {
+    long[] stats = STATS_CACHE.get(t);
+
+    if (stats == null) {
+      if (QryEval.SNAPSHOT != null)
+	stats = new long[] { QryEval.SNAPSHOT.docFreq(t.field(), t.text()),
+			     QryEval.SNAPSHOT.totalTermFreq(t.field(), t.text()) };
+      else
+	stats = liveStats(QryEval.READER, t);
+
+      if (STATS_CACHE.size() >= statsCacheSize)
+	STATS_CACHE.clear();
+      STATS_CACHE.put(t, stats);
+    }
+
+    return stats;
+  }
+
 }
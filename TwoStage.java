@@ -0,0 +1,157 @@
+/**
+ *  TwoStage evaluates queries in two stages.  The first stage ranks
+ *  documents with a BM25 #SUM of the query's terms, using the impact
+ *  index or the pruned tier when they are enabled, and keeps the
+ *  top rerankDepth documents as candidates.  The second stage
+ *  evaluates the full structured query with the configured retrieval
+ *  model on the candidates only.
+ *
+ *  While the second stage runs, CANDIDATES holds the candidate
+ *  docids.  QryopIlTerm then fetches postings only for candidates,
+ *  skipping over the rest of each list, so every operator above it
+ *  sees only candidates.  Term lists keep their full collection
+ *  statistics.  Operators such as #NEAR and #SYN, whose statistics
+ *  come from their merged lists, are evaluated on full lists and then
+ *  restricted to the candidates, so candidates get exactly the scores
+ *  that a full evaluation would give them.
+ *
+ *  Parameters:
+ *    rerankDepth:  The number of first-stage candidates.  Setting it
+ *                  turns on two-stage evaluation.
+ *    BM25:k_1, BM25:b, BM25:k_3:  First-stage BM25 parameters
+ *                  (1.2, 0.75, 0 if they are not given).
+ */
+
+import java.io.*;
+import java.util.*;
+
+public class TwoStage {
+
+  //  The candidates of the query that the current thread is reranking.
+
+  static final ThreadLocal<int[]> CANDIDATES = new ThreadLocal<int[]>();
+
+  int depth;
+  RetrievalModel firstStage = new RetrievalModelBM25();
+
+  /**
+   *  Constructor.
+   *  @param params The parameters.
+   */
+  public TwoStage(Map<String, String> params) {
+    this.depth = Integer.parseInt(params.get("rerankDepth"));
+    firstStage.setParameter("k_1", params.containsKey("BM25:k_1") ? params.get("BM25:k_1") : "1.2");
+    firstStage.setParameter("b", params.containsKey("BM25:b") ? params.get("BM25:b") : "0.75");
+    firstStage.setParameter("k_3", params.containsKey("BM25:k_3") ? params.get("BM25:k_3") : "0");
+  }
+
+  /**
+   *  Build the first-stage query: a #SUM of the terms at the leaves of
+   *  the query's plan, each in the field that the query gives it.
+   *  Operators and weights are ignored.
+   *  @param qString The query.
+   *  @return The first-stage query, or null if it has no terms.
+   *  @throws IOException
+   */
+  static QryopSlSum firstStageQuery(String qString) throws IOException {
+
+    List<QryopIlTerm> terms = QueryParser.terms(qString);
+
+    if (terms.isEmpty())
+      return null;
+
+    QryopSlSum sum = new QryopSlSum();
+    for (QryopIlTerm t : terms)
+      sum.add(t);
+
+    return sum;
+  }
+
+  /**
+   *  Find the first-stage candidates of a query.
+   *  @param qString The query.
+   *  @return The candidate docids in ascending order.
+   *  @throws IOException
+   */
+  int[] getCandidates(String qString) throws IOException {
+
+    QryopSlSum q = firstStageQuery(qString);
+
+    if (q == null)
+      return new int[0];
+
+    QryResult res = null;
+
+    if (QryEval.IMPACTS != null)
+      res = q.evaluateImpactOrdered(firstStage, QryEval.IMPACTS, depth);
+    if (res == null && QryEval.TIER != null)
+      res = PrunedIndex.evaluate(q, firstStage, QryEval.TIER, depth);
+    if (res == null)
+      res = q.evaluate(firstStage);
+
+    ScoreList top = Federation.topDocs(res.docScores, depth);
+    int[] candidates = new int[top.size()];
+
+    for (int i = 0; i < candidates.length; i++)
+      candidates[i] = top.getDocid(i);
+
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
+  /**
+   *  Evaluate a query in two stages.
+   *  @param qString The query.
+   *  @param r The retrieval model of the second stage.
+   *  @return The scores of the candidates.
+   *  @throws IOException
+   */
+  public QryResult evaluate(String qString, RetrievalModel r) throws IOException {
+
+    int[] candidates = getCandidates(qString);
+
+    if (candidates.length == 0)
+      return new QryResult();
+
+    Qryop qTree = QryEval.parseQuery(qString);
+
+    CANDIDATES.set(candidates);
+    try {
+      return qTree.evaluate(r);
+    } finally {
+      CANDIDATES.remove();
+    }
+  }
+
+  /**
+   *  Restrict an inverted list to candidates.  The result keeps the
+   *  collection statistics of the full list.
+   *  @param list The inverted list.
+   *  @param candidates The candidates in ascending order.
+   *  @return The restricted list.
+   */
+  static InvList restrict(InvList list, int[] candidates) {
+
+    InvList result = new InvList(list.field);
+    result.collectionDf = list.getCollectionDf();
+    result.collectionCtf = list.getCollectionCtf();
+
+    for (int i = 0, c = 0; i < list.df && c < candidates.length; ) {
+      InvList.DocPosting p = list.postings.get(i);
+
+      if (p.docid < candidates[c])
+	i++;
+      else if (p.docid > candidates[c])
+	c++;
+      else {
+	result.postings.add(p);
+	result.df++;
+	result.ctf += p.tf;
+	i++;
+	c++;
+      }
+    }
+
+    return result;
+  }
+}